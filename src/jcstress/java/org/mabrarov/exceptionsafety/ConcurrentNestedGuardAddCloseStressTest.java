@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * Races {@link ConcurrentNestedGuard#add(AutoCloseable)} with {@link ConcurrentNestedGuard#close()}.
+ * Result is (number of times resource was closed, 1 if adding failed because guard was closed).
+ */
+@JCStressTest
+@Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "Resource added and closed by guard")
+@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Guard closed first, resource closed by adder")
+@Outcome(id = "0, .*", expect = FORBIDDEN, desc = "Resource leaked")
+@Outcome(expect = FORBIDDEN, desc = "Resource closed multiple times")
+@State
+public class ConcurrentNestedGuardAddCloseStressTest {
+
+  private final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+  private final CountingResource resource = new CountingResource();
+
+  @Actor
+  public void add(final II_Result result) {
+    try {
+      guard.add(resource);
+    } catch (final IllegalStateException e) {
+      result.r2 = 1;
+    }
+  }
+
+  @Actor
+  public void close() {
+    StressTests.close(guard);
+  }
+
+  @Arbiter
+  public void arbiter(final II_Result result) {
+    result.r1 = resource.closeCount();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * Races {@link ConcurrentNestedGuard#release()} with {@link ConcurrentNestedGuard#close()}, i.e.
+ * transfer of ownership of guarded resource to the releasing thread with closing of guard. Result
+ * is (number of times resource was closed, 1 if ownership was transferred to the releasing
+ * thread).
+ */
+@JCStressTest
+@Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "Guard closed first, resource closed by guard")
+@Outcome(id = "0, 1", expect = ACCEPTABLE, desc = "Resource released, owned by releasing thread")
+@Outcome(id = "0, 0", expect = FORBIDDEN, desc = "Resource leaked")
+@Outcome(id = "1, 1", expect = FORBIDDEN, desc = "Resource closed after it was released")
+@Outcome(expect = FORBIDDEN, desc = "Resource closed multiple times")
+@State
+public class ConcurrentNestedGuardReleaseCloseStressTest {
+
+  private final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+  private final CountingResource resource = guard.add(new CountingResource());
+
+  @Actor
+  public void release(final II_Result result) {
+    result.r2 = guard.release() ? 1 : 0;
+  }
+
+  @Actor
+  public void close() {
+    StressTests.close(guard);
+  }
+
+  @Arbiter
+  public void arbiter(final II_Result result) {
+    result.r1 = resource.closeCount();
+  }
+}
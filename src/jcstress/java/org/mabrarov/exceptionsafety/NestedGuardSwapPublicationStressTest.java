@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+/**
+ * Transfers ownership of guarded resource to another thread: one thread moves resource into new
+ * {@link NestedGuard} with {@link NestedGuard#swap(NestedGuard)} and publishes that guard through
+ * volatile field, the other thread closes published guard. Result is (size of guard observed by
+ * closing thread or -1 if guard was not published yet, number of times resource was closed, size
+ * of published guard at the end).
+ */
+@JCStressTest
+@Outcome(id = "-1, 0, 1", expect = ACCEPTABLE, desc = "Guard not published yet, still owns resource")
+@Outcome(id = "1, 1, 0", expect = ACCEPTABLE, desc = "Guard published and closed by other thread")
+@Outcome(id = "0, .*", expect = FORBIDDEN, desc = "Unsafe publication, resource leaked")
+@Outcome(expect = FORBIDDEN, desc = "Resource leaked or closed multiple times")
+@State
+public class NestedGuardSwapPublicationStressTest {
+
+  private final NestedGuard source = new NestedGuard();
+  private final CountingResource resource = source.add(new CountingResource());
+  private volatile NestedGuard published;
+
+  @Actor
+  public void transfer() {
+    final NestedGuard guard = new NestedGuard();
+    guard.swap(source);
+    published = guard;
+  }
+
+  @Actor
+  public void close(final III_Result result) {
+    final NestedGuard guard = published;
+    if (guard == null) {
+      result.r1 = -1;
+      return;
+    }
+    result.r1 = guard.size();
+    StressTests.close(guard);
+  }
+
+  @Arbiter
+  public void arbiter(final III_Result result) {
+    // Guard which resource was moved from should guard nothing
+    StressTests.close(source);
+    result.r2 = resource.closeCount();
+    result.r3 = published.size();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+/**
+ * Adds resources to {@link ShardedNestedGuard} from multiple threads concurrently and closes guard
+ * after adding completed. Result is (number of times each resource was closed, size of guard after
+ * closing).
+ */
+@JCStressTest
+@Outcome(id = "1, 1, 0", expect = ACCEPTABLE, desc = "Each resource closed exactly once")
+@Outcome(expect = FORBIDDEN, desc = "Resource leaked or closed multiple times")
+@State
+public class ShardedNestedGuardAddStressTest {
+
+  private final ShardedNestedGuard guard = new ShardedNestedGuard();
+  private final CountingResource resource1 = new CountingResource();
+  private final CountingResource resource2 = new CountingResource();
+
+  @Actor
+  public void add1() {
+    guard.add(resource1);
+  }
+
+  @Actor
+  public void add2() {
+    guard.add(resource2);
+  }
+
+  @Arbiter
+  public void arbiter(final III_Result result) {
+    StressTests.close(guard);
+    result.r1 = resource1.closeCount();
+    result.r2 = resource2.closeCount();
+    result.r3 = guard.size();
+  }
+}
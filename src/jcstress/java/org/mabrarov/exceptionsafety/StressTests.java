@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+/**
+ * Helpers for stress tests which actor and arbiter methods cannot throw checked exceptions.
+ */
+final class StressTests {
+
+  private StressTests() {
+  }
+
+  /**
+   * Closes given guard and reports failure of its {@link AutoCloseable#close()} method as error,
+   * because resources used by stress tests never fail to close.
+   *
+   * @param guard guard to close.
+   */
+  static void close(final AutoCloseable guard) {
+    try {
+      guard.close();
+    } catch (final Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of closing of guards when {@link AutoCloseable#close()} method of guarded resources
+ * fails, i.e. of nesting of exceptions as suppressed, rethrowing of exceptions and errors and
+ * keeping of failed resources for subsequent closing. Resources are created with {@link
+ * FaultInjectingResource}, {@code failureProbability} parameter defines the share of failing
+ * resources.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class CloseFailureBenchmark {
+
+  @Param({"1", "4", "64", "1024"})
+  private int size;
+
+  @Param({"CHECKED", "RUNTIME", "ERROR"})
+  private FaultInjectingResource.Failure failure;
+
+  @Param({"0.1", "1"})
+  private double failureProbability;
+
+  private FaultInjectingResource[] resources;
+
+  @Setup
+  public void setUp() {
+    resources = FaultInjectingResource.newResources(size, failure, failureProbability, 0);
+  }
+
+  @Benchmark
+  public Throwable nestedGuardClose() {
+    final NestedGuard guard = new NestedGuard();
+    for (final AutoCloseable resource : resources) {
+      guard.add(resource);
+    }
+    try {
+      guard.close();
+      return null;
+    } catch (final Throwable e) {
+      guard.release();
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Throwable nestedGuardCloseAndRetry() {
+    final NestedGuard guard = new NestedGuard();
+    for (final AutoCloseable resource : resources) {
+      guard.add(resource);
+    }
+    try {
+      guard.close();
+      return null;
+    } catch (final Throwable e) {
+      // Failed resources remain guarded and are closed again
+      try {
+        guard.close();
+        return e;
+      } catch (final Throwable retryException) {
+        guard.release();
+        return retryException;
+      }
+    }
+  }
+
+  @Benchmark
+  public Throwable concurrentNestedGuardClose() {
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    for (final AutoCloseable resource : resources) {
+      guard.add(resource);
+    }
+    try {
+      guard.close();
+      return null;
+    } catch (final Throwable e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Throwable guardClose() {
+    Throwable currentException = null;
+    for (int i = resources.length - 1; i >= 0; --i) {
+      try (final Guard guard = new Guard()) {
+        guard.set(resources[i]);
+      } catch (final Throwable e) {
+        currentException = Closeables.addSuppressed(currentException, e);
+      }
+    }
+    return currentException;
+  }
+}
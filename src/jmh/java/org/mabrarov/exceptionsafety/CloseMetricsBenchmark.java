@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares cost of guard close with instrumented mode (see {@link CloseMetrics}) disabled and
+ * enabled.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CloseMetricsBenchmark {
+
+  @Param({"1", "4", "64"})
+  private int size;
+
+  @Param({"false", "true"})
+  private boolean enabled;
+
+  private AutoCloseable[] resources;
+
+  @Setup
+  public void setUp() {
+    resources = NoopResource.newResources(size);
+    CloseMetrics.setEnabled(enabled);
+  }
+
+  @TearDown
+  public void tearDown() {
+    CloseMetrics.setEnabled(false);
+    CloseMetrics.reset();
+  }
+
+  @Benchmark
+  public NestedGuard nestedGuardAddAndClose() throws Exception {
+    try (final NestedGuard guard = new NestedGuard()) {
+      for (final AutoCloseable resource : resources) {
+        guard.add(resource);
+      }
+      return guard;
+    }
+  }
+
+  @Benchmark
+  public PairGuard pairGuardSetAndClose() throws Exception {
+    try (final PairGuard guard = new PairGuard()) {
+      guard.setFirst(resources[0]);
+      guard.setSecond(resources[resources.length - 1]);
+      return guard;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention benchmark of adding resources to a single guard from multiple threads. Number of
+ * threads can be changed with "-t" JMH option. Each thread adds a batch of resources per
+ * invocation, guard is closed at the end of each iteration.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = ConcurrentNestedGuardBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = ConcurrentNestedGuardBenchmark.BATCH_SIZE)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentNestedGuardBenchmark {
+
+  static final int BATCH_SIZE = 100000;
+
+  private final AutoCloseable resource = new NoopResource();
+  private ConcurrentNestedGuard concurrentGuard;
+  private NestedGuard synchronizedGuard;
+  private ShardedNestedGuard shardedGuard;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    concurrentGuard = new ConcurrentNestedGuard();
+    synchronizedGuard = new NestedGuard();
+    shardedGuard = new ShardedNestedGuard();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws Exception {
+    concurrentGuard.close();
+    synchronizedGuard.close();
+    shardedGuard.close();
+  }
+
+  @Benchmark
+  public AutoCloseable concurrentAdd() {
+    return concurrentGuard.add(resource);
+  }
+
+  @Benchmark
+  public AutoCloseable synchronizedAdd() {
+    final NestedGuard guard = synchronizedGuard;
+    synchronized (guard) {
+      return guard.add(resource);
+    }
+  }
+
+  @Benchmark
+  public AutoCloseable shardedAdd() {
+    return shardedGuard.add(resource);
+  }
+}
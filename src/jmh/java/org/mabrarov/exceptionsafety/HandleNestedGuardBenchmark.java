@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of churn of long-lived registry of resources: removal of resource from the middle of
+ * guard followed by adding of new resource, with {@link HandleNestedGuard} (removal by handle) and
+ * with {@link NestedGuard} (removal by index).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class HandleNestedGuardBenchmark {
+
+  @Param({"64", "10000", "1000000"})
+  private int size;
+
+  private AutoCloseable resource;
+  private HandleNestedGuard handleGuard;
+  private long[] handles;
+  private int handleIndex;
+  private NestedGuard nestedGuard;
+
+  @Setup
+  public void setUp() {
+    resource = new NoopResource();
+    handleGuard = new HandleNestedGuard();
+    handles = new long[size];
+    nestedGuard = new NestedGuard();
+    for (int i = 0; i < size; ++i) {
+      handles[i] = handleGuard.addWithHandle(resource);
+      nestedGuard.add(resource);
+    }
+  }
+
+  @Benchmark
+  public long handleGuardRemoveAndAdd() {
+    final int index = handleIndex;
+    handleGuard.remove(handles[index]);
+    final long handle = handleGuard.addWithHandle(resource);
+    handles[index] = handle;
+    handleIndex = index + 1 == size ? 0 : index + 1;
+    return handle;
+  }
+
+  @Benchmark
+  public AutoCloseable nestedGuardRemoveAndAdd() {
+    nestedGuard.remove(size / 2);
+    return nestedGuard.add(resource);
+  }
+}
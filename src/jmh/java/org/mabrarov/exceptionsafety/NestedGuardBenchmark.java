@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class NestedGuardBenchmark {
+
+  @Param({"1", "4", "64", "10000", "1000000"})
+  private int size;
+
+  private AutoCloseable[] resources;
+  private NestedGuardPool pool;
+
+  @Setup
+  public void setUp() {
+    resources = NoopResource.newResources(size);
+    pool = new NestedGuardPool(16384, 1);
+  }
+
+  @Benchmark
+  public NestedGuard addAndRelease() {
+    final NestedGuard guard = new NestedGuard();
+    for (final AutoCloseable resource : resources) {
+      guard.add(resource);
+    }
+    guard.release();
+    return guard;
+  }
+
+  @Benchmark
+  public NestedGuard addAndClose() throws Exception {
+    try (final NestedGuard guard = new NestedGuard()) {
+      for (final AutoCloseable resource : resources) {
+        guard.add(resource);
+      }
+      return guard;
+    }
+  }
+
+  @Benchmark
+  public NestedGuard addAllAndClose() throws Exception {
+    try (final NestedGuard guard = new NestedGuard()) {
+      guard.addAll(resources);
+      return guard;
+    }
+  }
+
+  @Benchmark
+  public NestedGuard pooledAddAndClose() throws Exception {
+    final NestedGuard guard = pool.acquire();
+    try {
+      for (final AutoCloseable resource : resources) {
+        guard.add(resource);
+      }
+      guard.close();
+      return guard;
+    } finally {
+      pool.recycle(guard);
+    }
+  }
+
+  @Benchmark
+  public AutoCloseable[] closeInReverseOrder() throws Exception {
+    for (int i = resources.length - 1; i >= 0; --i) {
+      resources[i].close();
+    }
+    return resources;
+  }
+}
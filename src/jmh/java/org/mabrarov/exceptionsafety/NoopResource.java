@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+/**
+ * Resource which {@link AutoCloseable#close()} method does nothing, so benchmarks measure cost of
+ * guards only.
+ */
+final class NoopResource implements AutoCloseable {
+
+  static AutoCloseable[] newResources(final int size) {
+    final AutoCloseable[] resources = new AutoCloseable[size];
+    for (int i = 0; i < size; ++i) {
+      resources[i] = new NoopResource();
+    }
+    return resources;
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close
+  }
+}
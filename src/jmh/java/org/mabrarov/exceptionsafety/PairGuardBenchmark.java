@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PairGuardBenchmark {
+
+  private final AutoCloseable first = new NoopResource();
+  private final AutoCloseable second = new NoopResource();
+  private final PairGuard guard = new PairGuard();
+
+  @Benchmark
+  public PairGuard setAndRelease() {
+    guard.setFirst(first);
+    guard.setSecond(second);
+    guard.release();
+    return guard;
+  }
+
+  @Benchmark
+  public PairGuard setAndClose() throws Exception {
+    guard.setFirst(first);
+    guard.setSecond(second);
+    guard.close();
+    return guard;
+  }
+
+  @Benchmark
+  public PairGuard newGuardSetAndClose() throws Exception {
+    try (final PairGuard localGuard = new PairGuard()) {
+      localGuard.setFirst(first);
+      localGuard.setSecond(second);
+      return localGuard;
+    }
+  }
+
+  @Benchmark
+  public AutoCloseable tryWithResources() throws Exception {
+    try (final AutoCloseable localFirst = first;
+        final AutoCloseable localSecond = second) {
+      return localSecond;
+    }
+  }
+}
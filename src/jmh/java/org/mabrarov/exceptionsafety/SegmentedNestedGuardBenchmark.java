@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of guarding of large number of resources with {@link SegmentedNestedGuard} and with
+ * {@link NestedGuard}. Allocation rate and GC time are reported by GC profiler, G1 is used to
+ * show impact of humongous allocations of {@link NestedGuard}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:+UseG1GC"})
+@State(Scope.Thread)
+public class SegmentedNestedGuardBenchmark {
+
+  @Param({"10000", "1000000", "10000000"})
+  private int size;
+
+  private AutoCloseable resource;
+
+  @Setup
+  public void setUp() {
+    resource = new NoopResource();
+  }
+
+  @Benchmark
+  public SegmentedNestedGuard segmentedGuardAddAndClose() throws Exception {
+    try (final SegmentedNestedGuard guard = new SegmentedNestedGuard()) {
+      for (int i = 0; i < size; ++i) {
+        guard.add(resource);
+      }
+      return guard;
+    }
+  }
+
+  @Benchmark
+  public NestedGuard nestedGuardAddAndClose() throws Exception {
+    try (final NestedGuard guard = new NestedGuard()) {
+      for (int i = 0; i < size; ++i) {
+        guard.add(resource);
+      }
+      return guard;
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Closes resources in background threads, so that latency of {@link AutoCloseable#close()} doesn't
+ * impact threads which release resources. Resources are queued into bounded queue and are closed by
+ * worker threads in the order of submission. Guards can hand their resources to instance of this
+ * class with {@code closeInBackground} method. Failures of {@link AutoCloseable#close()} are passed
+ * to {@link FailureHandler}.<br/> Thread-safe.
+ */
+public class BackgroundCloser implements AutoCloseable {
+
+  /**
+   * Defines behavior of {@link BackgroundCloser#submit(AutoCloseable)} when queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait until there is free space in queue.
+     */
+    BLOCK,
+    /**
+     * Close resource by the submitting thread.
+     */
+    CALLER_RUNS,
+    /**
+     * Throw {@link RejectedExecutionException}.
+     */
+    REJECT
+  }
+
+  /**
+   * Receives failures of {@link AutoCloseable#close()} method of resources closed by {@link
+   * BackgroundCloser}.
+   */
+  public interface FailureHandler {
+
+    /**
+     * Invoked by the thread which closed resource. Should not throw exceptions.
+     *
+     * @param resource resource which {@link AutoCloseable#close()} method failed.
+     * @param exception exception thrown by {@link AutoCloseable#close()} method of {@code resource}.
+     */
+    void closeFailed(AutoCloseable resource, Throwable exception);
+  }
+
+  private static final AutoCloseable STOP = new AutoCloseable() {
+    @Override
+    public void close() {
+    }
+  };
+
+  private final BlockingQueue<AutoCloseable> queue;
+  private final OverflowPolicy overflowPolicy;
+  private final FailureHandler failureHandler;
+  private final Thread[] workers;
+  private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+  private volatile boolean shutdown;
+  private final AtomicLong closedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong totalCloseTimeNanos = new AtomicLong();
+  private final AtomicLong maxCloseTimeNanos = new AtomicLong();
+
+  /**
+   * Creates instance which uses virtual threads if they are supported by JVM or daemon threads
+   * otherwise.
+   *
+   * @param queueCapacity capacity of queue of resources waiting to be closed, should be &gt; 0.
+   * @param threadCount number of worker threads, should be &gt; 0.
+   * @param overflowPolicy behavior of {@link BackgroundCloser#submit(AutoCloseable)} when queue is
+   * full.
+   * @param failureHandler receiver of failures of {@link AutoCloseable#close()}.
+   */
+  public BackgroundCloser(final int queueCapacity, final int threadCount,
+      final OverflowPolicy overflowPolicy, final FailureHandler failureHandler) {
+    this(queueCapacity, threadCount, overflowPolicy, failureHandler, newDefaultThreadFactory());
+  }
+
+  /**
+   * @param queueCapacity capacity of queue of resources waiting to be closed, should be &gt; 0.
+   * @param threadCount number of worker threads, should be &gt; 0.
+   * @param overflowPolicy behavior of {@link BackgroundCloser#submit(AutoCloseable)} when queue is
+   * full.
+   * @param failureHandler receiver of failures of {@link AutoCloseable#close()}.
+   * @param threadFactory factory of worker threads.
+   */
+  public BackgroundCloser(final int queueCapacity, final int threadCount,
+      final OverflowPolicy overflowPolicy, final FailureHandler failureHandler,
+      final ThreadFactory threadFactory) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Thread count should be positive: " + threadCount);
+    }
+    if (overflowPolicy == null || failureHandler == null || threadFactory == null) {
+      throw new NullPointerException();
+    }
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.overflowPolicy = overflowPolicy;
+    this.failureHandler = failureHandler;
+    this.workers = new Thread[threadCount];
+    final Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        processQueue();
+      }
+    };
+    int startedCount = 0;
+    try {
+      for (; startedCount < threadCount; ++startedCount) {
+        workers[startedCount] = threadFactory.newThread(worker);
+        workers[startedCount].start();
+      }
+    } catch (final Throwable e) {
+      shutdown = true;
+      stopWorkers(startedCount);
+      throw Closeables.rethrowUnchecked(e);
+    }
+  }
+
+  /**
+   * Submits resource to be closed in background. Ownership of resource is passed to this instance
+   * only if this method completes successfully, i.e. provides strong exception safety.
+   *
+   * @param resource resource to close, {@code null} is ignored.
+   * @throws RejectedExecutionException if this instance is closed, if queue is full and overflow
+   * policy is {@link OverflowPolicy#REJECT} or if the calling thread is interrupted while waiting
+   * for free space in queue and overflow policy is {@link OverflowPolicy#BLOCK}.
+   */
+  public void submit(final AutoCloseable resource) {
+    if (resource == null) {
+      return;
+    }
+    boolean closeByCaller = false;
+    final Lock lock = shutdownLock.readLock();
+    lock.lock();
+    try {
+      if (shutdown) {
+        rejectedCount.incrementAndGet();
+        throw new RejectedExecutionException("Background closer is closed");
+      }
+      switch (overflowPolicy) {
+        case BLOCK:
+          try {
+            queue.put(resource);
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Interrupted while waiting for free space", e);
+          }
+          break;
+        case CALLER_RUNS:
+          closeByCaller = !queue.offer(resource);
+          break;
+        default:
+          if (!queue.offer(resource)) {
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Queue is full");
+          }
+          break;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (closeByCaller) {
+      closeResource(resource);
+    }
+  }
+
+  /**
+   * @return number of resources waiting to be closed.
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * @return number of resources which {@link AutoCloseable#close()} method completed successfully.
+   */
+  public long getClosedCount() {
+    return closedCount.get();
+  }
+
+  /**
+   * @return number of resources which {@link AutoCloseable#close()} method failed.
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * @return number of resources rejected by {@link BackgroundCloser#submit(AutoCloseable)}.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * @return total time spent in {@link AutoCloseable#close()} method of resources, in nanoseconds.
+   */
+  public long getTotalCloseTimeNanos() {
+    return totalCloseTimeNanos.get();
+  }
+
+  /**
+   * @return maximum time spent in {@link AutoCloseable#close()} method of single resource, in
+   * nanoseconds.
+   */
+  public long getMaxCloseTimeNanos() {
+    return maxCloseTimeNanos.get();
+  }
+
+  /**
+   * Stops accepting new resources, waits until all submitted resources are closed and worker
+   * threads are terminated. Subsequent calls do nothing. Should not be called by worker thread, i.e.
+   * by {@link AutoCloseable#close()} method of submitted resource.
+   *
+   * @throws InterruptedException if the calling thread is interrupted while waiting for termination
+   * of worker threads. Worker threads still close submitted resources in this case.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    final Lock lock = shutdownLock.writeLock();
+    lock.lock();
+    try {
+      if (shutdown) {
+        return;
+      }
+      shutdown = true;
+    } finally {
+      lock.unlock();
+    }
+    // No more resources can be submitted, so stop markers are the last elements of queue
+    stopWorkers(workers.length);
+    for (final Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  private void stopWorkers(final int workerCount) {
+    boolean interrupted = false;
+    for (int i = 0; i < workerCount; ) {
+      try {
+        queue.put(STOP);
+        ++i;
+      } catch (final InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void processQueue() {
+    while (true) {
+      final AutoCloseable resource;
+      try {
+        resource = queue.take();
+      } catch (final InterruptedException e) {
+        // Workers are stopped only with stop marker, so that no submitted resource is left
+        continue;
+      }
+      if (resource == STOP) {
+        return;
+      }
+      closeResource(resource);
+    }
+  }
+
+  private void closeResource(final AutoCloseable resource) {
+    final long start = System.nanoTime();
+    try {
+      resource.close();
+      closedCount.incrementAndGet();
+    } catch (final Throwable e) {
+      failedCount.incrementAndGet();
+      handleFailure(resource, e);
+    } finally {
+      recordCloseTime(System.nanoTime() - start);
+      // Resources submitted by Guard#closeInBackground are released from guard before they are
+      // closed, so they are closed by this instance as their new owner
+      LeakDetector.untrack(resource);
+    }
+  }
+
+  private void handleFailure(final AutoCloseable resource, final Throwable exception) {
+    try {
+      failureHandler.closeFailed(resource, exception);
+    } catch (final Throwable handlerException) {
+      final Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, handlerException);
+    }
+  }
+
+  private void recordCloseTime(final long nanos) {
+    totalCloseTimeNanos.addAndGet(nanos);
+    long max;
+    do {
+      max = maxCloseTimeNanos.get();
+    } while (nanos > max && !maxCloseTimeNanos.compareAndSet(max, nanos));
+  }
+
+  private static ThreadFactory newDefaultThreadFactory() {
+    // Virtual threads are available since Java 21, so they are looked up reflectively
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      final Object namedBuilder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, "background-closer-", 0L);
+      final Method factory = builderClass.getMethod("factory");
+      return (ThreadFactory) factory.invoke(namedBuilder);
+    } catch (final Exception e) {
+      return new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable,
+              "background-closer-" + threadNumber.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+    }
+  }
+}
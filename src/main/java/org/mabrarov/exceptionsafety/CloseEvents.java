@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+/**
+ * Emits Java Flight Recorder events for closing of guards and of guarded resources. JFR support
+ * is provided by {@code org.mabrarov.exceptionsafety.JfrCloseEventRecorder} class, which requires
+ * Java 11 and is shipped in {@code META-INF/versions/11} directory of multi-release JAR, so on
+ * older JVMs (or when JFR is not available) events are not emitted. Callers are expected to check
+ * {@link #isEnabled()} before starting timing, so that closing does not pay for events when JFR is
+ * not available (the check is folded by JIT compiler) or when no recording is running (the check is
+ * single read of volatile field).
+ * <p>
+ * Events are emitted for {@link AutoCloseable#close()} method of guards and for guarded resources
+ * closed by guards, including {@link NestedGuard#closeWithTimeout(long, long,
+ * java.util.concurrent.TimeUnit)} and {@link NestedGuard#closeInParallel(java.util.concurrent.Executor,
+ * int)}. Incremental closes ({@link NestedGuard#closeSome(int)} and {@link
+ * NestedGuard#closeFor(long)}) emit events for resources only, because single call does not close
+ * guard. Resources closed by {@link BackgroundCloser} are attributed to the detached guard which
+ * is closed in background. All methods provide no-throw guarantee.
+ */
+final class CloseEvents {
+
+  /**
+   * Recorder of events or {@code null} if JFR is not available.
+   */
+  static final Recorder RECORDER = load();
+
+  /**
+   * {@code true} if at least one JFR recording is running, maintained by {@link #RECORDER}.
+   */
+  private static volatile boolean recording;
+
+  private CloseEvents() {
+  }
+
+  /**
+   * @return {@code true} if events may be recorded, i.e. JFR is available and at least one
+   * recording is running.
+   */
+  static boolean isEnabled() {
+    return RECORDER != null && recording;
+  }
+
+  /**
+   * Called by {@link #RECORDER} when JFR recording starts or stops.
+   *
+   * @param running {@code true} if at least one recording is running.
+   */
+  static void setRecording(final boolean running) {
+    recording = running;
+  }
+
+  /**
+   * Starts timing of guard close.
+   *
+   * @return event to pass to {@link #endGuardClose(Object, AutoCloseable, int, boolean)} or {@code
+   * null} if event is not recorded.
+   */
+  static Object beginGuardClose() {
+    if (!isEnabled()) {
+      return null;
+    }
+    try {
+      return RECORDER.beginGuardClose();
+    } catch (final Throwable ignored) {
+      return null;
+    }
+  }
+
+  /**
+   * Completes timing of guard close and commits event if it exceeds configured threshold.
+   *
+   * @param event event returned by {@link #beginGuardClose()}, may be {@code null}.
+   * @param guard closed guard.
+   * @param itemCount number of guarded items.
+   * @param failed {@code true} if close of guard threw exception.
+   */
+  static void endGuardClose(final Object event, final AutoCloseable guard, final int itemCount,
+      final boolean failed) {
+    if (event == null) {
+      return;
+    }
+    try {
+      RECORDER.endGuardClose(event, guard, itemCount, failed);
+    } catch (final Throwable ignored) {
+      // Events are best effort and should not impact closing of resources
+    }
+  }
+
+  /**
+   * Starts timing of resource close.
+   *
+   * @return event to pass to {@link #endResourceClose(Object, AutoCloseable, AutoCloseable,
+   * boolean)} or {@code null} if event is not recorded.
+   */
+  static Object beginResourceClose() {
+    if (!isEnabled()) {
+      return null;
+    }
+    try {
+      return RECORDER.beginResourceClose();
+    } catch (final Throwable ignored) {
+      return null;
+    }
+  }
+
+  /**
+   * Completes timing of resource close and commits event if it exceeds configured threshold.
+   *
+   * @param event event returned by {@link #beginResourceClose()}, may be {@code null}.
+   * @param guard guard which guards {@code resource}.
+   * @param resource closed resource.
+   * @param failed {@code true} if {@link AutoCloseable#close()} method of {@code resource} threw
+   * exception.
+   */
+  static void endResourceClose(final Object event, final AutoCloseable guard,
+      final AutoCloseable resource, final boolean failed) {
+    if (event == null) {
+      return;
+    }
+    try {
+      RECORDER.endResourceClose(event, guard, resource, failed);
+    } catch (final Throwable ignored) {
+      // Events are best effort and should not impact closing of resources
+    }
+  }
+
+  private static Recorder load() {
+    try {
+      return (Recorder) Class.forName("org.mabrarov.exceptionsafety.JfrCloseEventRecorder")
+          .getDeclaredConstructor().newInstance();
+    } catch (final Throwable e) {
+      // Java older than 11 or JFR is not available
+      return null;
+    }
+  }
+
+  abstract static class Recorder {
+
+    abstract Object beginGuardClose();
+
+    abstract void endGuardClose(Object event, AutoCloseable guard, int itemCount, boolean failed);
+
+    abstract Object beginResourceClose();
+
+    abstract void endResourceClose(Object event, AutoCloseable guard, AutoCloseable resource,
+        boolean failed);
+  }
+}
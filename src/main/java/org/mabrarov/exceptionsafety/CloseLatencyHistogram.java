@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of close latencies with logarithmic buckets. Each power of 2 is split into
+ * {@value #SUB_BUCKET_COUNT} linear sub-buckets, so recorded values are kept with relative error
+ * not greater than 12.5%. Latencies from 0 up to {@link Long#MAX_VALUE} nanoseconds are
+ * supported. Besides latencies, number of failed closes is counted.<br/> Thread-safe. Values read
+ * concurrently with recording are not guaranteed to be consistent with each other.
+ */
+public final class CloseLatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+
+  /**
+   * Records successful close. Provides no-throw guarantee.
+   *
+   * @param nanos close latency, in nanoseconds. Negative values are recorded as 0.
+   */
+  public void record(final long nanos) {
+    final long value = Math.max(nanos, 0);
+    counts.incrementAndGet(bucketIndex(value));
+    totalNanos.addAndGet(value);
+    long max;
+    do {
+      max = maxNanos.get();
+    } while (value > max && !maxNanos.compareAndSet(max, value));
+  }
+
+  /**
+   * Records failed close, i.e. close which threw exception. Latency of failed close is recorded
+   * too. Provides no-throw guarantee.
+   *
+   * @param nanos close latency, in nanoseconds. Negative values are recorded as 0.
+   */
+  public void recordFailure(final long nanos) {
+    failureCount.incrementAndGet();
+    record(nanos);
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return number of recorded closes, including failed closes.
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return number of recorded failed closes.
+   */
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return sum of recorded latencies, in nanoseconds.
+   */
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return maximum recorded latency, in nanoseconds, or 0 if nothing is recorded.
+   */
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Retrieves latency which is not exceeded by given percentage of recorded closes. Result is the
+   * highest value of bucket which holds percentile, so it may exceed actual latency by up to 12.5%.
+   *
+   * @param percentile percentile, from 0 to 100.
+   * @return latency at given percentile, in nanoseconds, or 0 if nothing is recorded.
+   * @throws IllegalArgumentException if {@code percentile} is out of [0, 100] range.
+   */
+  public long getValueAtPercentile(final double percentile) {
+    if (!(percentile >= 0 && percentile <= 100)) {
+      throw new IllegalArgumentException("Percentile should be in [0, 100] range: " + percentile);
+    }
+    final long[] snapshot = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+    long accumulated = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      accumulated += snapshot[i];
+      if (accumulated >= rank) {
+        return Math.min(highestValueOf(i), getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  /**
+   * Forgets all recorded values. Values recorded concurrently with reset may be lost or partially
+   * kept. Provides no-throw guarantee.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts.set(i, 0);
+    }
+    totalNanos.set(0);
+    maxNanos.set(0);
+    failureCount.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "CloseLatencyHistogram{" + "count=" + getCount() + ", failureCount="
+        + getFailureCount() + ", p50=" + getValueAtPercentile(50) + ", p99="
+        + getValueAtPercentile(99) + ", max=" + getMaxNanos() + '}';
+  }
+
+  static int bucketIndex(final long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+    return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  static long highestValueOf(final int bucketIndex) {
+    if (bucketIndex < SUB_BUCKET_COUNT) {
+      return bucketIndex;
+    }
+    final int shift = bucketIndex / SUB_BUCKET_COUNT - 1;
+    final long subBucket = bucketIndex % SUB_BUCKET_COUNT;
+    final long lowest = (SUB_BUCKET_COUNT + subBucket) << shift;
+    return lowest + ((1L << shift) - 1);
+  }
+}
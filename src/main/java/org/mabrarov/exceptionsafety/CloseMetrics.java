@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Instrumented mode of guards. When enabled, latency of {@link AutoCloseable#close()} method called
+ * by {@link Guard}, {@link PairGuard} and {@link NestedGuard} when they close guarded resources is
+ * recorded into {@link CloseLatencyHistogram} of resource implementation class. Histograms are
+ * keyed by name of class, so that classes and their class loaders are not retained, and classes
+ * with the same name loaded by different class loaders share histogram. Up to {@value
+ * #MAX_HISTOGRAM_COUNT} histograms are kept, latency of resources of other classes is not recorded
+ * until {@link #reset()} is called. When disabled, the only cost is a read of volatile field per
+ * closed resource. Disabled by default, can be enabled
+ * at startup by setting {@value #ENABLED_PROPERTY} system property to {@code true}.<br/>
+ * Thread-safe.
+ */
+public final class CloseMetrics {
+
+  /**
+   * Name of system property which enables instrumented mode at startup.
+   */
+  public static final String ENABLED_PROPERTY = "org.mabrarov.exceptionsafety.closeMetrics";
+
+  /**
+   * Maximum number of resource classes which latency is recorded.
+   */
+  public static final int MAX_HISTOGRAM_COUNT = 1024;
+
+  private static final ConcurrentMap<String, CloseLatencyHistogram> HISTOGRAMS =
+      new ConcurrentHashMap<>();
+  private static final AtomicInteger HISTOGRAM_COUNT = new AtomicInteger();
+
+  private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  private CloseMetrics() {
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return {@code true} if instrumented mode is enabled.
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Enables or disables instrumented mode. Recorded histograms are kept when instrumented mode is
+   * disabled. Provides no-throw guarantee.
+   *
+   * @param enabled {@code true} to enable instrumented mode.
+   */
+  public static void setEnabled(final boolean enabled) {
+    CloseMetrics.enabled = enabled;
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @param resourceClass implementation class of {@link AutoCloseable}.
+   * @return histogram of given class or {@code null} if nothing was recorded for given class.
+   */
+  public static CloseLatencyHistogram getHistogram(final Class<?> resourceClass) {
+    return HISTOGRAMS.get(resourceClass.getName());
+  }
+
+  /**
+   * Provides strong exception safety.
+   *
+   * @return unmodifiable snapshot of histograms, keyed by name of implementation class of {@link
+   * AutoCloseable}. Histograms themselves are live.
+   */
+  public static Map<String, CloseLatencyHistogram> getHistograms() {
+    return Collections.unmodifiableMap(new HashMap<>(HISTOGRAMS));
+  }
+
+  /**
+   * Forgets all recorded histograms. Provides no-throw guarantee.
+   */
+  public static void reset() {
+    for (final String resourceClassName : HISTOGRAMS.keySet()) {
+      if (HISTOGRAMS.remove(resourceClassName) != null) {
+        HISTOGRAM_COUNT.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Invokes {@link AutoCloseable#close()} method of {@code resource} and records its latency if
+   * instrumented mode is enabled. Failure to record latency is ignored. Provides the same
+   * exception safety as {@link AutoCloseable#close()} method of {@code resource}.
+   *
+   * @param resource instance of {@link AutoCloseable} to close.
+   * @throws Exception the same exception as {@link AutoCloseable#close()} method throws.
+   */
+  static void close(final AutoCloseable resource) throws Exception {
+    if (!enabled) {
+      resource.close();
+      return;
+    }
+    closeInstrumented(resource);
+  }
+
+  private static void closeInstrumented(final AutoCloseable resource) throws Exception {
+    final long start = System.nanoTime();
+    try {
+      resource.close();
+    } catch (final Throwable e) {
+      record(resource, System.nanoTime() - start, true);
+      throw e;
+    }
+    record(resource, System.nanoTime() - start, false);
+  }
+
+  private static void record(final AutoCloseable resource, final long nanos,
+      final boolean failed) {
+    try {
+      record(resource.getClass().getName(), nanos, failed);
+    } catch (final Throwable ignored) {
+      // Metrics are best effort and should not impact closing of resources
+    }
+  }
+
+  /**
+   * Provides strong exception safety.
+   *
+   * @param resourceClassName name of implementation class of closed resource.
+   * @param nanos latency of {@link AutoCloseable#close()} method, in nanoseconds.
+   * @param failed {@code true} if {@link AutoCloseable#close()} method threw exception.
+   */
+  static void record(final String resourceClassName, final long nanos, final boolean failed) {
+    CloseLatencyHistogram histogram = HISTOGRAMS.get(resourceClassName);
+    if (histogram == null) {
+      histogram = addHistogram(resourceClassName);
+      if (histogram == null) {
+        return;
+      }
+    }
+    if (failed) {
+      histogram.recordFailure(nanos);
+    } else {
+      histogram.record(nanos);
+    }
+  }
+
+  /**
+   * Provides strong exception safety.
+   *
+   * @return histogram of given class or {@code null} if limit of number of histograms is reached.
+   */
+  private static CloseLatencyHistogram addHistogram(final String resourceClassName) {
+    if (HISTOGRAM_COUNT.incrementAndGet() > MAX_HISTOGRAM_COUNT) {
+      HISTOGRAM_COUNT.decrementAndGet();
+      return null;
+    }
+    final CloseLatencyHistogram existingHistogram;
+    try {
+      final CloseLatencyHistogram newHistogram = new CloseLatencyHistogram();
+      existingHistogram = HISTOGRAMS.putIfAbsent(resourceClassName, newHistogram);
+      if (existingHistogram == null) {
+        return newHistogram;
+      }
+    } catch (final Throwable e) {
+      HISTOGRAM_COUNT.decrementAndGet();
+      throw e;
+    }
+    HISTOGRAM_COUNT.decrementAndGet();
+    return existingHistogram;
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Thrown (or nested as suppressed exception) when {@link AutoCloseable#close()} method of guarded
+ * resource does not complete within given timeout. Resource which close timed out remains guarded,
+ * even if it was abandoned (refer to {@link CloseTimeoutException#isAbandoned()}).
+ */
+public class CloseTimeoutException extends TimeoutException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final boolean abandoned;
+
+  /**
+   * @param message the detail message.
+   * @param cause exception thrown by {@link AutoCloseable#close()} method after it was interrupted,
+   * may be {@code null}.
+   */
+  public CloseTimeoutException(final String message, final Throwable cause) {
+    this(message, cause, false);
+  }
+
+  CloseTimeoutException(final String message, final Throwable cause, final boolean abandoned) {
+    super(message);
+    if (cause != null) {
+      initCause(cause);
+    }
+    this.abandoned = abandoned;
+  }
+
+  /**
+   * @return {@code true} if {@link AutoCloseable#close()} method of resource did not respond to
+   * interruption and resource was abandoned, i.e. its {@link AutoCloseable#close()} method may
+   * still be running while resource remains guarded.
+   */
+  public boolean isAbandoned() {
+    return abandoned;
+  }
+}
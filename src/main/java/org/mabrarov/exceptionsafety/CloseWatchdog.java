@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enforces timeout of {@link AutoCloseable#close()} method. Resource is closed by thread of pool of
+ * daemon threads shared by all guards (which is created on first use) while calling thread waits,
+ * so that calling thread can abandon resource which {@link AutoCloseable#close()} method neither
+ * completes nor responds to interruption. Abandoned resource remains guarded and watchdog keeps
+ * track of its close, so that retry of close of that resource waits for close which is still in
+ * progress instead of invoking {@link AutoCloseable#close()} method concurrently, and does not
+ * invoke {@link AutoCloseable#close()} method again if abandoned close completed successfully.
+ * Abandoned resource is referenced weakly, so it is not kept by watchdog once it is forgotten by
+ * guard and its close is completed.
+ */
+final class CloseWatchdog {
+
+  /**
+   * Closes of abandoned resources which are either in progress or completed successfully, guarded
+   * by itself.
+   */
+  private static final Map<ResourceKey, CloseTask> ABANDONED = new HashMap<>();
+  private static final ReferenceQueue<AutoCloseable> ABANDONED_QUEUE = new ReferenceQueue<>();
+
+  private CloseWatchdog() {
+  }
+
+  /**
+   * Closes {@code resource} by thread of shared pool and waits for completion of {@link
+   * AutoCloseable#close()} method. If it does not complete within {@code timeoutNanos} then
+   * closing thread is interrupted. If it does not complete within {@code timeoutNanos} after
+   * interruption either then resource is abandoned: closing thread continues to wait for {@link
+   * AutoCloseable#close()} method while this method returns. If abandoned close throws exception
+   * and nobody waits for it then that exception is passed to uncaught exception handler of closing
+   * thread. If {@code resource} was abandoned before then this method waits for its close which
+   * is still in progress or returns {@code null} if that close completed successfully. Interruption
+   * of calling thread does not stop waiting and interrupted status is restored before return.
+   * Provides no-throw guarantee.
+   *
+   * @param guard guard which guards {@code resource}.
+   * @param resource instance of {@link AutoCloseable} to close.
+   * @param timeoutNanos timeout, in nanoseconds.
+   * @return {@code null} if {@link AutoCloseable#close()} method of {@code resource} completed
+   * without throwing exception, i.e. if resource is closed, {@link CloseTimeoutException} which
+   * {@link CloseTimeoutException#isAbandoned()} returns {@code true} if resource was abandoned,
+   * {@link CloseTimeoutException} (which cause is exception thrown by {@link AutoCloseable#close()}
+   * method) if {@link AutoCloseable#close()} method threw exception after it was interrupted,
+   * otherwise exception thrown by {@link AutoCloseable#close()} method or by watchdog itself.
+   * Resource should remain guarded when result is not {@code null}.
+   */
+  static Throwable close(final AutoCloseable guard, final AutoCloseable resource,
+      final long timeoutNanos) {
+    CloseTask task;
+    try {
+      task = resumeAbandoned(resource);
+      if (task != null && task.complete(false)) {
+        if (task.exception == null) {
+          return null;
+        }
+        // Exception of abandoned close was reported already, so resource is closed again
+        task = null;
+      }
+      if (task == null) {
+        task = new CloseTask(guard, resource);
+        Holder.CLOSERS.execute(task);
+      }
+    } catch (final Throwable e) {
+      return e;
+    }
+    boolean interrupted = false;
+    try {
+      interrupted = task.await(timeoutNanos);
+      if (task.complete(false)) {
+        return task.exception;
+      }
+      task.interrupt();
+      interrupted |= task.await(timeoutNanos);
+      if (task.complete(true)) {
+        return timeoutException(resource, timeoutNanos, task.exception);
+      }
+      trackAbandoned(resource, task);
+      return new CloseTimeoutException("Close of " + resource + " did not complete within "
+          + timeoutNanos + " ns after interruption and was abandoned", null, true);
+    } catch (final Throwable e) {
+      // Task is abandoned to avoid close of resource which is still being closed
+      task.complete(true);
+      return e;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static Throwable timeoutException(final AutoCloseable resource,
+      final long timeoutNanos, final Throwable closeException) {
+    if (closeException == null) {
+      return null;
+    }
+    try {
+      return new CloseTimeoutException(
+          "Close of " + resource + " timed out after " + timeoutNanos + " ns", closeException);
+    } catch (final Throwable e) {
+      return Closeables.addSuppressed(closeException, e);
+    }
+  }
+
+  /**
+   * Takes tracked close of previously abandoned {@code resource}, so that caller waits for it.
+   *
+   * @return tracked close which is not abandoned anymore or {@code null} if {@code resource} is
+   * not tracked.
+   */
+  private static CloseTask resumeAbandoned(final AutoCloseable resource) {
+    final CloseTask task;
+    synchronized (ABANDONED) {
+      expungeAbandoned();
+      if (ABANDONED.isEmpty()) {
+        return null;
+      }
+      task = ABANDONED.remove(new ResourceKey(resource, null));
+      if (task != null) {
+        task.key = null;
+      }
+    }
+    if (task != null) {
+      task.resume();
+    }
+    return task;
+  }
+
+  private static void trackAbandoned(final AutoCloseable resource, final CloseTask task) {
+    synchronized (ABANDONED) {
+      expungeAbandoned();
+      if (task.failed()) {
+        // Resource will be closed again by retry
+        return;
+      }
+      final ResourceKey key = new ResourceKey(resource, ABANDONED_QUEUE);
+      task.key = key;
+      ABANDONED.put(key, task);
+    }
+  }
+
+  private static void untrackAbandoned(final CloseTask task) {
+    synchronized (ABANDONED) {
+      final ResourceKey key = task.key;
+      if (key != null && ABANDONED.get(key) == task) {
+        ABANDONED.remove(key);
+      }
+    }
+  }
+
+  private static void expungeAbandoned() {
+    Reference<? extends AutoCloseable> reference;
+    while ((reference = ABANDONED_QUEUE.poll()) != null) {
+      ABANDONED.remove(reference);
+    }
+  }
+
+  /**
+   * Identity of resource which does not prevent its collection.
+   */
+  private static final class ResourceKey extends WeakReference<AutoCloseable> {
+
+    private final int hash;
+
+    ResourceKey(final AutoCloseable resource, final ReferenceQueue<AutoCloseable> queue) {
+      super(resource, queue);
+      hash = System.identityHashCode(resource);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof ResourceKey)) {
+        return false;
+      }
+      final AutoCloseable resource = get();
+      return resource != null && resource == ((ResourceKey) other).get();
+    }
+  }
+
+  private static final class CloseTask implements Runnable {
+
+    private AutoCloseable guard;
+    private AutoCloseable resource;
+    private Thread thread;
+    private boolean interruptRequested;
+    private boolean done;
+    private boolean abandoned;
+    Throwable exception;
+    /**
+     * Key under which this task is tracked, guarded by {@link CloseWatchdog#ABANDONED}.
+     */
+    ResourceKey key;
+
+    CloseTask(final AutoCloseable guard, final AutoCloseable resource) {
+      this.guard = guard;
+      this.resource = resource;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        thread = Thread.currentThread();
+        if (interruptRequested) {
+          thread.interrupt();
+        }
+      }
+      Throwable closeException = null;
+      try {
+        Closeables.close(guard, resource);
+      } catch (final Throwable e) {
+        closeException = e;
+      }
+      final boolean wasAbandoned;
+      synchronized (this) {
+        if (interruptRequested) {
+          // Clears interrupted status set by watchdog, so that pooled thread is not impacted
+          Thread.interrupted();
+        }
+        thread = null;
+        // Tracked task should not keep resource reachable
+        guard = null;
+        resource = null;
+        exception = closeException;
+        done = true;
+        wasAbandoned = abandoned;
+        notifyAll();
+      }
+      if (!wasAbandoned || closeException == null) {
+        return;
+      }
+      untrackAbandoned(this);
+      final Thread currentThread = Thread.currentThread();
+      currentThread.getUncaughtExceptionHandler().uncaughtException(currentThread,
+          closeException);
+    }
+
+    /**
+     * Waits for completion of {@link AutoCloseable#close()} method ignoring interruption.
+     *
+     * @return {@code true} if calling thread was interrupted.
+     */
+    synchronized boolean await(final long timeoutNanos) {
+      boolean interrupted = false;
+      final long deadline = System.nanoTime() + timeoutNanos;
+      long remainingNanos = timeoutNanos;
+      while (!done && remainingNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        }
+        remainingNanos = deadline - System.nanoTime();
+      }
+      return interrupted;
+    }
+
+    /**
+     * Provides no-throw guarantee.
+     *
+     * @param abandon {@code true} to abandon resource if {@link AutoCloseable#close()} method is
+     * not completed.
+     * @return {@code true} if {@link AutoCloseable#close()} method is completed.
+     */
+    synchronized boolean complete(final boolean abandon) {
+      if (!done && abandon) {
+        abandoned = true;
+      }
+      return done;
+    }
+
+    /**
+     * Makes abandoned task awaited again, so that exception thrown by {@link
+     * AutoCloseable#close()} method is returned to the waiting thread.
+     */
+    synchronized void resume() {
+      abandoned = false;
+    }
+
+    synchronized boolean failed() {
+      return done && exception != null;
+    }
+
+    synchronized void interrupt() {
+      if (done) {
+        return;
+      }
+      interruptRequested = true;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+  }
+
+  private static final class Holder {
+
+    static final ThreadPoolExecutor CLOSERS = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable,
+            "close-watchdog-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Helpers shared by guards. All methods provide no-throw guarantee unless stated otherwise.
+ */
+final class Closeables {
+
+  private Closeables() {
+  }
+
+  /**
+   * Nests {@code exception} into {@code currentException} as suppressed exception the same way
+   * "try-with-resources" statement does. If {@link Throwable#addSuppressed(Throwable)} throws
+   * exception then that exception replaces {@code currentException}.
+   *
+   * @param currentException exception which was thrown first, may be {@code null}.
+   * @param exception exception to nest.
+   * @return exception which should be thrown when all resources are closed.
+   */
+  static Throwable addSuppressed(final Throwable currentException, final Throwable exception) {
+    if (currentException == null) {
+      return exception;
+    }
+    try {
+      currentException.addSuppressed(exception);
+      return currentException;
+    } catch (final Throwable suppressionException) {
+      return suppressionException;
+    }
+  }
+
+  /**
+   * Closes {@code resource} which failed to be guarded because of {@code failure}. Exception thrown
+   * by {@link AutoCloseable#close()} is nested into {@code failure} as suppressed exception. If
+   * {@link Throwable#addSuppressed(Throwable)} throws exception then that exception is thrown.
+   *
+   * @param resource resource to close, may be {@code null}.
+   * @param failure exception which caused closing of {@code resource}.
+   */
+  static void closeOnFailure(final AutoCloseable resource, final Throwable failure) {
+    if (resource == null) {
+      return;
+    }
+    try {
+      resource.close();
+    } catch (final Throwable closeException) {
+      failure.addSuppressed(closeException);
+    }
+  }
+
+  /**
+   * Invokes {@link AutoCloseable#close()} method of guarded {@code resource}, records latency of
+   * close (see {@link CloseMetrics}), emits JFR event (see {@link CloseEvents}) and notifies {@link
+   * GuardListener} about result. Provides the same exception safety as {@link
+   * AutoCloseable#close()} method of {@code resource}.
+   *
+   * @param guard guard which guards {@code resource}.
+   * @param resource instance of {@link AutoCloseable} to close.
+   * @throws Exception the same exception as {@link AutoCloseable#close()} method throws.
+   */
+  static void close(final AutoCloseable guard, final AutoCloseable resource) throws Exception {
+    if (GuardListeners.LISTENER == null && !CloseEvents.isEnabled()) {
+      CloseMetrics.close(resource);
+      return;
+    }
+    closeObserved(guard, resource);
+  }
+
+  /**
+   * Notifies {@link GuardListener} that {@code resource} stopped being guarded without being
+   * closed.
+   *
+   * @param guard guard which guarded {@code resource}.
+   * @param resource released resource, may be {@code null}.
+   */
+  static void released(final AutoCloseable guard, final AutoCloseable resource) {
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.released(guard, resource);
+    }
+  }
+
+  /**
+   * Throws given exception which is expected to be unchecked.
+   *
+   * @param exception instance of {@link RuntimeException} or of {@link Error}.
+   * @return never returns, declared to support {@code throw rethrowUnchecked(e);} statement.
+   */
+  static RuntimeException rethrowUnchecked(final Throwable exception) {
+    if (exception instanceof RuntimeException) {
+      throw (RuntimeException) exception;
+    }
+    if (exception instanceof Error) {
+      throw (Error) exception;
+    }
+    throw new AssertionError("Should never come here", exception);
+  }
+
+  /**
+   * Throws given exception.
+   *
+   * @param exception instance of {@link Exception} or of {@link Error}.
+   * @throws Exception always, {@code exception} itself if it is instance of {@link Exception}.
+   */
+  static void rethrow(final Throwable exception) throws Exception {
+    if (exception instanceof Error) {
+      throw (Error) exception;
+    }
+    throw (Exception) exception;
+  }
+
+  private static void closeObserved(final AutoCloseable guard, final AutoCloseable resource)
+      throws Exception {
+    final Object event = CloseEvents.beginResourceClose();
+    try {
+      CloseMetrics.close(resource);
+    } catch (final Throwable e) {
+      CloseEvents.endResourceClose(event, guard, resource, true);
+      if (GuardListeners.LISTENER != null) {
+        GuardListeners.closeFailed(guard, resource, e);
+      }
+      throw e;
+    }
+    CloseEvents.endResourceClose(event, guard, resource, false);
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.closed(guard, resource);
+    }
+  }
+
+  /**
+   * Invokes {@link AutoCloseable#close()} method of {@code closeable} using {@code executor}.
+   * Provides strong exception safety.
+   *
+   * @param closeable instance of {@link AutoCloseable} to close.
+   * @param executor executor to run {@link AutoCloseable#close()} method.
+   * @return future which completes when {@link AutoCloseable#close()} method completes.
+   * @throws java.util.concurrent.RejectedExecutionException if {@code executor} rejects task.
+   */
+  static Future<Void> closeAsync(final AutoCloseable closeable, final Executor executor) {
+    final FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        closeable.close();
+        return null;
+      }
+    });
+    executor.execute(task);
+    return task;
+  }
+}
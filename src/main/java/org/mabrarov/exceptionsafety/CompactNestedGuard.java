@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.Arrays;
+
+/**
+ * Variant of {@link NestedGuard} optimized for small number of guarded resources. First {@link
+ * CompactNestedGuard#INLINE_CAPACITY} resources are stored in fields of this instance, so guarding
+ * of up to {@link CompactNestedGuard#INLINE_CAPACITY} resources requires no allocation except
+ * allocation of this instance. Remaining resources are stored in array which is allocated on demand.
+ * Provides the same contract and exception safety guarantees as {@link NestedGuard}.
+ */
+public class CompactNestedGuard implements AutoCloseable {
+
+  /**
+   * Number of resources which are stored without allocation of array.
+   */
+  public static final int INLINE_CAPACITY = 8;
+
+  private static final int DEFAULT_SPILL_CAPACITY = 8;
+  private static final int MAX_SPILL_CAPACITY = Integer.MAX_VALUE - 8 - INLINE_CAPACITY;
+
+  private AutoCloseable item0;
+  private AutoCloseable item1;
+  private AutoCloseable item2;
+  private AutoCloseable item3;
+  private AutoCloseable item4;
+  private AutoCloseable item5;
+  private AutoCloseable item6;
+  private AutoCloseable item7;
+  private AutoCloseable[] spill;
+  private int size;
+
+  /**
+   * Same as {@link NestedGuard#add(AutoCloseable)}. Provides strong exception safety. If there is
+   * free capacity (always when {@link CompactNestedGuard#size()} is less than {@link
+   * CompactNestedGuard#INLINE_CAPACITY}) then provides no-throw guarantee and performs no
+   * allocation.
+   *
+   * @param resource instance of {@link AutoCloseable} to be guarded, may be {@code null}. If {@code
+   * null} then {@link CompactNestedGuard#size()} is still incremented.
+   * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
+   */
+  public <T extends AutoCloseable> T add(final T resource) {
+    if (size < INLINE_CAPACITY) {
+      setItem(size++, resource);
+    } else {
+      final AutoCloseable[] currentSpill = spill;
+      if (currentSpill != null && size - INLINE_CAPACITY < currentSpill.length) {
+        currentSpill[size++ - INLINE_CAPACITY] = resource;
+      } else {
+        try {
+          addItem(resource);
+        } catch (final Throwable e) {
+          Closeables.closeOnFailure(resource, e);
+          throw Closeables.rethrowUnchecked(e);
+        }
+      }
+    }
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.added(this, resource);
+    }
+    return resource;
+  }
+
+  /**
+   * Retrieves number of guarded instances of {@link AutoCloseable}. Provides no-throw guarantee.
+   *
+   * @return number of of guarded instances of {@link AutoCloseable}.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Same as {@link NestedGuard#set(int, AutoCloseable)}.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}. Should be &gt;= 0 and
+   * &lt; {@link CompactNestedGuard#size()}.
+   * @param resource new instance of {@link AutoCloseable} to guard, may be {@code null}.
+   * @throws IndexOutOfBoundsException if {@code index} is &lt; 0 or &gt;= {@link
+   * CompactNestedGuard#size()}.
+   */
+  public void set(final int index, final AutoCloseable resource) {
+    checkIndex(index);
+    final AutoCloseable previousItem = getItem(index);
+    setItem(index, resource);
+    if (previousItem != resource) {
+      Closeables.released(this, previousItem);
+      if (GuardListeners.LISTENER != null) {
+        GuardListeners.added(this, resource);
+      }
+    }
+  }
+
+  /**
+   * Same as {@link NestedGuard#get(int)}.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}. Should be &gt;= 0 and
+   * &lt; {@link CompactNestedGuard#size()}.
+   * @return existing guarded instance of {@link AutoCloseable} with given {@code index}, maybe
+   * {@code null}.
+   * @throws IndexOutOfBoundsException if {@code index} is &lt; 0 or &gt;= {@link
+   * CompactNestedGuard#size()}.
+   */
+  public AutoCloseable get(final int index) {
+    checkIndex(index);
+    return getItem(index);
+  }
+
+  /**
+   * Resets this instance to guard nothing. Provides no-throw guarantee. Resources which were
+   * guarded before are not impacted and are forgotten.
+   */
+  public void release() {
+    if (GuardListeners.LISTENER != null) {
+      for (int i = 0; i < size; ++i) {
+        Closeables.released(this, getItem(i));
+      }
+    }
+    item0 = null;
+    item1 = null;
+    item2 = null;
+    item3 = null;
+    item4 = null;
+    item5 = null;
+    item6 = null;
+    item7 = null;
+    spill = null;
+    size = 0;
+  }
+
+  /**
+   * Same as {@link NestedGuard#release(int)}.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}. Should be &gt;= 0 and
+   * &lt; {@link CompactNestedGuard#size()}.
+   * @return instance of {@link AutoCloseable} which was guarded by item with given {@code index},
+   * may be {@code null}.
+   * @throws IndexOutOfBoundsException if {@code index} is &lt; 0 or &gt;= {@link
+   * CompactNestedGuard#size()}.
+   */
+  public AutoCloseable release(final int index) {
+    checkIndex(index);
+    final AutoCloseable tmp = getItem(index);
+    setItem(index, null);
+    Closeables.released(this, tmp);
+    return tmp;
+  }
+
+  /**
+   * Same as {@link NestedGuard#remove(int)}.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}. Should be &gt;= 0 and
+   * &lt; {@link CompactNestedGuard#size()}.
+   * @return instance of {@link AutoCloseable} which was guarded by item with given {@code index},
+   * may be {@code null}.
+   * @throws IndexOutOfBoundsException if {@code index} is &lt; 0 or &gt;= {@link
+   * CompactNestedGuard#size()}.
+   */
+  public AutoCloseable remove(final int index) {
+    checkIndex(index);
+    final AutoCloseable removedItem = getItem(index);
+    if (size == 1) {
+      release();
+      return removedItem;
+    }
+    for (int i = index + 1; i < size; ++i) {
+      setItem(i - 1, getItem(i));
+    }
+    setItem(--size, null);
+    Closeables.released(this, removedItem);
+    return removedItem;
+  }
+
+  /**
+   * Swaps this instance with another instance. Provides no-throw guarantee.
+   *
+   * @param other another instance to swap with.
+   */
+  public void swap(final CompactNestedGuard other) {
+    AutoCloseable tmp = item0;
+    item0 = other.item0;
+    other.item0 = tmp;
+    tmp = item1;
+    item1 = other.item1;
+    other.item1 = tmp;
+    tmp = item2;
+    item2 = other.item2;
+    other.item2 = tmp;
+    tmp = item3;
+    item3 = other.item3;
+    other.item3 = tmp;
+    tmp = item4;
+    item4 = other.item4;
+    other.item4 = tmp;
+    tmp = item5;
+    item5 = other.item5;
+    other.item5 = tmp;
+    tmp = item6;
+    item6 = other.item6;
+    other.item6 = tmp;
+    tmp = item7;
+    item7 = other.item7;
+    other.item7 = tmp;
+    final AutoCloseable[] thisSpill = spill;
+    spill = other.spill;
+    other.spill = thisSpill;
+    final int thisSize = size;
+    size = other.size;
+    other.size = thisSize;
+  }
+
+  /**
+   * Same as {@link NestedGuard#close()}. Resources are closed in LIFO order, resources which
+   * {@link AutoCloseable#close()} method failed remain guarded and multiple exceptions are nested as
+   * suppressed.
+   *
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  @Override
+  public void close() throws Exception {
+    // All operations except AutoCloseable#close are assumed to provide no-throw guarantee
+    if (size == 0) {
+      release();
+      return;
+    }
+    final Object event = CloseEvents.beginGuardClose();
+    final int itemCount = size;
+    Throwable currentException = null;
+    for (int i = size - 1; i >= 0; --i) {
+      final AutoCloseable item = getItem(i);
+      if (item == null) {
+        continue;
+      }
+      try {
+        Closeables.close(this, item);
+        setItem(i, null);
+      } catch (final Throwable closeException) {
+        currentException = Closeables.addSuppressed(currentException, closeException);
+      }
+    }
+    if (currentException == null) {
+      release();
+      CloseEvents.endGuardClose(event, this, itemCount, false);
+      return;
+    }
+    removeNullItems();
+    CloseEvents.endGuardClose(event, this, itemCount, true);
+    Closeables.rethrow(currentException);
+  }
+
+  /**
+   * Marked as "protected" for testing purposes only. Should provide strong exception safety.
+   * Invoked by {@link CompactNestedGuard#add(AutoCloseable)} only when there is no free capacity
+   * for new item.
+   *
+   * @param item new item to be added at the end of guarded items, i.e. at {@link
+   * CompactNestedGuard#size()} index.
+   */
+  protected void addItem(final AutoCloseable item) {
+    final int spillSize = size - INLINE_CAPACITY;
+    if (spill == null) {
+      spill = new AutoCloseable[DEFAULT_SPILL_CAPACITY];
+    } else if (spillSize == spill.length) {
+      if (spillSize >= MAX_SPILL_CAPACITY) {
+        throw new OutOfMemoryError("Required capacity is too large: " + (size + 1));
+      }
+      final int capacity = spillSize + (spillSize >> 1);
+      spill = Arrays.copyOf(spill,
+          capacity < 0 || capacity > MAX_SPILL_CAPACITY ? MAX_SPILL_CAPACITY : capacity);
+    }
+    spill[spillSize] = item;
+    ++size;
+  }
+
+  private AutoCloseable getItem(final int index) {
+    switch (index) {
+      case 0:
+        return item0;
+      case 1:
+        return item1;
+      case 2:
+        return item2;
+      case 3:
+        return item3;
+      case 4:
+        return item4;
+      case 5:
+        return item5;
+      case 6:
+        return item6;
+      case 7:
+        return item7;
+      default:
+        return spill[index - INLINE_CAPACITY];
+    }
+  }
+
+  private void setItem(final int index, final AutoCloseable item) {
+    switch (index) {
+      case 0:
+        item0 = item;
+        break;
+      case 1:
+        item1 = item;
+        break;
+      case 2:
+        item2 = item;
+        break;
+      case 3:
+        item3 = item;
+        break;
+      case 4:
+        item4 = item;
+        break;
+      case 5:
+        item5 = item;
+        break;
+      case 6:
+        item6 = item;
+        break;
+      case 7:
+        item7 = item;
+        break;
+      default:
+        spill[index - INLINE_CAPACITY] = item;
+        break;
+    }
+  }
+
+  /**
+   * Removes {@code null} items, i.e. successfully closed items, keeping the order of remaining
+   * items. Provides no-throw guarantee.
+   */
+  private void removeNullItems() {
+    int newSize = 0;
+    for (int i = 0; i < size; ++i) {
+      final AutoCloseable item = getItem(i);
+      if (item != null) {
+        setItem(newSize++, item);
+      }
+    }
+    for (int i = newSize; i < size; ++i) {
+      setItem(i, null);
+    }
+    size = newSize;
+  }
+
+  private void checkIndex(final int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+}
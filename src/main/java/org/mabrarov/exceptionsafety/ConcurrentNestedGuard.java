@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe counterpart of {@link NestedGuard} which supports lock-free adding of resources from
+ * multiple threads. Guarded resources are kept in lock-free stack (Treiber stack), so adding of
+ * resource requires single allocation and single successful CAS.<br/> Once {@link
+ * ConcurrentNestedGuard#close()} is started, this guard is closed and resource added after that is
+ * closed by the adding thread, so resource cannot leak because of race between adding and closing.
+ */
+public class ConcurrentNestedGuard implements AutoCloseable {
+
+  private static final class Node {
+
+    final AutoCloseable resource;
+    Node next;
+
+    Node(final AutoCloseable resource) {
+      this.resource = resource;
+    }
+  }
+
+  private static final Node CLOSED = new Node(null);
+
+  private final AtomicReference<Node> head = new AtomicReference<>();
+  private final AtomicReference<Node> failed = new AtomicReference<>();
+
+  /**
+   * Guards given resource. Thread-safe and lock-free. Provides strong exception safety. If throws
+   * exception when failed to add new item then {@code resource} is closed by invocation of its
+   * {@link AutoCloseable#close()} method and exception thrown by that method is added as suppressed
+   * exception.
+   *
+   * @param resource instance of {@link AutoCloseable} to be guarded, may be {@code null}.
+   * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
+   * @throws IllegalStateException if this guard is closed, i.e. {@link
+   * ConcurrentNestedGuard#close()} was started before. {@code resource} is closed by the calling
+   * thread before this exception is thrown.
+   */
+  public <T extends AutoCloseable> T add(final T resource) {
+    final Node node;
+    try {
+      node = new Node(resource);
+    } catch (final Throwable e) {
+      Closeables.closeOnFailure(resource, e);
+      throw Closeables.rethrowUnchecked(e);
+    }
+    Node current;
+    do {
+      current = head.get();
+      if (current == CLOSED) {
+        final IllegalStateException closedException = new IllegalStateException(
+            "Guard is closed");
+        Closeables.closeOnFailure(resource, closedException);
+        throw closedException;
+      }
+      node.next = current;
+    } while (!head.compareAndSet(current, node));
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.added(this, resource);
+    }
+    return resource;
+  }
+
+  /**
+   * Checks if this guard is closed. Thread-safe and provides no-throw guarantee.
+   *
+   * @return {@code true} if {@link ConcurrentNestedGuard#close()} was started.
+   */
+  public boolean isClosed() {
+    return head.get() == CLOSED;
+  }
+
+  /**
+   * Resets this instance to guard nothing unless this guard is closed. Thread-safe and provides
+   * no-throw guarantee. Resources which were guarded before are not impacted and are forgotten.
+   *
+   * @return {@code true} if resources were released, {@code false} if this guard is closed and so
+   * guarded resources are owned by {@link ConcurrentNestedGuard#close()}.
+   */
+  public boolean release() {
+    Node current;
+    do {
+      current = head.get();
+      if (current == CLOSED) {
+        return false;
+      }
+    } while (!head.compareAndSet(current, null));
+    if (GuardListeners.LISTENER != null) {
+      for (Node node = current; node != null; node = node.next) {
+        Closeables.released(this, node.resource);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Closes this guard and all guarded instances of {@link AutoCloseable} in the order opposite to
+   * order of adding (for resources added by multiple threads concurrently the order is defined by
+   * the order of their successful adding). Thread-safe. Subsequent attempts to add resource fail.
+   * Provides the same exception safety as {@link NestedGuard#close()}: resources which {@link
+   * AutoCloseable#close()} method failed remain guarded and are closed again by subsequent calls
+   * of this method, multiple exceptions are nested as suppressed.<br/> Each resource is closed by
+   * single thread only. If multiple threads close this guard concurrently then each resource is
+   * closed by one of them and the others may return before that resource is closed.
+   *
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  @Override
+  public void close() throws Exception {
+    Node node = head.getAndSet(CLOSED);
+    if (node == CLOSED) {
+      // Resources which failed to close during previous calls
+      node = failed.getAndSet(null);
+    }
+    if (node == null) {
+      return;
+    }
+    final Object event = CloseEvents.beginGuardClose();
+    int itemCount = 0;
+    Throwable currentException = null;
+    Node failedHead = null;
+    Node failedTail = null;
+    while (node != null) {
+      final Node next = node.next;
+      ++itemCount;
+      if (node.resource != null) {
+        try {
+          Closeables.close(this, node.resource);
+        } catch (final Throwable closeException) {
+          currentException = Closeables.addSuppressed(currentException, closeException);
+          node.next = null;
+          if (failedTail == null) {
+            failedHead = node;
+          } else {
+            failedTail.next = node;
+          }
+          failedTail = node;
+        }
+      }
+      node = next;
+    }
+    if (currentException == null) {
+      CloseEvents.endGuardClose(event, this, itemCount, false);
+      return;
+    }
+    CloseEvents.endGuardClose(event, this, itemCount, true);
+    Node current;
+    do {
+      current = failed.get();
+      failedTail.next = current;
+    } while (!failed.compareAndSet(current, failedHead));
+    Closeables.rethrow(currentException);
+  }
+}
@@ -15,6 +15,10 @@
  */
 package org.mabrarov.exceptionsafety;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 public class Guard implements AutoCloseable {
 
   private AutoCloseable resource;
@@ -28,7 +32,24 @@ public class Guard implements AutoCloseable {
    * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
    */
   public <T extends AutoCloseable> T set(final T resource) {
+    return set(resource, this);
+  }
+
+  /**
+   * Same as {@link Guard#set(AutoCloseable)}, but reports events with given guard, so that guard
+   * which guards resource by means of this instance (e.g. {@link PairGuard}) is reported.
+   *
+   * @param owner guard to report events with.
+   */
+  <T extends AutoCloseable> T set(final T resource, final AutoCloseable owner) {
+    final AutoCloseable previousResource = this.resource;
     this.resource = resource;
+    if (previousResource != resource) {
+      Closeables.released(owner, previousResource);
+      if (GuardListeners.LISTENER != null) {
+        GuardListeners.added(owner, resource);
+      }
+    }
     return resource;
   }
 
@@ -48,8 +69,18 @@ public class Guard implements AutoCloseable {
    * @return instance of {@link AutoCloseable} which was guarded, may be {@code null}.
    */
   public AutoCloseable release() {
+    return release(this);
+  }
+
+  /**
+   * Same as {@link Guard#release()}, but reports event with given guard.
+   *
+   * @param owner guard to report event with.
+   */
+  AutoCloseable release(final AutoCloseable owner) {
     final AutoCloseable tmp = resource;
     resource = null;
+    Closeables.released(owner, tmp);
     return tmp;
   }
 
@@ -64,6 +95,87 @@ public class Guard implements AutoCloseable {
     other.resource = thisResource;
   }
 
+  /**
+   * Passes guarded instance of {@link AutoCloseable} to {@code closer} to be closed in background
+   * and resets this instance to guard nothing. If nothing ({@code null}) is guarded then does
+   * nothing. Provides strong exception safety.
+   *
+   * @param closer instance of {@link BackgroundCloser} to close guarded instance of {@link
+   * AutoCloseable}.
+   * @throws java.util.concurrent.RejectedExecutionException if {@code closer} rejects resource.
+   * Guarded resource is not impacted in this case.
+   */
+  public void closeInBackground(final BackgroundCloser closer) {
+    if (resource == null) {
+      return;
+    }
+    closer.submit(resource);
+    final AutoCloseable submittedResource = resource;
+    resource = null;
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.released(this, submittedResource);
+    }
+  }
+
+  /**
+   * Closes this guard asynchronously, i.e. invokes {@link Guard#close()} method using given {@code
+   * executor}. Resources are closed the same way (order, handling of failed resources) as {@link
+   * Guard#close()} method does. This guard should not be used until returned future is done.
+   * Provides strong exception safety.
+   *
+   * @param executor executor to run {@link Guard#close()} method.
+   * @return future which completes when {@link Guard#close()} method completes. If {@link
+   * Guard#close()} method throws exception then {@link Future#get()} method of returned future
+   * throws {@link java.util.concurrent.ExecutionException} which cause is the same exception
+   * (including its suppressed exceptions) as {@link Guard#close()} method throws.
+   * @throws java.util.concurrent.RejectedExecutionException if {@code executor} rejects task. Guarded
+   * resources are not impacted in this case.
+   */
+  public Future<Void> closeAsync(final Executor executor) {
+    return Closeables.closeAsync(this, executor);
+  }
+
+  /**
+   * Closes guarded instance of {@link AutoCloseable} the same way as {@link Guard#close()} method
+   * does, but limits time of {@link AutoCloseable#close()} method of guarded instance. Guarded
+   * instance is closed by thread of pool shared by all guards while calling thread waits. If
+   * {@link AutoCloseable#close()} method does not complete within given timeout then closing
+   * thread is interrupted. If {@link AutoCloseable#close()} method throws exception after it was
+   * interrupted then this guard instance remains guarding instance of {@link AutoCloseable} and
+   * {@link CloseTimeoutException} is thrown. If {@link AutoCloseable#close()} method does not
+   * complete within given timeout after interruption either then guarded instance is abandoned:
+   * this guard instance remains guarding it and {@link CloseTimeoutException} which {@link
+   * CloseTimeoutException#isAbandoned()} returns {@code true} is thrown, while closing thread
+   * continues to wait for {@link AutoCloseable#close()} method. Abandoned instance can be closed
+   * again by this method, which waits for abandoned close still in progress instead of invoking
+   * {@link AutoCloseable#close()} method concurrently, while {@link Guard#close()} method invokes
+   * {@link AutoCloseable#close()} method again regardless of abandoned close. Provides basic
+   * exception safety.
+   *
+   * @param timeout maximum time to wait for {@link AutoCloseable#close()} method of guarded
+   * instance, should be &gt; 0.
+   * @param unit time unit of {@code timeout}.
+   * @throws IllegalArgumentException if {@code timeout} is &lt;= 0.
+   * @throws CloseTimeoutException if {@link AutoCloseable#close()} method of guarded instance
+   * threw exception after timeout expired (cause of {@link CloseTimeoutException} is exception
+   * thrown by {@link AutoCloseable#close()} method) or if guarded instance was abandoned.
+   * @throws Exception if {@link AutoCloseable#close()} method of guarded instance of {@link
+   * AutoCloseable} throws {@link Exception} before timeout expires.
+   */
+  public void closeWithTimeout(final long timeout, final TimeUnit unit) throws Exception {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("Timeout should be positive: " + timeout);
+    }
+    if (resource == null) {
+      return;
+    }
+    final Throwable closeException = CloseWatchdog.close(this, resource, unit.toNanos(timeout));
+    if (closeException != null) {
+      Closeables.rethrow(closeException);
+    }
+    resource = null;
+  }
+
   /**
    * Closes guarded instance of {@link AutoCloseable} by invocation of its {@link
    * AutoCloseable#close()} method. Provides basic exception safety. If no exception is thrown by
@@ -85,7 +197,28 @@ public class Guard implements AutoCloseable {
     if (resource == null) {
       return;
     }
-    resource.close();
+    final Object event = CloseEvents.beginGuardClose();
+    try {
+      closeResource(this);
+    } catch (final Throwable e) {
+      CloseEvents.endGuardClose(event, this, 1, true);
+      throw e;
+    }
+    CloseEvents.endGuardClose(event, this, 1, false);
+  }
+
+  /**
+   * Same as {@link Guard#close()}, but reports events with given guard and does not emit event of
+   * guard close, so that guard which guards resource by means of this instance (e.g. {@link
+   * PairGuard}) is reported.
+   *
+   * @param owner guard to report events with.
+   */
+  void closeResource(final AutoCloseable owner) throws Exception {
+    if (resource == null) {
+      return;
+    }
+    Closeables.close(owner, resource);
     resource = null;
   }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+/**
+ * Listener of guard events. Implementations are registered globally using {@link
+ * java.util.ServiceLoader} mechanism, i.e. by listing implementation class in {@code
+ * META-INF/services/org.mabrarov.exceptionsafety.GuardListener} resource, and are loaded once, when
+ * guards are used for the first time. If no listener is registered then guards do not pay for
+ * notification, because the check of registered listener is folded by JIT compiler.
+ * <p>
+ * Events are reported by {@link Guard}, {@link PairGuard}, {@link NestedGuard} and its variants
+ * ({@link CompactNestedGuard}, {@link ConcurrentNestedGuard}, {@link HandleNestedGuard}, {@link
+ * IdentityNestedGuard} and {@link SegmentedNestedGuard}). {@link ShardedNestedGuard} and {@link
+ * OwnerBoundGuard} guard resources by means of internal instances of {@link NestedGuard}, so
+ * events are reported with those internal instances. Swapping of guards is not reported.
+ * <p>
+ * Methods of listener are called by thread which uses guard, except closing of resources by other
+ * threads: {@link NestedGuard#closeInParallel(java.util.concurrent.Executor, int)} calls {@link
+ * GuardListener#closed(AutoCloseable, AutoCloseable)} and {@link
+ * GuardListener#closeFailed(AutoCloseable, AutoCloseable, Throwable)} by threads of given executor,
+ * {@link Guard#closeWithTimeout(long, java.util.concurrent.TimeUnit)} and {@link
+ * NestedGuard#closeWithTimeout(long, long, java.util.concurrent.TimeUnit)} call them by threads of
+ * shared pool, background and asynchronous closes call them by threads which close resources. So
+ * single listener is called concurrently by multiple threads, even for the same guard, and
+ * implementations must be thread-safe. Implementations should be fast, because they are called
+ * on hot paths of guards. Exceptions thrown by listener are ignored.
+ */
+public interface GuardListener {
+
+  /**
+   * Called when {@code resource} is added to {@link NestedGuard} or is set to {@link Guard}.
+   *
+   * @param guard guard which guards {@code resource}.
+   * @param resource guarded resource.
+   */
+  void added(AutoCloseable guard, AutoCloseable resource);
+
+  /**
+   * Called when {@code resource} stops being guarded without being closed, i.e. when it is released
+   * or removed from guard or when it is replaced with another resource.
+   *
+   * @param guard guard which guarded {@code resource}.
+   * @param resource released resource.
+   */
+  void released(AutoCloseable guard, AutoCloseable resource);
+
+  /**
+   * Called when {@link AutoCloseable#close()} method of {@code resource} completes without throwing
+   * exception when guard is closed.
+   *
+   * @param guard guard which guarded {@code resource}.
+   * @param resource closed resource.
+   */
+  void closed(AutoCloseable guard, AutoCloseable resource);
+
+  /**
+   * Called when {@link AutoCloseable#close()} method of {@code resource} throws exception when guard
+   * is closed. Resource remains guarded.
+   *
+   * @param guard guard which guards {@code resource}.
+   * @param resource resource which failed to close.
+   * @param exception exception thrown by {@link AutoCloseable#close()} method of {@code resource}.
+   */
+  void closeFailed(AutoCloseable guard, AutoCloseable resource, Throwable exception);
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Dispatches events to globally registered instances of {@link GuardListener} and to built-in
+ * listeners of {@link GuardStatistics} and of {@link LeakDetector}, if they are enabled. Callers
+ * are expected to check {@link #LISTENER} for {@code null} before calling notification methods, so
+ * that the check is folded by JIT compiler when no listener is registered. All methods provide no-throw guarantee
+ * unless stated otherwise.
+ */
+final class GuardListeners {
+
+  /**
+   * Registered listener or {@code null} if no listener is registered.
+   */
+  static final GuardListener LISTENER = load();
+
+  private GuardListeners() {
+  }
+
+  /**
+   * Notifies listener that {@code resource} is guarded. Does nothing if {@code resource} is {@code
+   * null}.
+   */
+  static void added(final AutoCloseable guard, final AutoCloseable resource) {
+    if (resource == null) {
+      return;
+    }
+    try {
+      LISTENER.added(guard, resource);
+    } catch (final Throwable ignored) {
+      // Exceptions thrown by listener are ignored
+    }
+  }
+
+  /**
+   * Notifies listener that {@code resource} is not guarded anymore. Does nothing if {@code
+   * resource} is {@code null}.
+   */
+  static void released(final AutoCloseable guard, final AutoCloseable resource) {
+    if (resource == null) {
+      return;
+    }
+    try {
+      LISTENER.released(guard, resource);
+    } catch (final Throwable ignored) {
+      // Exceptions thrown by listener are ignored
+    }
+  }
+
+  static void closed(final AutoCloseable guard, final AutoCloseable resource) {
+    try {
+      LISTENER.closed(guard, resource);
+    } catch (final Throwable ignored) {
+      // Exceptions thrown by listener are ignored
+    }
+  }
+
+  static void closeFailed(final AutoCloseable guard, final AutoCloseable resource,
+      final Throwable exception) {
+    try {
+      LISTENER.closeFailed(guard, resource, exception);
+    } catch (final Throwable ignored) {
+      // Exceptions thrown by listener are ignored
+    }
+  }
+
+  private static GuardListener load() {
+    final List<GuardListener> listeners = new ArrayList<>();
+    try {
+      for (final GuardListener listener : ServiceLoader
+          .load(GuardListener.class, GuardListener.class.getClassLoader())) {
+        listeners.add(listener);
+      }
+    } catch (final Throwable ignored) {
+      // Misconfigured listeners should not break guards
+    }
+    try {
+      if (Boolean.getBoolean(GuardStatistics.ENABLED_PROPERTY)) {
+        listeners.add(GuardStatistics.register());
+      }
+    } catch (final Throwable ignored) {
+      // Statistics should not break guards
+    }
+    if (LeakDetector.isEnabled()) {
+      listeners.add(LeakDetector.LISTENER);
+    }
+    switch (listeners.size()) {
+      case 0:
+        return null;
+      case 1:
+        return listeners.get(0);
+      default:
+        return new CompositeListener(listeners.toArray(new GuardListener[0]));
+    }
+  }
+
+  private static final class CompositeListener implements GuardListener {
+
+    private final GuardListener[] listeners;
+
+    CompositeListener(final GuardListener[] listeners) {
+      this.listeners = listeners;
+    }
+
+    @Override
+    public void added(final AutoCloseable guard, final AutoCloseable resource) {
+      for (final GuardListener listener : listeners) {
+        try {
+          listener.added(guard, resource);
+        } catch (final Throwable ignored) {
+          // Exceptions thrown by listener are ignored
+        }
+      }
+    }
+
+    @Override
+    public void released(final AutoCloseable guard, final AutoCloseable resource) {
+      for (final GuardListener listener : listeners) {
+        try {
+          listener.released(guard, resource);
+        } catch (final Throwable ignored) {
+          // Exceptions thrown by listener are ignored
+        }
+      }
+    }
+
+    @Override
+    public void closed(final AutoCloseable guard, final AutoCloseable resource) {
+      for (final GuardListener listener : listeners) {
+        try {
+          listener.closed(guard, resource);
+        } catch (final Throwable ignored) {
+          // Exceptions thrown by listener are ignored
+        }
+      }
+    }
+
+    @Override
+    public void closeFailed(final AutoCloseable guard, final AutoCloseable resource,
+        final Throwable exception) {
+      for (final GuardListener listener : listeners) {
+        try {
+          listener.closeFailed(guard, resource, exception);
+        } catch (final Throwable ignored) {
+          // Exceptions thrown by listener are ignored
+        }
+      }
+    }
+  }
+}
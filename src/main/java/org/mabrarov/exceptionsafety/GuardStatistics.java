@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide statistics of guards, exposed via JMX. Statistics are collected by built-in {@link
+ * GuardListener}, which is registered only if {@value #ENABLED_PROPERTY} system property is set to
+ * {@code true} at startup, so guards do not pay for statistics which are not enabled. Counters are
+ * striped (see {@link StripedCounter}), so updating threads do not contend.<br/> Thread-safe.
+ */
+public final class GuardStatistics implements GuardStatisticsMXBean {
+
+  /**
+   * Name of system property which enables statistics at startup.
+   */
+  public static final String ENABLED_PROPERTY = "org.mabrarov.exceptionsafety.statistics";
+
+  /**
+   * Name under which statistics are registered in platform MBean server.
+   */
+  public static final String OBJECT_NAME = "org.mabrarov.exceptionsafety:type=GuardStatistics";
+
+  static final int SLOWEST_RESOURCE_TYPE_COUNT = 10;
+
+  private static final long SAMPLE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final StripedCounter addedCount = new StripedCounter();
+  private final StripedCounter releasedCount = new StripedCounter();
+  private final StripedCounter closedCount = new StripedCounter();
+  private final StripedCounter failedCloseCount = new StripedCounter();
+  private final AtomicReference<SampleWindow> sampleWindow =
+      new AtomicReference<>(new SampleWindow(new Sample(System.nanoTime(), 0)));
+  private final GuardListener listener = new Listener();
+  private final long samplePeriodNanos;
+
+  GuardStatistics() {
+    this(SAMPLE_PERIOD_NANOS);
+  }
+
+  GuardStatistics(final long samplePeriodNanos) {
+    this.samplePeriodNanos = samplePeriodNanos;
+  }
+
+  /**
+   * Creates statistics and registers them in platform MBean server. Failure to register is
+   * ignored, so statistics are still collected.
+   *
+   * @return listener which collects statistics.
+   */
+  static GuardListener register() {
+    final GuardStatistics statistics = new GuardStatistics();
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(statistics, new ObjectName(OBJECT_NAME));
+    } catch (final Exception ignored) {
+      // Statistics are best effort and should not break guards
+    }
+    return statistics.listener;
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return listener which collects statistics.
+   */
+  GuardListener getListener() {
+    return listener;
+  }
+
+  @Override
+  public long getHeldResourceCount() {
+    // Counters are read in the order opposite to the order of updates, so that the result is not
+    // negative even if counters are updated concurrently
+    final long removedCount = closedCount.sum() + releasedCount.sum();
+    return Math.max(addedCount.sum() - removedCount, 0);
+  }
+
+  @Override
+  public long getAddedCount() {
+    return addedCount.sum();
+  }
+
+  @Override
+  public long getReleasedCount() {
+    return releasedCount.sum();
+  }
+
+  @Override
+  public long getClosedCount() {
+    return closedCount.sum();
+  }
+
+  @Override
+  public long getFailedCloseCount() {
+    return failedCloseCount.sum();
+  }
+
+  @Override
+  public double getCloseFailureRate() {
+    final long failed = failedCloseCount.sum();
+    final long total = failed + closedCount.sum();
+    return total == 0 ? 0 : (double) failed / total;
+  }
+
+  @Override
+  public double getCloseThroughput() {
+    // Sample window is moved by readers instead of closes, so that closes do not pay for sampling
+    final Sample start = sampleCloses().start;
+    final long count = closedCount.sum() + failedCloseCount.sum();
+    final long elapsedNanos = System.nanoTime() - start.nanos;
+    if (elapsedNanos <= 0) {
+      return 0;
+    }
+    return (double) (count - start.count) * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+  }
+
+  @Override
+  public boolean isCloseMetricsEnabled() {
+    return CloseMetrics.isEnabled();
+  }
+
+  @Override
+  public void setCloseMetricsEnabled(final boolean enabled) {
+    CloseMetrics.setEnabled(enabled);
+  }
+
+  @Override
+  public String[] getSlowestResourceTypes() {
+    final List<ResourceType> resourceTypes = new ArrayList<>();
+    for (final Map.Entry<String, CloseLatencyHistogram> entry : CloseMetrics.getHistograms()
+        .entrySet()) {
+      resourceTypes.add(new ResourceType(entry.getKey(), entry.getValue()));
+    }
+    Collections.sort(resourceTypes, new Comparator<ResourceType>() {
+      @Override
+      public int compare(final ResourceType first, final ResourceType second) {
+        return Long.compare(second.p99Nanos, first.p99Nanos);
+      }
+    });
+    final int count = Math.min(resourceTypes.size(), SLOWEST_RESOURCE_TYPE_COUNT);
+    final String[] descriptions = new String[count];
+    for (int i = 0; i < count; ++i) {
+      descriptions[i] = resourceTypes.get(i).toString();
+    }
+    return descriptions;
+  }
+
+  /**
+   * Moves sample window if its end is at least sample period old, so that throughput is measured
+   * over at least sample period and readers which read more often than once per sample period do
+   * not move window.
+   *
+   * @return current sample window.
+   */
+  private SampleWindow sampleCloses() {
+    final SampleWindow window = sampleWindow.get();
+    final long now = System.nanoTime();
+    if (now - window.end.nanos < samplePeriodNanos) {
+      return window;
+    }
+    // If other reader moved window concurrently then its window is used
+    sampleWindow.compareAndSet(window, new SampleWindow(window.end,
+        new Sample(now, closedCount.sum() + failedCloseCount.sum())));
+    return sampleWindow.get();
+  }
+
+  private static final class SampleWindow {
+
+    final Sample start;
+    final Sample end;
+
+    SampleWindow(final Sample start) {
+      this(start, start);
+    }
+
+    SampleWindow(final Sample start, final Sample end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private static final class Sample {
+
+    final long nanos;
+    final long count;
+
+    Sample(final long nanos, final long count) {
+      this.nanos = nanos;
+      this.count = count;
+    }
+  }
+
+  private static final class ResourceType {
+
+    final String resourceClassName;
+    final CloseLatencyHistogram histogram;
+    final long p99Nanos;
+
+    ResourceType(final String resourceClassName, final CloseLatencyHistogram histogram) {
+      this.resourceClassName = resourceClassName;
+      this.histogram = histogram;
+      this.p99Nanos = histogram.getValueAtPercentile(99);
+    }
+
+    @Override
+    public String toString() {
+      return resourceClassName + ": p99=" + p99Nanos + " ns, max="
+          + histogram.getMaxNanos() + " ns, count=" + histogram.getCount() + ", failures="
+          + histogram.getFailureCount();
+    }
+  }
+
+  private final class Listener implements GuardListener {
+
+    @Override
+    public void added(final AutoCloseable guard, final AutoCloseable resource) {
+      addedCount.increment();
+    }
+
+    @Override
+    public void released(final AutoCloseable guard, final AutoCloseable resource) {
+      releasedCount.increment();
+    }
+
+    @Override
+    public void closed(final AutoCloseable guard, final AutoCloseable resource) {
+      closedCount.increment();
+    }
+
+    @Override
+    public void closeFailed(final AutoCloseable guard, final AutoCloseable resource,
+        final Throwable exception) {
+      failedCloseCount.increment();
+    }
+  }
+}
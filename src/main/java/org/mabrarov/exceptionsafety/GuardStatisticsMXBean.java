@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+/**
+ * Management interface of process-wide statistics of guards. Registered in platform MBean server
+ * with {@value GuardStatistics#OBJECT_NAME} name when statistics are enabled by setting {@value
+ * GuardStatistics#ENABLED_PROPERTY} system property to {@code true} at startup. Reading of
+ * statistics never blocks guards.
+ */
+public interface GuardStatisticsMXBean {
+
+  /**
+   * @return number of resources which are currently guarded by {@link Guard}, {@link PairGuard}
+   * and {@link NestedGuard} instances. Resources which failed to close or which close was abandoned
+   * remain guarded (guards keep them to be closed again), so they are counted until they are closed
+   * successfully or released.
+   */
+  long getHeldResourceCount();
+
+  /**
+   * @return total number of resources which were guarded.
+   */
+  long getAddedCount();
+
+  /**
+   * @return total number of resources which stopped being guarded without being closed.
+   */
+  long getReleasedCount();
+
+  /**
+   * @return total number of resources which were closed successfully.
+   */
+  long getClosedCount();
+
+  /**
+   * @return total number of failed closes of resources.
+   */
+  long getFailedCloseCount();
+
+  /**
+   * @return ratio of failed closes to all closes, from 0 to 1.
+   */
+  double getCloseFailureRate();
+
+  /**
+   * @return number of closes (successful and failed) per second, measured over sample window of
+   * at least 1 second which is moved by reads of this attribute, or since start of statistics.
+   */
+  double getCloseThroughput();
+
+  /**
+   * @return {@code true} if latency of closes is recorded, see {@link CloseMetrics}.
+   */
+  boolean isCloseMetricsEnabled();
+
+  /**
+   * Enables or disables recording of latency of closes, see {@link CloseMetrics}.
+   *
+   * @param enabled {@code true} to enable recording.
+   */
+  void setCloseMetricsEnabled(boolean enabled);
+
+  /**
+   * @return descriptions of resource types with the highest 99th percentile of close latency,
+   * slowest first. Empty if latency of closes is not recorded.
+   */
+  String[] getSlowestResourceTypes();
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.Arrays;
+
+/**
+ * Variant of {@link NestedGuard} which identifies guarded resources by stable handles instead of
+ * indices, so that guarded resources can be released and removed in O(1) regardless of their
+ * position. Intended for long-lived registries with high churn of resources.<br/> Handle is
+ * returned by {@link HandleNestedGuard#addWithHandle(AutoCloseable)} and consists of index of slot
+ * and of generation of that slot. Generation is incremented each time slot is freed, so handle of
+ * removed (or closed) resource is detected as stale even if its slot is reused. Freed slots are
+ * kept in free list and are reused by subsequent adding. Live items are linked in the order of
+ * adding, so {@link HandleNestedGuard#close()} closes resources in LIFO order the same way as
+ * {@link NestedGuard#close()} does.<br/> Storage is retained when guarded resources are closed or
+ * released, because dropping of generations would make stale handles valid again.
+ */
+public class HandleNestedGuard implements AutoCloseable {
+
+  private static final int DEFAULT_CAPACITY = 10;
+  private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+  private static final int NIL = -1;
+
+  private AutoCloseable[] items;
+  private int[] generations;
+  /**
+   * Previous live item in the order of adding for live slots.
+   */
+  private int[] previous;
+  /**
+   * Next live item in the order of adding for live slots, next free slot for free slots.
+   */
+  private int[] next;
+  private boolean[] live;
+  /**
+   * Number of slots which were ever used. Slots starting from this index are neither live nor in
+   * free list.
+   */
+  private int usedSlots;
+  private int freeSlot = NIL;
+  private int head = NIL;
+  private int tail = NIL;
+  private int size;
+
+  /**
+   * Same as {@link NestedGuard#add(AutoCloseable)}, but handle of added resource is not returned.
+   *
+   * @param resource instance of {@link AutoCloseable} to be guarded, may be {@code null}.
+   * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
+   */
+  public <T extends AutoCloseable> T add(final T resource) {
+    addWithHandle(resource);
+    return resource;
+  }
+
+  /**
+   * Guards given resource. Provides strong exception safety. If throws exception when failed to
+   * add new item then {@code resource} is closed the same way as {@link
+   * NestedGuard#add(AutoCloseable)} does. If there is free slot or free capacity then provides
+   * no-throw guarantee and performs no allocation. Increments {@link HandleNestedGuard#size()}.
+   *
+   * @param resource instance of {@link AutoCloseable} to be guarded, may be {@code null}.
+   * @return handle of added item, which stays valid until item is removed or closed.
+   */
+  public long addWithHandle(final AutoCloseable resource) {
+    final int slot;
+    if (freeSlot != NIL) {
+      slot = freeSlot;
+      freeSlot = next[slot];
+    } else if (items != null && usedSlots < items.length) {
+      slot = usedSlots++;
+    } else {
+      try {
+        grow();
+      } catch (final Throwable e) {
+        Closeables.closeOnFailure(resource, e);
+        throw Closeables.rethrowUnchecked(e);
+      }
+      slot = usedSlots++;
+    }
+    items[slot] = resource;
+    live[slot] = true;
+    previous[slot] = tail;
+    next[slot] = NIL;
+    if (tail == NIL) {
+      head = slot;
+    } else {
+      next[tail] = slot;
+    }
+    tail = slot;
+    ++size;
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.added(this, resource);
+    }
+    return handle(slot);
+  }
+
+  /**
+   * Retrieves number of guarded items, including items released with {@link
+   * HandleNestedGuard#release(long)}. Provides no-throw guarantee.
+   *
+   * @return number of guarded items.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Checks if given handle refers to guarded item. Provides no-throw guarantee.
+   *
+   * @param handle handle to check.
+   * @return {@code true} if item with given handle is guarded, {@code false} if handle is stale or
+   * invalid.
+   */
+  public boolean contains(final long handle) {
+    final int slot = (int) handle;
+    return slot >= 0 && slot < usedSlots && live[slot]
+        && generations[slot] == (int) (handle >>> 32);
+  }
+
+  /**
+   * Retrieves guarded instance of {@link AutoCloseable} with given handle. Provides no-throw
+   * guarantee if handle is valid, otherwise provides strong exception safety.
+   *
+   * @param handle handle returned by {@link HandleNestedGuard#addWithHandle(AutoCloseable)}.
+   * @return guarded instance of {@link AutoCloseable}, may be {@code null}.
+   * @throws IllegalArgumentException if {@code handle} is stale or invalid.
+   */
+  public AutoCloseable get(final long handle) {
+    return items[checkHandle(handle)];
+  }
+
+  /**
+   * Sets item with given handle to guard nothing in O(1). Handle remains valid and {@link
+   * HandleNestedGuard#size()} is not impacted. Provides no-throw guarantee if handle is valid,
+   * otherwise provides strong exception safety. Resource which was guarded before is not impacted
+   * and is forgotten.
+   *
+   * @param handle handle returned by {@link HandleNestedGuard#addWithHandle(AutoCloseable)}.
+   * @return instance of {@link AutoCloseable} which was guarded by item with given handle, may be
+   * {@code null}.
+   * @throws IllegalArgumentException if {@code handle} is stale or invalid.
+   */
+  public AutoCloseable release(final long handle) {
+    final int slot = checkHandle(handle);
+    final AutoCloseable tmp = items[slot];
+    items[slot] = null;
+    Closeables.released(this, tmp);
+    return tmp;
+  }
+
+  /**
+   * Removes item with given handle without closing it in O(1). Handle becomes stale and {@link
+   * HandleNestedGuard#size()} is decremented. Provides no-throw guarantee if handle is valid,
+   * otherwise provides strong exception safety. Resource which was guarded before is not impacted
+   * and is forgotten.
+   *
+   * @param handle handle returned by {@link HandleNestedGuard#addWithHandle(AutoCloseable)}.
+   * @return instance of {@link AutoCloseable} which was guarded by item with given handle, may be
+   * {@code null}.
+   * @throws IllegalArgumentException if {@code handle} is stale or invalid.
+   */
+  public AutoCloseable remove(final long handle) {
+    final int slot = checkHandle(handle);
+    final AutoCloseable removedItem = items[slot];
+    free(slot);
+    Closeables.released(this, removedItem);
+    return removedItem;
+  }
+
+  /**
+   * Resets this instance to guard nothing. All handles become stale. Capacity is retained.
+   * Provides no-throw guarantee. Resources which were guarded before are not impacted and are
+   * forgotten.
+   */
+  public void release() {
+    int slot = head;
+    while (slot != NIL) {
+      final int nextSlot = next[slot];
+      final AutoCloseable item = items[slot];
+      free(slot);
+      Closeables.released(this, item);
+      slot = nextSlot;
+    }
+  }
+
+  /**
+   * Closes all guarded instances of {@link AutoCloseable} in the order opposite to order of adding.
+   * Provides the same exception safety as {@link NestedGuard#close()}: items which {@link
+   * AutoCloseable#close()} method completed successfully are removed (their handles become stale),
+   * failed items remain guarded with the same handles and multiple exceptions are nested as
+   * suppressed.
+   *
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  @Override
+  public void close() throws Exception {
+    // All operations except AutoCloseable#close are assumed to provide no-throw guarantee
+    if (size == 0) {
+      return;
+    }
+    final Object event = CloseEvents.beginGuardClose();
+    final int itemCount = size;
+    Throwable currentException = null;
+    int slot = tail;
+    while (slot != NIL) {
+      final int previousSlot = previous[slot];
+      final AutoCloseable item = items[slot];
+      if (item == null) {
+        free(slot);
+      } else {
+        try {
+          Closeables.close(this, item);
+          free(slot);
+        } catch (final Throwable closeException) {
+          currentException = Closeables.addSuppressed(currentException, closeException);
+        }
+      }
+      slot = previousSlot;
+    }
+    CloseEvents.endGuardClose(event, this, itemCount, currentException != null);
+    if (currentException != null) {
+      Closeables.rethrow(currentException);
+    }
+  }
+
+  private long handle(final int slot) {
+    return (long) generations[slot] << 32 | slot;
+  }
+
+  private int checkHandle(final long handle) {
+    if (!contains(handle)) {
+      throw new IllegalArgumentException("Stale or invalid handle: " + handle);
+    }
+    return (int) handle;
+  }
+
+  /**
+   * Unlinks live slot, invalidates its handle and puts it into free list. Provides no-throw
+   * guarantee.
+   */
+  private void free(final int slot) {
+    final int previousSlot = previous[slot];
+    final int nextSlot = next[slot];
+    if (previousSlot == NIL) {
+      head = nextSlot;
+    } else {
+      next[previousSlot] = nextSlot;
+    }
+    if (nextSlot == NIL) {
+      tail = previousSlot;
+    } else {
+      previous[nextSlot] = previousSlot;
+    }
+    items[slot] = null;
+    live[slot] = false;
+    ++generations[slot];
+    next[slot] = freeSlot;
+    freeSlot = slot;
+    --size;
+  }
+
+  /**
+   * Grows storage when there are no free slots. Provides strong exception safety: all arrays are
+   * allocated before any of them is replaced.
+   */
+  private void grow() {
+    final int capacity = items == null ? DEFAULT_CAPACITY : newCapacity(usedSlots + 1);
+    final AutoCloseable[] newItems;
+    final int[] newGenerations;
+    final int[] newPrevious;
+    final int[] newNext;
+    final boolean[] newLive;
+    if (items == null) {
+      newItems = new AutoCloseable[capacity];
+      newGenerations = new int[capacity];
+      newPrevious = new int[capacity];
+      newNext = new int[capacity];
+      newLive = new boolean[capacity];
+    } else {
+      newItems = Arrays.copyOf(items, capacity);
+      newGenerations = Arrays.copyOf(generations, capacity);
+      newPrevious = Arrays.copyOf(previous, capacity);
+      newNext = Arrays.copyOf(next, capacity);
+      newLive = Arrays.copyOf(live, capacity);
+    }
+    items = newItems;
+    generations = newGenerations;
+    previous = newPrevious;
+    next = newNext;
+    live = newLive;
+  }
+
+  private int newCapacity(final int minCapacity) {
+    if (minCapacity < 0 || minCapacity > MAX_CAPACITY) {
+      throw new OutOfMemoryError("Required capacity is too large: " + minCapacity);
+    }
+    final int capacity = items.length + (items.length >> 1);
+    if (capacity - minCapacity < 0) {
+      return minCapacity;
+    }
+    return capacity - MAX_CAPACITY > 0 ? MAX_CAPACITY : capacity;
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.Arrays;
+
+/**
+ * Variant of {@link NestedGuard} which indexes guarded resources by identity, so that the same
+ * instance of {@link AutoCloseable} cannot be guarded (and closed) twice and so that particular
+ * resource can be found and released in O(1). Resources are kept in array in the order of adding,
+ * so {@link IdentityNestedGuard#close()} closes them in LIFO order the same way as {@link
+ * NestedGuard#close()} does. Index is open addressing (linear probing) hash table of positions in
+ * that array, keyed by {@link System#identityHashCode(Object)}, which capacity is at least twice
+ * the capacity of array.<br/> Released resources leave holes in array which are compacted when
+ * array is full and at least half of it are holes, so releasing is O(1) amortized and positions
+ * of resources are not exposed.
+ */
+public class IdentityNestedGuard implements AutoCloseable {
+
+  /**
+   * Handling of adding of resource which is already guarded.
+   */
+  public enum Duplicates {
+
+    /**
+     * {@link IdentityNestedGuard#add(AutoCloseable)} throws {@link IllegalArgumentException}.
+     */
+    REJECT,
+
+    /**
+     * {@link IdentityNestedGuard#add(AutoCloseable)} does nothing, resource remains guarded at its
+     * original position.
+     */
+    COALESCE
+  }
+
+  private static final int DEFAULT_CAPACITY = 8;
+  private static final int MAX_CAPACITY = 1 << 29;
+
+  private final Duplicates duplicates;
+  private AutoCloseable[] items;
+  /**
+   * Positions in {@link IdentityNestedGuard#items} incremented by 1, 0 means empty entry.
+   */
+  private int[] table;
+  /**
+   * Number of used positions in {@link IdentityNestedGuard#items}, including holes.
+   */
+  private int end;
+  private int size;
+
+  /**
+   * Creates guard which rejects duplicates.
+   */
+  public IdentityNestedGuard() {
+    this(Duplicates.REJECT);
+  }
+
+  /**
+   * Creates guard.
+   *
+   * @param duplicates handling of adding of resource which is already guarded.
+   */
+  public IdentityNestedGuard(final Duplicates duplicates) {
+    if (duplicates == null) {
+      throw new NullPointerException("Handling of duplicates cannot be null");
+    }
+    this.duplicates = duplicates;
+  }
+
+  /**
+   * Guards given resource unless it is already guarded. Provides strong exception safety. If
+   * throws exception when failed to add new item then {@code resource} is closed the same way as
+   * {@link NestedGuard#add(AutoCloseable)} does. If {@code resource} is already guarded then it is
+   * not closed and remains guarded. If there is free capacity then provides no-throw guarantee and
+   * performs no allocation.
+   *
+   * @param resource instance of {@link AutoCloseable} to be guarded. If {@code null} then nothing
+   * is guarded.
+   * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
+   * @throws IllegalArgumentException if {@code resource} is already guarded and duplicates are
+   * rejected.
+   */
+  public <T extends AutoCloseable> T add(final T resource) {
+    if (resource == null) {
+      return null;
+    }
+    if (items != null) {
+      if (find(resource) >= 0) {
+        if (duplicates == Duplicates.REJECT) {
+          throw new IllegalArgumentException("Resource is already guarded: " + resource);
+        }
+        return resource;
+      }
+      if (end == items.length && end - size >= items.length / 2) {
+        compact();
+      }
+    }
+    if (items == null || end == items.length) {
+      try {
+        grow();
+      } catch (final Throwable e) {
+        Closeables.closeOnFailure(resource, e);
+        throw Closeables.rethrowUnchecked(e);
+      }
+    }
+    final int position = end++;
+    items[position] = resource;
+    insert(position);
+    ++size;
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.added(this, resource);
+    }
+    return resource;
+  }
+
+  /**
+   * Retrieves number of guarded instances of {@link AutoCloseable}. Provides no-throw guarantee.
+   *
+   * @return number of of guarded instances of {@link AutoCloseable}.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Checks if given resource is guarded, comparing by identity. O(1) on average. Provides no-throw
+   * guarantee.
+   *
+   * @param resource resource to check, may be {@code null}.
+   * @return {@code true} if {@code resource} is guarded.
+   */
+  public boolean contains(final AutoCloseable resource) {
+    return resource != null && items != null && find(resource) >= 0;
+  }
+
+  /**
+   * Stops guarding of given resource without closing it. O(1) amortized. Provides no-throw
+   * guarantee. Resource is not impacted and is forgotten.
+   *
+   * @param resource resource to release, may be {@code null}.
+   * @return {@code true} if {@code resource} was guarded, {@code false} otherwise.
+   */
+  public boolean release(final AutoCloseable resource) {
+    if (resource == null || items == null) {
+      return false;
+    }
+    final int entry = find(resource);
+    if (entry < 0) {
+      return false;
+    }
+    final int position = table[entry] - 1;
+    delete(entry);
+    items[position] = null;
+    --size;
+    if (size == 0) {
+      clear();
+    }
+    Closeables.released(this, resource);
+    return true;
+  }
+
+  /**
+   * Resets this instance to guard nothing. Provides no-throw guarantee. Resources which were
+   * guarded before are not impacted and are forgotten.
+   */
+  public void release() {
+    if (GuardListeners.LISTENER != null) {
+      for (int i = 0; i < end; ++i) {
+        if (items[i] != null) {
+          Closeables.released(this, items[i]);
+        }
+      }
+    }
+    clear();
+  }
+
+  /**
+   * Closes all guarded instances of {@link AutoCloseable} in the order opposite to order of adding.
+   * Provides the same exception safety as {@link NestedGuard#close()}: resources which {@link
+   * AutoCloseable#close()} method completed successfully are not guarded anymore, failed
+   * resources remain guarded and multiple exceptions are nested as suppressed.
+   *
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  @Override
+  public void close() throws Exception {
+    // All operations except AutoCloseable#close are assumed to provide no-throw guarantee
+    if (size == 0) {
+      clear();
+      return;
+    }
+    final Object event = CloseEvents.beginGuardClose();
+    final int itemCount = size;
+    Throwable currentException = null;
+    for (int i = end - 1; i >= 0; --i) {
+      final AutoCloseable item = items[i];
+      if (item == null) {
+        continue;
+      }
+      try {
+        Closeables.close(this, item);
+        items[i] = null;
+        --size;
+      } catch (final Throwable closeException) {
+        currentException = Closeables.addSuppressed(currentException, closeException);
+      }
+    }
+    if (currentException == null) {
+      clear();
+      CloseEvents.endGuardClose(event, this, itemCount, false);
+      return;
+    }
+    compact();
+    CloseEvents.endGuardClose(event, this, itemCount, true);
+    Closeables.rethrow(currentException);
+  }
+
+  private void clear() {
+    items = null;
+    table = null;
+    end = 0;
+    size = 0;
+  }
+
+  private static int hash(final Object resource) {
+    final int h = System.identityHashCode(resource);
+    // Identity hash codes are not uniform in low bits on all JVMs
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Finds entry of hash table referring to given resource. Provides no-throw guarantee.
+   *
+   * @return index of entry in hash table or -1 if {@code resource} is not guarded.
+   */
+  private int find(final AutoCloseable resource) {
+    final int mask = table.length - 1;
+    for (int i = hash(resource) & mask; ; i = (i + 1) & mask) {
+      final int position = table[i];
+      if (position == 0) {
+        return -1;
+      }
+      if (items[position - 1] == resource) {
+        return i;
+      }
+    }
+  }
+
+  /**
+   * Adds entry referring to given position of {@link IdentityNestedGuard#items} into hash table.
+   * Provides no-throw guarantee.
+   */
+  private void insert(final int position) {
+    final int mask = table.length - 1;
+    int i = hash(items[position]) & mask;
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = position + 1;
+  }
+
+  /**
+   * Deletes entry of hash table shifting subsequent entries of the same cluster back, so that no
+   * tombstones are needed. Provides no-throw guarantee.
+   */
+  private void delete(final int entry) {
+    final int mask = table.length - 1;
+    int hole = entry;
+    int i = entry;
+    while (true) {
+      i = (i + 1) & mask;
+      final int position = table[i];
+      if (position == 0) {
+        break;
+      }
+      final int home = hash(items[position - 1]) & mask;
+      // Entry can fill the hole only if its home is not cyclically within (hole, i]
+      final boolean stays = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+      if (!stays) {
+        table[hole] = position;
+        hole = i;
+      }
+    }
+    table[hole] = 0;
+  }
+
+  /**
+   * Removes holes of {@link IdentityNestedGuard#items} keeping the order of remaining items and
+   * rebuilds hash table. Provides no-throw guarantee.
+   */
+  private void compact() {
+    int newEnd = 0;
+    for (int i = 0; i < end; ++i) {
+      final AutoCloseable item = items[i];
+      if (item != null) {
+        items[newEnd++] = item;
+      }
+    }
+    Arrays.fill(items, newEnd, end, null);
+    end = newEnd;
+    Arrays.fill(table, 0);
+    for (int i = 0; i < end; ++i) {
+      insert(i);
+    }
+  }
+
+  /**
+   * Grows storage and rebuilds hash table. Provides strong exception safety: new arrays are
+   * allocated before any of them is replaced.
+   */
+  private void grow() {
+    final int capacity;
+    if (items == null) {
+      capacity = DEFAULT_CAPACITY;
+    } else if (items.length >= MAX_CAPACITY) {
+      throw new OutOfMemoryError("Required capacity is too large: " + (items.length + 1));
+    } else {
+      capacity = items.length << 1;
+    }
+    final AutoCloseable[] newItems = items == null ? new AutoCloseable[capacity]
+        : Arrays.copyOf(items, capacity);
+    final int[] newTable = new int[capacity << 1];
+    items = newItems;
+    table = newTable;
+    for (int i = 0; i < end; ++i) {
+      if (items[i] != null) {
+        insert(i);
+      }
+    }
+  }
+}
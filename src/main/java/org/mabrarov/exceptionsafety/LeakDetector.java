@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in detector of leaked resources, i.e. of resources which became unreachable without being
+ * closed while they were guarded (which means that guard itself became unreachable without being
+ * closed) or after they were released from guard. One of {@link #getSamplingInterval()} guarded
+ * resources (chosen randomly) is tracked together with stack trace of the place where it was added
+ * to guard. Tracked resource stops being tracked when it is closed by guard, including guard which
+ * it was passed to after it was released, e.g. with {@link NestedGuard#release()}. Owner which
+ * takes released resource and closes it without guard should call {@link #transferred(
+ * AutoCloseable)} method, otherwise the resource is reported as leaked together with stack trace of
+ * the place where it was released. Leaks are detected when garbage collector clears references to
+ * tracked resources and are reported to {@link Reporter} when the next resource is sampled or when
+ * {@link #reportLeaks()} method is called.
+ * <p>
+ * Leak detection is enabled if {@value #SAMPLING_INTERVAL_PROPERTY} system property defines
+ * positive initial sampling interval when guards are used for the first time. In this case the
+ * detector is registered as {@link GuardListener}, otherwise guards do not pay for it at all and
+ * leak detection cannot be enabled later. If leak detection is enabled, then sampling interval can
+ * be changed at runtime, 0 stops sampling of new resources.<br/> Thread-safe.
+ */
+public final class LeakDetector {
+
+  /**
+   * Name of system property which defines initial sampling interval.
+   */
+  public static final String SAMPLING_INTERVAL_PROPERTY =
+      "org.mabrarov.exceptionsafety.leakDetector.samplingInterval";
+
+  /**
+   * Receiver of leak reports.
+   */
+  public interface Reporter {
+
+    /**
+     * Called when leaked resource is detected. Exceptions thrown by this method are ignored.
+     *
+     * @param resourceClassName name of implementation class of leaked resource.
+     * @param trace exception which stack trace points to the place where leaked resource was
+     * added to guard.
+     */
+    void leakDetected(String resourceClassName, Throwable trace);
+  }
+
+  private static final Reporter DEFAULT_REPORTER = new Reporter() {
+    @Override
+    public void leakDetected(final String resourceClassName, final Throwable trace) {
+      Logger.getLogger(LeakDetector.class.getName()).log(Level.WARNING,
+          "Leaked resource of " + resourceClassName + " class detected", trace);
+    }
+  };
+
+  private static final ConcurrentMap<Object, LeakRecord> RECORDS = new ConcurrentHashMap<>();
+  private static final ReferenceQueue<AutoCloseable> QUEUE = new ReferenceQueue<>();
+  private static final AtomicInteger TRACKED_COUNT = new AtomicInteger();
+
+  private static volatile int samplingInterval = Math.max(
+      Integer.getInteger(SAMPLING_INTERVAL_PROPERTY, 0), 0);
+  private static volatile Reporter reporter = DEFAULT_REPORTER;
+
+  /**
+   * Listener registered by {@link GuardListeners} if leak detection is enabled.
+   */
+  static final GuardListener LISTENER = new GuardListener() {
+    @Override
+    public void added(final AutoCloseable guard, final AutoCloseable resource) {
+      sample(resource);
+    }
+
+    @Override
+    public void released(final AutoCloseable guard, final AutoCloseable resource) {
+      markReleased(resource);
+    }
+
+    @Override
+    public void closed(final AutoCloseable guard, final AutoCloseable resource) {
+      untrack(resource);
+    }
+
+    @Override
+    public void closeFailed(final AutoCloseable guard, final AutoCloseable resource,
+        final Throwable exception) {
+      // Resource remains guarded and tracked
+    }
+  };
+
+  private LeakDetector() {
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return sampling interval, i.e. N where 1 of N guarded resources is tracked, 0 means that new
+   * resources are not tracked.
+   */
+  public static int getSamplingInterval() {
+    return samplingInterval;
+  }
+
+  /**
+   * Changes sampling interval. Resources which are already tracked remain tracked. Has effect only
+   * if leak detection was enabled with {@value #SAMPLING_INTERVAL_PROPERTY} system property when
+   * guards were used for the first time, i.e. this method cannot enable leak detection which was
+   * not enabled at startup. Provides strong exception safety.
+   *
+   * @param samplingInterval N where 1 of N guarded resources is tracked, 1 means that every
+   * guarded resource is tracked, 0 stops tracking of new resources.
+   * @throws IllegalArgumentException if {@code samplingInterval} is negative.
+   */
+  public static void setSamplingInterval(final int samplingInterval) {
+    if (samplingInterval < 0) {
+      throw new IllegalArgumentException(
+          "Sampling interval should not be negative: " + samplingInterval);
+    }
+    LeakDetector.samplingInterval = samplingInterval;
+  }
+
+  /**
+   * Replaces receiver of leak reports. Default receiver logs report with {@link Level#WARNING}
+   * level using {@link Logger} named after this class. Provides no-throw guarantee.
+   *
+   * @param reporter receiver of leak reports, {@code null} means default receiver.
+   */
+  public static void setReporter(final Reporter reporter) {
+    LeakDetector.reporter = reporter == null ? DEFAULT_REPORTER : reporter;
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return number of tracked resources, including leaked resources which were not reported yet.
+   */
+  public static int getTrackedCount() {
+    return TRACKED_COUNT.get();
+  }
+
+  /**
+   * Stops tracking of resource which was released from guard and which ownership is transferred to
+   * owner which closes it without guard, e.g. by direct call of {@link AutoCloseable#close()}
+   * method, so that the resource is not reported as leaked when it becomes unreachable after it
+   * was closed by its owner. Does nothing if the resource is not tracked. Provides no-throw
+   * guarantee.
+   *
+   * @param resource resource which was released from guard, may be {@code null}.
+   */
+  public static void transferred(final AutoCloseable resource) {
+    if (resource != null) {
+      untrack(resource);
+    }
+  }
+
+  /**
+   * Reports leaked resources which were detected by garbage collector and were not reported yet.
+   * Provides no-throw guarantee.
+   *
+   * @return number of reported leaks.
+   */
+  public static int reportLeaks() {
+    int leakCount = 0;
+    LeakRecord record;
+    while ((record = (LeakRecord) QUEUE.poll()) != null) {
+      // Record is absent if resource was closed or released
+      if (RECORDS.remove(record.key, record)) {
+        TRACKED_COUNT.decrementAndGet();
+        ++leakCount;
+        try {
+          final Throwable releaseTrace = record.releaseTrace;
+          reporter.leakDetected(record.resourceClassName,
+              releaseTrace == null ? record.trace : releaseTrace);
+        } catch (final Throwable ignored) {
+          // Exceptions thrown by reporter are ignored
+        }
+      }
+    }
+    return leakCount;
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return {@code true} if leak detection is enabled with {@value #SAMPLING_INTERVAL_PROPERTY}
+   * system property.
+   */
+  static boolean isEnabled() {
+    try {
+      return Integer.getInteger(SAMPLING_INTERVAL_PROPERTY, 0) > 0;
+    } catch (final Throwable ignored) {
+      return false;
+    }
+  }
+
+  /**
+   * Samples {@code resource} which was added to guard. Provides no-throw guarantee.
+   *
+   * @param resource guarded resource.
+   */
+  private static void sample(final AutoCloseable resource) {
+    final int interval = samplingInterval;
+    if (interval == 0) {
+      return;
+    }
+    if (interval > 1 && ThreadLocalRandom.current().nextInt(interval) != 0) {
+      return;
+    }
+    track(resource);
+  }
+
+  /**
+   * Records stack trace of the place where {@code resource} was released from guard, if the
+   * resource is tracked, so that the resource remains tracked until it is closed by its new owner.
+   * Provides no-throw guarantee.
+   *
+   * @param resource resource which was released.
+   */
+  private static void markReleased(final AutoCloseable resource) {
+    if (TRACKED_COUNT.get() == 0) {
+      return;
+    }
+    try {
+      final LeakRecord record = RECORDS.get(new IdentityKey(resource));
+      if (record == null) {
+        return;
+      }
+      final Throwable releaseTrace = new Throwable("Resource of " + record.resourceClassName
+          + " class was released from guard here and was not closed by its new owner before it"
+          + " became unreachable", record.trace);
+      removeInternalFrames(releaseTrace);
+      record.releaseTrace = releaseTrace;
+    } catch (final Throwable ignored) {
+      // Leak detection is best effort and should not impact guards
+    }
+  }
+
+  /**
+   * Stops tracking of {@code resource}, if it is tracked, because it is closed or because it is
+   * owned by owner which closes it without guard. Provides no-throw guarantee.
+   *
+   * @param resource resource which was closed or transferred.
+   */
+  static void untrack(final AutoCloseable resource) {
+    if (TRACKED_COUNT.get() == 0) {
+      return;
+    }
+    try {
+      final LeakRecord record = RECORDS.remove(new IdentityKey(resource));
+      if (record != null) {
+        TRACKED_COUNT.decrementAndGet();
+        record.clear();
+      }
+    } catch (final Throwable ignored) {
+      // Leak detection is best effort and should not impact guards
+    }
+  }
+
+  private static void track(final AutoCloseable resource) {
+    reportLeaks();
+    try {
+      if (RECORDS.containsKey(new IdentityKey(resource))) {
+        return;
+      }
+      final String resourceClassName = resource.getClass().getName();
+      final Throwable trace = new Throwable("Resource of " + resourceClassName
+          + " class was added to guard here and was neither closed nor released by guard before"
+          + " it became unreachable");
+      removeInternalFrames(trace);
+      final LeakRecord record = new LeakRecord(resource, resourceClassName, trace);
+      if (RECORDS.putIfAbsent(record.key, record) == null) {
+        TRACKED_COUNT.incrementAndGet();
+      }
+    } catch (final Throwable ignored) {
+      // Leak detection is best effort and should not impact guards
+    }
+  }
+
+  /**
+   * Removes frames of leak detector itself and of listener dispatching, so that stack trace starts
+   * with method of guard which added or released resource.
+   */
+  private static void removeInternalFrames(final Throwable trace) {
+    final StackTraceElement[] frames = trace.getStackTrace();
+    int first = 0;
+    while (first < frames.length && isInternalClass(frames[first].getClassName())) {
+      ++first;
+    }
+    trace.setStackTrace(Arrays.copyOfRange(frames, first, frames.length));
+  }
+
+  private static boolean isInternalClass(final String className) {
+    return isClassOrNestedClass(className, LeakDetector.class) || isClassOrNestedClass(className,
+        GuardListeners.class) || isClassOrNestedClass(className, Closeables.class);
+  }
+
+  private static boolean isClassOrNestedClass(final String className, final Class<?> type) {
+    final String typeName = type.getName();
+    return className.startsWith(typeName) && (className.length() == typeName.length()
+        || className.charAt(typeName.length()) == '$');
+  }
+
+  private static final class LeakRecord extends WeakReference<AutoCloseable> {
+
+    final Object key;
+    final String resourceClassName;
+    final Throwable trace;
+    volatile Throwable releaseTrace;
+
+    LeakRecord(final AutoCloseable resource, final String resourceClassName,
+        final Throwable trace) {
+      super(resource, QUEUE);
+      this.key = new RecordKey(this, System.identityHashCode(resource));
+      this.resourceClassName = resourceClassName;
+      this.trace = trace;
+    }
+  }
+
+  /**
+   * Key of tracked resource in map of records. Equal to {@link IdentityKey} of the same resource
+   * while the resource is reachable.
+   */
+  private static final class RecordKey {
+
+    final LeakRecord record;
+    final int hash;
+
+    RecordKey(final LeakRecord record, final int hash) {
+      this.record = record;
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof IdentityKey)) {
+        return false;
+      }
+      final AutoCloseable resource = record.get();
+      return resource != null && resource == ((IdentityKey) other).resource;
+    }
+  }
+
+  /**
+   * Key used to find record of resource by identity of resource.
+   */
+  private static final class IdentityKey {
+
+    final AutoCloseable resource;
+
+    IdentityKey(final AutoCloseable resource) {
+      this.resource = resource;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(resource);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof RecordKey)) {
+        return false;
+      }
+      final AutoCloseable trackedResource = ((RecordKey) other).record.get();
+      return trackedResource != null && trackedResource == resource;
+    }
+  }
+}
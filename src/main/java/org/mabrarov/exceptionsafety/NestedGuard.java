@@ -15,32 +15,150 @@
  */
 package org.mabrarov.exceptionsafety;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NestedGuard implements AutoCloseable {
 
-  private static class AddGuard implements AutoCloseable {
+  private static final class ParallelCloseHolder {
 
-    private AutoCloseable resource;
+    static final ForkJoinPool POOL = new ForkJoinPool();
+  }
+
+  private static final class CloseSegment implements Runnable {
 
-    public void set(final AutoCloseable resource) {
-      this.resource = resource;
+    private final NestedGuard guard;
+    private final AutoCloseable[] items;
+    private final int from;
+    private final int to;
+    private final CountDownLatch completion;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private Throwable[] failures;
+    private int failureCount;
+    private Throwable overflowException;
+
+    CloseSegment(final NestedGuard guard, final AutoCloseable[] items, final int from,
+        final int to, final CountDownLatch completion) {
+      this.guard = guard;
+      this.items = items;
+      this.from = from;
+      this.to = to;
+      this.completion = completion;
     }
 
     @Override
-    public void close() throws Exception {
-      if (resource == null) {
+    public void run() {
+      // Segment is run by the calling thread too if executor did not start it yet
+      if (!started.compareAndSet(false, true)) {
         return;
       }
-      final AutoCloseable tmp = resource;
-      resource = null;
-      tmp.close();
+      try {
+        closeItems();
+      } finally {
+        if (completion != null) {
+          completion.countDown();
+        }
+      }
+    }
+
+    /**
+     * Nests exceptions of this segment into {@code currentException} in the same order as {@link
+     * NestedGuard#close()} does. Provides no-throw guarantee.
+     */
+    Throwable addFailures(Throwable currentException) {
+      for (int i = 0; i < failureCount; ++i) {
+        currentException = Closeables.addSuppressed(currentException, failures[i]);
+      }
+      if (overflowException != null) {
+        currentException = Closeables.addSuppressed(currentException, overflowException);
+      }
+      return currentException;
+    }
+
+    private void closeItems() {
+      for (int i = to - 1; i >= from; --i) {
+        final AutoCloseable item = items[i];
+        if (item == null) {
+          continue;
+        }
+        try {
+          Closeables.close(guard, item);
+          items[i] = null;
+        } catch (final Throwable closeException) {
+          addFailure(closeException);
+        }
+      }
     }
+
+    private void addFailure(final Throwable closeException) {
+      if (failures == null && overflowException == null) {
+        try {
+          failures = new Throwable[to - from];
+        } catch (final Throwable allocationException) {
+          // Keep exception without ordering relative to other segments rather than lose it
+          overflowException = closeException;
+          return;
+        }
+      }
+      if (failures != null) {
+        failures[failureCount++] = closeException;
+      } else {
+        overflowException = Closeables.addSuppressed(overflowException, closeException);
+      }
+    }
+  }
+
+  private static final int DEFAULT_CAPACITY = 10;
+  private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+  /**
+   * Maximum capacity of internal storage which is kept when this instance is reset to guard
+   * nothing, 0 means storage is never kept.
+   */
+  final int retainedCapacity;
+  private AutoCloseable[] items;
+  private int size;
+  /**
+   * Number of items which were not closed yet by the current pass of incremental close. 0 means no
+   * incremental close is in progress.
+   */
+  private int closeCursor;
+
+  /**
+   * Creates guard which drops its internal storage each time it is reset to guard nothing, e.g.
+   * by {@link NestedGuard#close()} or by {@link NestedGuard#release()}.
+   */
+  public NestedGuard() {
+    this(0);
   }
 
-  private final AddGuard addGuard = new AddGuard();
-  private ArrayList<AutoCloseable> items;
+  /**
+   * Creates guard which can be reused without re-growing of its internal storage. When this guard
+   * is reset to guard nothing (e.g. by {@link NestedGuard#close()} or by {@link
+   * NestedGuard#release()}), internal storage is kept if its capacity is not greater than {@code
+   * retainedCapacity}, otherwise it is dropped, so that single unusually large use of guard does
+   * not make it hold large array forever. Refer to {@link NestedGuardPool} for pooling of such
+   * guards.
+   *
+   * @param retainedCapacity maximum capacity of kept internal storage, should be &gt;= 0. 0 means
+   * that storage is never kept.
+   * @throws IllegalArgumentException if {@code retainedCapacity} is &lt; 0.
+   */
+  public NestedGuard(final int retainedCapacity) {
+    if (retainedCapacity < 0) {
+      throw new IllegalArgumentException(
+          "Retained capacity should not be negative: " + retainedCapacity);
+    }
+    this.retainedCapacity = retainedCapacity;
+  }
 
   /**
    * Provides strong exception safety. If throws exception when failed to add new item then {@code
@@ -48,25 +166,89 @@ public class NestedGuard implements AutoCloseable {
    * throws exception then it is returned as suppressed exception of initial exception. If {@link
    * Throwable#addSuppressed(Throwable)} throws exception ({@link RuntimeException} and derived or
    * {@link Error} and derived) then that exception is thrown.<br/> If completes successfully
-   * (without exception) then increments {@link NestedGuard#size()}.
+   * (without exception) then increments {@link NestedGuard#size()}.<br/> If there is free capacity
+   * then provides no-throw guarantee and performs no allocation.
    *
    * @param resource instance of {@link AutoCloseable} to be guarded, may be {@code null}. If {@code
    * null} then {@link NestedGuard#size()} is still incremented.
    * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
    */
   public <T extends AutoCloseable> T add(final T resource) {
-    try (final AddGuard guard = addGuard) {
-      guard.set(resource);
-      if (items == null) {
-        items = new ArrayList<>();
+    final AutoCloseable[] currentItems = items;
+    if (currentItems != null && size < currentItems.length) {
+      currentItems[size++] = resource;
+    } else {
+      addWithGrowth(resource);
+    }
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.added(this, resource);
+    }
+    return resource;
+  }
+
+  /**
+   * Guards given resources the same way as {@link NestedGuard#add(AutoCloseable)} invoked for each
+   * of them in the given order does, but grows internal storage at most once. Provides strong
+   * exception safety for the whole batch: if fails to grow internal storage then every resource of
+   * the batch is closed (in the order opposite to the given order) and exceptions thrown by their
+   * {@link AutoCloseable#close()} methods are added as suppressed exceptions, as if {@link
+   * NestedGuard#add(AutoCloseable)} failed for each of them. If there is free capacity for all
+   * resources then provides no-throw guarantee and performs no allocation.
+   *
+   * @param resources instances of {@link AutoCloseable} to be guarded, may contain {@code null}.
+   * {@link NestedGuard#size()} is incremented by the number of given resources.
+   */
+  public void addAll(final AutoCloseable... resources) {
+    final int count = resources.length;
+    if (count == 0) {
+      return;
+    }
+    reserveForBatch(count, resources, null);
+    System.arraycopy(resources, 0, items, size, count);
+    size += count;
+    if (GuardListeners.LISTENER != null) {
+      for (final AutoCloseable resource : resources) {
+        GuardListeners.added(this, resource);
       }
-      addItem(items, resource);
-      guard.set(null);
-      return resource;
-    } catch (final RuntimeException e) {
-      throw e;
-    } catch (final Exception e) {
-      throw new AssertionError("Should never come here", e);
+    }
+  }
+
+  /**
+   * Same as {@link NestedGuard#addAll(AutoCloseable...)}, resources are guarded in iteration order
+   * of {@code resources}. If fails to grow internal storage then resources are closed in the order
+   * opposite to iteration order if {@code resources} is {@link List} and in iteration order
+   * otherwise.
+   *
+   * @param resources instances of {@link AutoCloseable} to be guarded, may contain {@code null}.
+   * Should not be modified concurrently.
+   */
+  public void addAll(final Collection<? extends AutoCloseable> resources) {
+    final int count = resources.size();
+    if (count == 0) {
+      return;
+    }
+    reserveForBatch(count, null, resources);
+    for (final AutoCloseable resource : resources) {
+      add(resource);
+    }
+  }
+
+  /**
+   * Ensures that at least {@code capacity} resources can be guarded without growth of internal
+   * storage, so that subsequent calls of {@link NestedGuard#add(AutoCloseable)} provide no-throw
+   * guarantee until {@link NestedGuard#size()} reaches {@code capacity}. Provides strong exception
+   * safety. Guarded resources are not impacted if this method fails.
+   *
+   * @param capacity required capacity, should be &gt;= 0.
+   * @throws IllegalArgumentException if {@code capacity} is &lt; 0.
+   * @throws OutOfMemoryError if failed to grow internal storage.
+   */
+  public void reserve(final int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Capacity should not be negative: " + capacity);
+    }
+    if (capacity > capacity()) {
+      growItems(capacity);
     }
   }
 
@@ -76,7 +258,18 @@ public class NestedGuard implements AutoCloseable {
    * @return number of of guarded instances of {@link AutoCloseable}.
    */
   public int size() {
-    return items == null ? 0 : items.size();
+    return size;
+  }
+
+  /**
+   * Retrieves number of items which can be guarded without growth of internal storage. Used by
+   * tests to check retention of memory. Provides no-throw guarantee.
+   *
+   * @return capacity of internal storage, 0 if nothing is allocated.
+   */
+  int capacity() {
+    final AutoCloseable[] currentItems = items;
+    return currentItems == null ? 0 : currentItems.length;
   }
 
   /**
@@ -95,8 +288,15 @@ public class NestedGuard implements AutoCloseable {
    * NestedGuard#size()}.
    */
   public void set(final int index, final AutoCloseable resource) {
-    ensureItemsNotNull(index);
-    items.set(index, resource);
+    checkIndex(index);
+    final AutoCloseable previousItem = items[index];
+    items[index] = resource;
+    if (previousItem != resource) {
+      Closeables.released(this, previousItem);
+      if (GuardListeners.LISTENER != null) {
+        GuardListeners.added(this, resource);
+      }
+    }
   }
 
   /**
@@ -112,8 +312,8 @@ public class NestedGuard implements AutoCloseable {
    * NestedGuard#size()}.
    */
   public AutoCloseable get(final int index) {
-    ensureItemsNotNull(index);
-    return items.get(index);
+    checkIndex(index);
+    return items[index];
   }
 
   /**
@@ -121,7 +321,12 @@ public class NestedGuard implements AutoCloseable {
    * before is not impacted and is forgotten.
    */
   public void release() {
-    items = null;
+    if (GuardListeners.LISTENER != null) {
+      for (int i = 0; i < size; ++i) {
+        Closeables.released(this, items[i]);
+      }
+    }
+    reset(false);
   }
 
   /**
@@ -139,9 +344,10 @@ public class NestedGuard implements AutoCloseable {
    * NestedGuard#size()}.
    */
   public AutoCloseable release(final int index) {
-    ensureItemsNotNull(index);
-    final AutoCloseable tmp = items.get(index);
-    items.set(index, null);
+    checkIndex(index);
+    final AutoCloseable tmp = items[index];
+    items[index] = null;
+    Closeables.released(this, tmp);
     return tmp;
   }
 
@@ -159,16 +365,17 @@ public class NestedGuard implements AutoCloseable {
    * NestedGuard#size()}.
    */
   public AutoCloseable remove(final int index) {
-    ensureItemsNotNull(index);
-    final AutoCloseable removedItem = items.get(index);
-    final int size = items.size();
+    checkIndex(index);
+    final AutoCloseable removedItem = items[index];
     if (size == 1) {
-      items = null;
+      release();
       return removedItem;
     }
-    // Assuming that java.util.ArrayList#remove(int index) provides no-throw guarantee
-    // if index is correct
-    items.remove(index);
+    // java.lang.System#arraycopy provides no-throw guarantee when correct parameters are given
+    System.arraycopy(items, index + 1, items, index, size - index - 1);
+    items[--size] = null;
+    closeCursor = 0;
+    Closeables.released(this, removedItem);
     return removedItem;
   }
 
@@ -178,9 +385,14 @@ public class NestedGuard implements AutoCloseable {
    * @param other another instance to swap with.
    */
   public void swap(final NestedGuard other) {
-    final ArrayList<AutoCloseable> thisItems = items;
+    final AutoCloseable[] thisItems = items;
+    final int thisSize = size;
     items = other.items;
+    size = other.size;
     other.items = thisItems;
+    other.size = thisSize;
+    closeCursor = 0;
+    other.closeCursor = 0;
   }
 
   /**
@@ -213,62 +425,535 @@ public class NestedGuard implements AutoCloseable {
    */
   @Override
   public void close() throws Exception {
+    final Throwable currentException = closeNested(null);
+    if (currentException != null) {
+      Closeables.rethrow(currentException);
+    }
+  }
+
+  /**
+   * Closes guarded instances of {@link AutoCloseable} the same way as {@link NestedGuard#close()}
+   * does, but nests exceptions into given exception instead of throwing them, so that failures of
+   * multiple guards can be nested as if their resources were guarded by single guard. Provides
+   * no-throw guarantee.
+   *
+   * @param previousException exception to nest exceptions into, may be {@code null}.
+   * @return {@code previousException} with nested exceptions thrown by {@link
+   * AutoCloseable#close()} method of guarded resources, the first of these exceptions if {@code
+   * previousException} is {@code null} or {@code null} if there is no exception.
+   */
+  Throwable closeNested(final Throwable previousException) {
     // All operations except AutoCloseable#close are assumed to provide no-throw guarantee
-    if (items == null) {
-      return;
+    if (size == 0) {
+      release();
+      return previousException;
     }
-    if (items.isEmpty()) {
-      items = null;
+    final Object event = CloseEvents.beginGuardClose();
+    final int itemCount = size;
+    Throwable currentException = previousException;
+    boolean failed = false;
+    for (int i = size - 1; i >= 0; --i) {
+      final AutoCloseable item = items[i];
+      if (item == null) {
+        continue;
+      }
+      try {
+        Closeables.close(this, item);
+        items[i] = null;
+      } catch (final Throwable closeException) {
+        currentException = Closeables.addSuppressed(currentException, closeException);
+        failed = true;
+      }
+    }
+    if (!failed) {
+      // All items were closed and set to null
+      reset(true);
+      CloseEvents.endGuardClose(event, this, itemCount, false);
+      return currentException;
+    }
+    removeNullItems();
+    CloseEvents.endGuardClose(event, this, itemCount, true);
+    return currentException;
+  }
+
+  /**
+   * Closes guarded instances of {@link AutoCloseable} the same way (order, handling of failed
+   * resources, nesting of exceptions) as {@link NestedGuard#close()} method does, but limits time
+   * of {@link AutoCloseable#close()} method of each resource and time of whole operation. Each
+   * resource is closed by thread of pool shared by all guards while calling thread waits, so
+   * events of {@link GuardListener} are reported by that thread. Closing thread is interrupted if
+   * {@link AutoCloseable#close()} method of resource does not complete within {@code
+   * resourceTimeout} or before overall deadline. If {@link AutoCloseable#close()} method of
+   * resource throws exception after it was interrupted then that resource remains guarded, {@link
+   * CloseTimeoutException} is recorded (as exception to throw or as suppressed exception) and
+   * closing continues with the remaining resources. If {@link AutoCloseable#close()} method of
+   * resource does not complete within the same time after interruption either then resource is
+   * abandoned: it remains guarded, {@link CloseTimeoutException} which {@link
+   * CloseTimeoutException#isAbandoned()} returns {@code true} is recorded and closing continues
+   * with the remaining resources, while closing thread continues to wait for {@link
+   * AutoCloseable#close()} method. So this method returns within twice {@code overallTimeout} even
+   * if {@link AutoCloseable#close()} methods do not respond to interruption. Abandoned resource
+   * can be closed again by this method, which waits for abandoned close still in progress instead
+   * of invoking {@link AutoCloseable#close()} method concurrently, while {@link
+   * NestedGuard#close()} method invokes {@link AutoCloseable#close()} method again regardless of
+   * abandoned close. If overall deadline expires then remaining resources are not closed and
+   * remain guarded, and {@link CloseTimeoutException} is recorded. Provides basic exception
+   * safety.
+   *
+   * @param resourceTimeout maximum time to wait for {@link AutoCloseable#close()} method of single
+   * resource, should be &gt; 0.
+   * @param overallTimeout maximum time of whole operation, should be &gt; 0.
+   * @param unit time unit of {@code resourceTimeout} and of {@code overallTimeout}.
+   * @throws IllegalArgumentException if {@code resourceTimeout} or {@code overallTimeout} is &lt;=
+   * 0.
+   * @throws Exception if {@link AutoCloseable#close()} method of one of guarded resources throws
+   * exception or if timeout expires. Exceptions are nested the same way as {@link
+   * NestedGuard#close()} method does.
+   */
+  public void closeWithTimeout(final long resourceTimeout, final long overallTimeout,
+      final TimeUnit unit) throws Exception {
+    if (resourceTimeout <= 0) {
+      throw new IllegalArgumentException("Resource timeout should be positive: " + resourceTimeout);
+    }
+    if (overallTimeout <= 0) {
+      throw new IllegalArgumentException("Overall timeout should be positive: " + overallTimeout);
+    }
+    // All operations except AutoCloseable#close are assumed to provide no-throw guarantee
+    if (size == 0) {
+      release();
       return;
     }
+    final long resourceTimeoutNanos = unit.toNanos(resourceTimeout);
+    final long overallTimeoutNanos = unit.toNanos(overallTimeout);
+    final long deadlineNanos = System.nanoTime() + overallTimeoutNanos;
+    final Object event = CloseEvents.beginGuardClose();
+    final int itemCount = size;
     Throwable currentException = null;
-    final int size = items.size();
     for (int i = size - 1; i >= 0; --i) {
-      final AutoCloseable item = items.get(i);
-      try {
-        if (item != null) {
-          item.close();
-        }
-        // Assuming that java.util.ArrayList#remove(int index) provides no-throw guarantee
-        // if index is correct, because ArrayList#remove(int) is implemented using
-        // java.lang.System#arraycopy and System#arraycopy is assumed to provide
-        // no-throw guarantee like any reference copying / assignment
-        items.remove(i);
-      } catch (final Throwable closeException) {
-        if (currentException == null) {
-          currentException = closeException;
-        } else {
-          try {
-            currentException.addSuppressed(closeException);
-          } catch (final Throwable suppressionException) {
-            currentException = suppressionException;
-          }
+      final AutoCloseable item = items[i];
+      if (item == null) {
+        continue;
+      }
+      final long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        try {
+          currentException = Closeables.addSuppressed(currentException,
+              new CloseTimeoutException("Close timed out after " + overallTimeoutNanos
+                  + " ns, number of not closed resources: " + countNonNullItems(i + 1), null));
+        } catch (final Throwable e) {
+          currentException = Closeables.addSuppressed(currentException, e);
         }
+        break;
+      }
+      final Throwable closeException = CloseWatchdog.close(this, item,
+          Math.min(resourceTimeoutNanos, remainingNanos));
+      if (closeException == null) {
+        items[i] = null;
+        continue;
       }
+      currentException = Closeables.addSuppressed(currentException, closeException);
     }
     if (currentException == null) {
-      items = null;
+      release();
+      CloseEvents.endGuardClose(event, this, itemCount, false);
+      return;
+    }
+    removeNullItems();
+    CloseEvents.endGuardClose(event, this, itemCount, true);
+    Closeables.rethrow(currentException);
+  }
+
+  /**
+   * Closes at most {@code maxItems} guarded instances of {@link AutoCloseable}, so that closing of
+   * large number of resources can be split into multiple steps with bounded duration. Multiple
+   * calls of this method make up a pass which closes resources the same way (order, handling of
+   * failed resources, nesting of exceptions within single call) as {@link NestedGuard#close()}
+   * does: the first call of pass starts from the last resource and each subsequent call continues
+   * from the resource preceding the last resource processed by previous call. Resources which
+   * {@link AutoCloseable#close()} method failed remain guarded and are closed again by the next
+   * pass. Pass is restarted if guarded resources are removed, released or swapped. Resources added
+   * during pass are closed by the next pass.
+   *
+   * @param maxItems maximum number of items to process, should be &gt;= 0.
+   * @return {@code true} if current pass is not completed, i.e. if there are resources which were
+   * not processed by current pass yet, {@code false} if pass is completed.
+   * @throws IllegalArgumentException if {@code maxItems} is &lt; 0.
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the resources closed by
+   * this call throws exception.
+   */
+  public boolean closeSome(final int maxItems) throws Exception {
+    if (maxItems < 0) {
+      throw new IllegalArgumentException("Max items should not be negative: " + maxItems);
+    }
+    return closeIncrementally(maxItems, false, 0);
+  }
+
+  /**
+   * Closes guarded instances of {@link AutoCloseable} until given time budget is exhausted. At
+   * least one item is processed by each call, so that each call makes progress. Works the same way
+   * as {@link NestedGuard#closeSome(int)} does, except limitation of processed items.
+   *
+   * @param timeoutNanos time budget, in nanoseconds.
+   * @return {@code true} if current pass is not completed, i.e. if there are resources which were
+   * not processed by current pass yet, {@code false} if pass is completed.
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the resources closed by
+   * this call throws exception.
+   */
+  public boolean closeFor(final long timeoutNanos) throws Exception {
+    return closeIncrementally(Integer.MAX_VALUE, true, System.nanoTime() + timeoutNanos);
+  }
+
+  /**
+   * Passes all guarded instances of {@link AutoCloseable} to {@code closer} to be closed in
+   * background and resets this instance to guard nothing. Resources are passed as single instance
+   * of {@link NestedGuard}, so they are closed the same way (order, handling of failed resources) as
+   * {@link NestedGuard#close()} method does and that instance of {@link NestedGuard} is passed to {@link
+   * BackgroundCloser.FailureHandler} if closing fails. If nothing is guarded then does nothing.
+   * Internal storage is kept by this instance the same way as {@link NestedGuard#release()} keeps
+   * it, so that guard created with retained capacity (e.g. taken from {@link NestedGuardPool})
+   * does not need to re-grow its internal storage. Provides strong exception safety.
+   *
+   * @param closer instance of {@link BackgroundCloser} to close guarded resources.
+   * @throws java.util.concurrent.RejectedExecutionException if {@code closer} rejects resources.
+   * Guarded resources are not impacted in this case.
+   */
+  public void closeInBackground(final BackgroundCloser closer) {
+    if (size == 0) {
+      return;
+    }
+    final NestedGuard detached = new NestedGuard();
+    if (items.length <= retainedCapacity) {
+      // Only guarded items are moved, so that retained storage remains with this instance
+      detached.items = Arrays.copyOf(items, size);
+      detached.size = size;
+      closer.submit(detached);
+      reset(false);
+      return;
+    }
+    swap(detached);
+    try {
+      closer.submit(detached);
+    } catch (final Throwable e) {
+      swap(detached);
+      throw Closeables.rethrowUnchecked(e);
+    }
+  }
+
+  /**
+   * Closes this guard asynchronously, i.e. invokes {@link NestedGuard#close()} method using given {@code
+   * executor}. Resources are closed the same way (order, handling of failed resources) as {@link
+   * NestedGuard#close()} method does. This guard should not be used until returned future is done.
+   * Provides strong exception safety.
+   *
+   * @param executor executor to run {@link NestedGuard#close()} method.
+   * @return future which completes when {@link NestedGuard#close()} method completes. If {@link
+   * NestedGuard#close()} method throws exception then {@link Future#get()} method of returned future
+   * throws {@link java.util.concurrent.ExecutionException} which cause is the same exception
+   * (including its suppressed exceptions) as {@link NestedGuard#close()} method throws.
+   * @throws java.util.concurrent.RejectedExecutionException if {@code executor} rejects task. Guarded
+   * resources are not impacted in this case.
+   */
+  public Future<Void> closeAsync(final Executor executor) {
+    return Closeables.closeAsync(this, executor);
+  }
+
+  /**
+   * Same as {@link NestedGuard#closeInParallel(Executor, int)} using shared instance of {@link
+   * ForkJoinPool} with parallelism equal to the number of available processors. The pool is
+   * created on first use and its threads are daemon threads.
+   *
+   * @param segmentSize maximum number of resources closed by a single task, should be &gt; 0.
+   * @throws IllegalArgumentException if {@code segmentSize} is &lt;= 0.
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  public void closeInParallel(final int segmentSize) throws Exception {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("Segment size should be positive: " + segmentSize);
+    }
+    if (size <= segmentSize) {
+      close();
+      return;
+    }
+    closeInParallel(ParallelCloseHolder.POOL, segmentSize);
+  }
+
+  /**
+   * Closes all guarded instances of {@link AutoCloseable} in parallel. Intended for closing of large
+   * number of resources which can be closed independently of each other. Guarded resources are split
+   * into segments of {@code segmentSize} resources, each segment is closed by single task in LIFO
+   * order, tasks are submitted to {@code executor} (e.g. instance of {@link
+   * java.util.concurrent.ForkJoinPool}) and the segment with the last resources is closed by the
+   * calling thread. After that the calling thread closes all segments which were not started by
+   * {@code executor} yet, e.g. segments rejected by {@code executor}, discarded by it or removed
+   * from its queue by {@link java.util.concurrent.ExecutorService#shutdownNow()}, so that this
+   * method does not depend on {@code executor} running submitted tasks and waits only for segments
+   * which are being closed by threads of {@code executor}. Interruption of the calling thread does
+   * not stop closing and interrupted status is restored before return.<br/> Provides the same
+   * exception safety as {@link NestedGuard#close()}: resources which {@link AutoCloseable#close()}
+   * method completed successfully are removed from this guard, failed resources remain guarded
+   * (in original order) and exceptions are nested as suppressed in the same order as {@link
+   * NestedGuard#close()} does, i.e. as if resources were closed sequentially in LIFO order. If
+   * there are no more than {@code segmentSize} resources then equivalent to {@link
+   * NestedGuard#close()}.
+   *
+   * @param executor executor to close segments, except the last one.
+   * @param segmentSize maximum number of resources closed by a single task, should be &gt; 0.
+   * @throws IllegalArgumentException if {@code segmentSize} is &lt;= 0.
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  public void closeInParallel(final Executor executor, final int segmentSize) throws Exception {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("Segment size should be positive: " + segmentSize);
+    }
+    if (size <= segmentSize) {
+      close();
       return;
     }
-    if (currentException instanceof Error) {
-      throw (Error) currentException;
+    final int segmentCount = size / segmentSize + (size % segmentSize == 0 ? 0 : 1);
+    // Allocate everything before closing anything, so that allocation failure has no side effects
+    final CountDownLatch completion = new CountDownLatch(segmentCount - 1);
+    final CloseSegment[] segments = new CloseSegment[segmentCount];
+    for (int i = 0; i < segmentCount; ++i) {
+      final int to = size - i * segmentSize;
+      segments[i] = new CloseSegment(this, items, Math.max(0, to - segmentSize), to,
+          i == 0 ? null : completion);
+    }
+    final Object event = CloseEvents.beginGuardClose();
+    final int itemCount = size;
+    for (int i = 1; i < segmentCount; ++i) {
+      try {
+        executor.execute(segments[i]);
+      } catch (final Throwable e) {
+        // Segment is closed by the calling thread below
+      }
+    }
+    segments[0].run();
+    // Segments which were started by executor are skipped, the rest is closed by calling thread
+    for (int i = segmentCount - 1; i > 0; --i) {
+      segments[i].run();
     }
-    throw (Exception) currentException;
+    awaitUninterruptibly(completion);
+    Throwable currentException = null;
+    for (final CloseSegment segment : segments) {
+      currentException = segment.addFailures(currentException);
+    }
+    if (currentException == null) {
+      release();
+      CloseEvents.endGuardClose(event, this, itemCount, false);
+      return;
+    }
+    removeNullItems();
+    CloseEvents.endGuardClose(event, this, itemCount, true);
+    Closeables.rethrow(currentException);
   }
 
   /**
    * Marked as "protected" for testing purposes only. Should provide strong exception safety.
+   * Invoked by {@link NestedGuard#add(AutoCloseable)} only when there is no free capacity for new
+   * item, so that common case of adding new item is not impacted by this method.
    *
-   * @param items list to add new item to the end.
-   * @param item new item to be added at the end of given {@code items} list.
+   * @param item new item to be added at the end of guarded items, i.e. at {@link
+   * NestedGuard#size()} index.
    */
-  protected void addItem(final List<AutoCloseable> items, final AutoCloseable item) {
-    items.add(item);
+  protected void addItem(final AutoCloseable item) {
+    if (items == null) {
+      items = new AutoCloseable[DEFAULT_CAPACITY];
+    } else if (size == items.length) {
+      items = Arrays.copyOf(items, newCapacity(size + 1));
+    }
+    items[size++] = item;
   }
 
-  private void ensureItemsNotNull(final int index) {
+  /**
+   * Marked as "protected" for testing purposes only. Should provide strong exception safety.
+   * Invoked by {@link NestedGuard#reserve(int)}, {@link NestedGuard#addAll(AutoCloseable...)} and
+   * {@link NestedGuard#addAll(Collection)} only when capacity of internal storage is less than
+   * required.
+   *
+   * @param minCapacity required capacity of internal storage.
+   */
+  protected void growItems(final int minCapacity) {
     if (items == null) {
-      throw new IndexOutOfBoundsException("Index: " + index + ", Size: 0");
+      if (minCapacity < 0 || minCapacity > MAX_CAPACITY) {
+        throw new OutOfMemoryError("Required capacity is too large: " + minCapacity);
+      }
+      items = new AutoCloseable[Math.max(DEFAULT_CAPACITY, minCapacity)];
+    } else {
+      items = Arrays.copyOf(items, newCapacity(minCapacity));
+    }
+  }
+
+  /**
+   * Grows internal storage to fit {@code count} more items closing all resources of the batch if
+   * fails. Exactly one of {@code array} and {@code collection} is not {@code null}.
+   */
+  private void reserveForBatch(final int count, final AutoCloseable[] array,
+      final Collection<? extends AutoCloseable> collection) {
+    final int minCapacity = size + count;
+    if (minCapacity >= 0 && minCapacity <= capacity()) {
+      return;
+    }
+    try {
+      // Negative minCapacity means overflow and is rejected by growItems
+      growItems(minCapacity);
+    } catch (final Throwable e) {
+      if (array != null) {
+        for (int i = array.length - 1; i >= 0; --i) {
+          Closeables.closeOnFailure(array[i], e);
+        }
+      } else {
+        closeOnFailure(collection, e);
+      }
+      throw Closeables.rethrowUnchecked(e);
+    }
+  }
+
+  private static void closeOnFailure(final Collection<? extends AutoCloseable> resources,
+      final Throwable failure) {
+    if (resources instanceof List) {
+      final ListIterator<? extends AutoCloseable> iterator = ((List<? extends AutoCloseable>)
+          resources).listIterator(resources.size());
+      while (iterator.hasPrevious()) {
+        Closeables.closeOnFailure(iterator.previous(), failure);
+      }
+      return;
+    }
+    for (final AutoCloseable resource : resources) {
+      Closeables.closeOnFailure(resource, failure);
+    }
+  }
+
+  private void addWithGrowth(final AutoCloseable resource) {
+    try {
+      addItem(resource);
+    } catch (final Throwable e) {
+      Closeables.closeOnFailure(resource, e);
+      throw Closeables.rethrowUnchecked(e);
+    }
+  }
+
+  private int newCapacity(final int minCapacity) {
+    if (minCapacity < 0 || minCapacity > MAX_CAPACITY) {
+      throw new OutOfMemoryError("Required capacity is too large: " + minCapacity);
+    }
+    final int capacity = items.length + (items.length >> 1);
+    if (capacity - minCapacity < 0) {
+      return minCapacity;
+    }
+    return capacity - MAX_CAPACITY > 0 ? MAX_CAPACITY : capacity;
+  }
+
+  private boolean closeIncrementally(final int maxItems, final boolean timed,
+      final long deadlineNanos) throws Exception {
+    // All operations except AutoCloseable#close are assumed to provide no-throw guarantee
+    if (closeCursor == 0 || closeCursor > size) {
+      closeCursor = size;
+    }
+    final int passEnd = closeCursor;
+    Throwable currentException = null;
+    for (int processed = 0; closeCursor > 0 && processed < maxItems; ++processed) {
+      final int index = --closeCursor;
+      final AutoCloseable item = items[index];
+      if (item != null) {
+        try {
+          Closeables.close(this, item);
+          items[index] = null;
+        } catch (final Throwable closeException) {
+          currentException = Closeables.addSuppressed(currentException, closeException);
+        }
+      }
+      if (timed && System.nanoTime() - deadlineNanos >= 0) {
+        break;
+      }
+    }
+    final int cursor = closeCursor;
+    if (passEnd != cursor) {
+      removeNullItems(cursor);
+    }
+    if (size == 0) {
+      release();
+    }
+    closeCursor = cursor;
+    if (currentException != null) {
+      Closeables.rethrow(currentException);
+    }
+    return cursor != 0;
+  }
+
+  /**
+   * Resets this instance to guard nothing keeping internal storage if its capacity is not greater
+   * than {@link NestedGuard#retainedCapacity}. Provides no-throw guarantee.
+   *
+   * @param cleared {@code true} if all items are known to be {@code null} already.
+   */
+  private void reset(final boolean cleared) {
+    final AutoCloseable[] currentItems = items;
+    if (currentItems != null && currentItems.length <= retainedCapacity) {
+      if (!cleared) {
+        Arrays.fill(currentItems, 0, size, null);
+      }
+    } else {
+      items = null;
+    }
+    size = 0;
+    closeCursor = 0;
+  }
+
+  private int countNonNullItems(final int to) {
+    int count = 0;
+    for (int i = 0; i < to; ++i) {
+      if (items[i] != null) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Removes {@code null} items, i.e. successfully closed items, keeping the order of remaining
+   * items. Provides no-throw guarantee.
+   */
+  private void removeNullItems() {
+    removeNullItems(0);
+    closeCursor = 0;
+  }
+
+  /**
+   * Removes {@code null} items starting from given index, keeping the order of remaining items.
+   * Provides no-throw guarantee.
+   */
+  private void removeNullItems(final int from) {
+    int newSize = from;
+    for (int i = from; i < size; ++i) {
+      final AutoCloseable item = items[i];
+      if (item != null) {
+        items[newSize++] = item;
+      }
+    }
+    Arrays.fill(items, newSize, size, null);
+    size = newSize;
+  }
+
+  private static void awaitUninterruptibly(final CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (final InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void checkIndex(final int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
     }
   }
 
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+/**
+ * Thread-local pool of instances of {@link NestedGuard} which keep their internal storage between
+ * uses (refer to {@link NestedGuard#NestedGuard(int)}), so that guarding of resources in steady
+ * state, e.g. per request, performs no allocation. Each thread keeps up to {@code maxPooledGuards}
+ * guards, so nested acquiring is supported. Guard should be recycled by the same thread which
+ * acquired it, otherwise it is pooled by the recycling thread. Memory kept by pool is up to number
+ * of threads * {@code maxPooledGuards} * {@code retainedCapacity} references.
+ * <pre>
+ * final NestedGuard guard = pool.acquire();
+ * try {
+ *   ...
+ *   guard.close();
+ * } finally {
+ *   pool.recycle(guard);
+ * }
+ * </pre>
+ */
+public final class NestedGuardPool {
+
+  private static final class Stack {
+
+    final NestedGuard[] guards;
+    int size;
+
+    Stack(final int capacity) {
+      guards = new NestedGuard[capacity];
+    }
+  }
+
+  private final int retainedCapacity;
+  private final int maxPooledGuards;
+  private final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>() {
+    @Override
+    protected Stack initialValue() {
+      return new Stack(maxPooledGuards);
+    }
+  };
+
+  /**
+   * Creates pool.
+   *
+   * @param retainedCapacity maximum capacity of internal storage kept by each pooled guard, refer
+   * to {@link NestedGuard#NestedGuard(int)}, should be &gt;= 0.
+   * @param maxPooledGuards maximum number of guards pooled per thread, should be &gt; 0.
+   * @throws IllegalArgumentException if {@code retainedCapacity} is &lt; 0 or {@code
+   * maxPooledGuards} is &lt;= 0.
+   */
+  public NestedGuardPool(final int retainedCapacity, final int maxPooledGuards) {
+    if (retainedCapacity < 0) {
+      throw new IllegalArgumentException(
+          "Retained capacity should not be negative: " + retainedCapacity);
+    }
+    if (maxPooledGuards <= 0) {
+      throw new IllegalArgumentException(
+          "Max number of pooled guards should be positive: " + maxPooledGuards);
+    }
+    this.retainedCapacity = retainedCapacity;
+    this.maxPooledGuards = maxPooledGuards;
+  }
+
+  /**
+   * Takes guard from pool of the calling thread or creates new guard if pool is empty. Returned
+   * guard guards nothing. Provides strong exception safety. Performs no allocation if pool of the
+   * calling thread is not empty.
+   *
+   * @return guard which guards nothing.
+   */
+  public NestedGuard acquire() {
+    final Stack stack = stacks.get();
+    if (stack.size == 0) {
+      return new NestedGuard(retainedCapacity);
+    }
+    final NestedGuard guard = stack.guards[--stack.size];
+    stack.guards[stack.size] = null;
+    return guard;
+  }
+
+  /**
+   * Returns guard to pool of the calling thread. Guard is pooled only if it guards nothing, was
+   * created with the same retained capacity as this pool uses, is not pooled already and there is
+   * free space in pool of the calling thread. Guard should not be used after it was pooled. Provides no-throw guarantee
+   * once pool of the calling thread is created.
+   *
+   * @param guard guard to return, may be {@code null}.
+   * @return {@code true} if {@code guard} was pooled, {@code false} if it was not, e.g. because it
+   * still guards resources which failed to close. Guard which was not pooled remains owned by the
+   * caller.
+   */
+  public boolean recycle(final NestedGuard guard) {
+    if (guard == null || guard.size() != 0 || guard.retainedCapacity != retainedCapacity) {
+      return false;
+    }
+    final Stack stack = stacks.get();
+    if (stack.size == stack.guards.length) {
+      return false;
+    }
+    // Guard recycled twice would be given to two users
+    for (int i = 0; i < stack.size; ++i) {
+      if (stack.guards[i] == guard) {
+        return false;
+      }
+    }
+    stack.guards[stack.size++] = guard;
+    return true;
+  }
+}
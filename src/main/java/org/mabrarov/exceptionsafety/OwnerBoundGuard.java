@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Guard of multiple resources, which is bound to owner object and closes guarded resources after
+ * the owner becomes unreachable, if the owner was dropped without closing this guard. Closing
+ * happens in the same way (order, handling of failed resources) as {@link NestedGuard#close()}
+ * method does.
+ * <p>
+ * Owner is tracked with {@link PhantomReference}, so it cannot be resurrected. Reference queue is
+ * processed by single daemon thread shared by all instances, which is started on first use. Neither
+ * that thread nor the reference refer to the owner or to this guard: they refer only to internal
+ * instance of {@link NestedGuard} holding resources, so that no strong reference cycle is created.
+ * Registration costs allocation of the reference and insertion into concurrent set. Successful
+ * {@link OwnerBoundGuard#close()} removes registration, so that closed guard costs nothing.
+ * <p>
+ * Instance of this class should be referenced only by its owner (and by local variables of the
+ * owner methods), otherwise resources can be closed by the shared thread while they are used.
+ * Garbage collector can consider the owner unreachable while its method still runs, if the rest
+ * of the method does not use the owner, e.g. after the method read field with guarded resource.
+ * So the owner should be kept reachable till the end of use of guarded resources, e.g. with
+ * {@code java.lang.ref.Reference#reachabilityFence} on Java 9+ or by accessing own field after the
+ * last use of resources on earlier versions of Java, which have no such method.
+ * <p>
+ * Methods of this class and closing by the shared thread are serialized by internal lock, so
+ * closing by the shared thread never interleaves with modification of this guard. Resource added
+ * after the shared thread closed this guard (or after this guard was closed successfully) is
+ * closed immediately and {@link IllegalStateException} is thrown.
+ */
+public class OwnerBoundGuard implements AutoCloseable {
+
+  private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+  private static final Set<OwnerReference> REFERENCES =
+      Collections.newSetFromMap(new ConcurrentHashMap<OwnerReference, Boolean>());
+
+  private final OwnerReference reference;
+
+  /**
+   * Creates guard bound to {@code owner}. Failures of closing resources by the shared thread are
+   * passed to uncaught exception handler of that thread. Provides strong exception safety.
+   *
+   * @param owner object which owns this guard.
+   */
+  public OwnerBoundGuard(final Object owner) {
+    this(owner, null);
+  }
+
+  /**
+   * Creates guard bound to {@code owner}. Provides strong exception safety.
+   *
+   * @param owner object which owns this guard.
+   * @param failureHandler handler of failures of closing resources by the shared thread, {@code
+   * null} means that failures are passed to uncaught exception handler of the shared thread.
+   * Resource passed to handler is internal instance of {@link NestedGuard} which holds resources
+   * which failed to close.
+   */
+  public OwnerBoundGuard(final Object owner, final BackgroundCloser.FailureHandler failureHandler) {
+    if (owner == null) {
+      throw new NullPointerException("Owner should not be null");
+    }
+    Holder.startCleaner();
+    reference = new OwnerReference(owner, new NestedGuard(), failureHandler);
+    REFERENCES.add(reference);
+  }
+
+  /**
+   * Adds instance of {@link AutoCloseable} to guard. Works the same way as {@link
+   * NestedGuard#add(AutoCloseable)} method does.
+   *
+   * @param resource instance of {@link AutoCloseable} to guard, may be {@code null}.
+   * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
+   * @throws IllegalStateException if this guard was closed successfully or was closed by the
+   * shared thread. {@code resource} is closed in this case.
+   */
+  public <T extends AutoCloseable> T add(final T resource) {
+    synchronized (reference) {
+      if (reference.state != OwnerReference.OPEN) {
+        final IllegalStateException exception = new IllegalStateException(
+            reference.state == OwnerReference.CLOSED ? "Guard is closed"
+                : "Guard was closed because owner became unreachable");
+        Closeables.closeOnFailure(resource, exception);
+        throw exception;
+      }
+      return reference.guard.add(resource);
+    }
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return number of guarded instances of {@link AutoCloseable}.
+   */
+  public int size() {
+    synchronized (reference) {
+      return reference.guard.size();
+    }
+  }
+
+  /**
+   * Works the same way as {@link NestedGuard#get(int)} method does.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}.
+   * @return existing guarded instance of {@link AutoCloseable} with given {@code index}.
+   */
+  public AutoCloseable get(final int index) {
+    synchronized (reference) {
+      return reference.guard.get(index);
+    }
+  }
+
+  /**
+   * Works the same way as {@link NestedGuard#remove(int)} method does.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}.
+   * @return instance of {@link AutoCloseable} which was guarded by item with given {@code index}.
+   */
+  public AutoCloseable remove(final int index) {
+    synchronized (reference) {
+      return reference.guard.remove(index);
+    }
+  }
+
+  /**
+   * Resets this instance to guard nothing. Provides no-throw guarantee. Resources which were
+   * guarded before are not impacted and are forgotten.
+   */
+  public void release() {
+    synchronized (reference) {
+      reference.guard.release();
+    }
+  }
+
+  /**
+   * Closes guarded instances of {@link AutoCloseable} the same way as {@link NestedGuard#close()}
+   * method does. If all resources were closed then this guard stops tracking of the owner and
+   * cannot be used to guard resources anymore, otherwise resources which failed to close remain
+   * guarded and are closed when the owner becomes unreachable. Subsequent calls after successful
+   * call do nothing.
+   *
+   * @throws Exception if {@link AutoCloseable#close()} method of one of guarded resources throws
+   * exception.
+   */
+  @Override
+  public void close() throws Exception {
+    synchronized (reference) {
+      if (reference.state != OwnerReference.OPEN) {
+        return;
+      }
+      reference.guard.close();
+      reference.state = OwnerReference.CLOSED;
+    }
+    REFERENCES.remove(reference);
+    reference.clear();
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return {@code true} if this guard tracks its owner, i.e. was not closed successfully.
+   */
+  boolean isRegistered() {
+    return REFERENCES.contains(reference);
+  }
+
+  private static final class OwnerReference extends PhantomReference<Object> {
+
+    static final int OPEN = 0;
+    static final int CLOSED = 1;
+    static final int CLEANED = 2;
+
+    final NestedGuard guard;
+    final BackgroundCloser.FailureHandler failureHandler;
+    /**
+     * Guarded by this instance.
+     */
+    int state = OPEN;
+
+    OwnerReference(final Object owner, final NestedGuard guard,
+        final BackgroundCloser.FailureHandler failureHandler) {
+      super(owner, QUEUE);
+      this.guard = guard;
+      this.failureHandler = failureHandler;
+    }
+
+    void cleanUp() {
+      try {
+        synchronized (this) {
+          if (state != OPEN) {
+            return;
+          }
+          state = CLEANED;
+          guard.close();
+        }
+      } catch (final Throwable e) {
+        handleFailure(e);
+      }
+    }
+
+    private void handleFailure(final Throwable exception) {
+      final Thread thread = Thread.currentThread();
+      if (failureHandler != null) {
+        try {
+          failureHandler.closeFailed(guard, exception);
+          return;
+        } catch (final Throwable handlerException) {
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, handlerException);
+          return;
+        }
+      }
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, exception);
+    }
+  }
+
+  private static final class Holder {
+
+    static final Thread CLEANER = newCleaner();
+
+    /**
+     * Triggers lazy initialization of the shared thread. Provides no-throw guarantee after the
+     * first successful call.
+     */
+    static void startCleaner() {
+      // Thread is started by class initialization
+    }
+
+    private static Thread newCleaner() {
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (; ; ) {
+            final OwnerReference reference;
+            try {
+              reference = (OwnerReference) QUEUE.remove();
+            } catch (final InterruptedException e) {
+              // Shared thread should not stop
+              continue;
+            }
+            try {
+              REFERENCES.remove(reference);
+              reference.cleanUp();
+            } catch (final Throwable ignored) {
+              // Shared thread should not stop
+            }
+          }
+        }
+      }, "owner-bound-guard-cleaner");
+      thread.setDaemon(true);
+      thread.start();
+      return thread;
+    }
+  }
+}
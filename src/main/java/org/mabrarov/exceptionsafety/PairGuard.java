@@ -15,6 +15,9 @@
  */
 package org.mabrarov.exceptionsafety;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
 public class PairGuard implements AutoCloseable {
 
   private final Guard firstGuard = new Guard();
@@ -28,8 +31,7 @@ public class PairGuard implements AutoCloseable {
    * @return instance of {@link AutoCloseable} passed as {@code first} parameter.
    */
   public <T extends AutoCloseable> T setFirst(final T first) {
-    this.firstGuard.set(first);
-    return first;
+    return firstGuard.set(first, this);
   }
 
   /**
@@ -40,7 +42,14 @@ public class PairGuard implements AutoCloseable {
    * @return instance of {@link AutoCloseable} passed as {@code second} parameter.
    */
   public <T extends AutoCloseable> T setSecond(final T second) {
+    final AutoCloseable previousSecond = this.second;
     this.second = second;
+    if (previousSecond != second) {
+      Closeables.released(this, previousSecond);
+      if (GuardListeners.LISTENER != null) {
+        GuardListeners.added(this, second);
+      }
+    }
     return second;
   }
 
@@ -62,7 +71,7 @@ public class PairGuard implements AutoCloseable {
    * Provides no-throw guarantee.
    */
   public AutoCloseable releaseFirst() {
-    return firstGuard.release();
+    return firstGuard.release(this);
   }
 
   /**
@@ -71,6 +80,7 @@ public class PairGuard implements AutoCloseable {
   public AutoCloseable releaseSecond() {
     AutoCloseable tmp = second;
     second = null;
+    Closeables.released(this, tmp);
     return tmp;
   }
 
@@ -78,8 +88,8 @@ public class PairGuard implements AutoCloseable {
    * Provides no-throw guarantee.
    */
   public void release() {
-    firstGuard.release();
-    second = null;
+    firstGuard.release(this);
+    releaseSecond();
   }
 
   /**
@@ -94,13 +104,85 @@ public class PairGuard implements AutoCloseable {
     other.second = thisSecond;
   }
 
+  /**
+   * Passes all guarded instances of {@link AutoCloseable} to {@code closer} to be closed in
+   * background and resets this instance to guard nothing. Resources are passed as single instance
+   * of {@link PairGuard}, so they are closed the same way (order, handling of failed resources) as
+   * {@link PairGuard#close()} method does and that instance of {@link PairGuard} is passed to {@link
+   * BackgroundCloser.FailureHandler} if closing fails. If nothing is guarded then does nothing.
+   * Provides strong exception safety.
+   *
+   * @param closer instance of {@link BackgroundCloser} to close guarded resources.
+   * @throws java.util.concurrent.RejectedExecutionException if {@code closer} rejects resources.
+   * Guarded resources are not impacted in this case.
+   */
+  public void closeInBackground(final BackgroundCloser closer) {
+    if (getFirst() == null && second == null) {
+      return;
+    }
+    final PairGuard detached = new PairGuard();
+    swap(detached);
+    try {
+      closer.submit(detached);
+    } catch (final Throwable e) {
+      swap(detached);
+      throw Closeables.rethrowUnchecked(e);
+    }
+  }
+
+  /**
+   * Closes this guard asynchronously, i.e. invokes {@link PairGuard#close()} method using given {@code
+   * executor}. Resources are closed the same way (order, handling of failed resources) as {@link
+   * PairGuard#close()} method does. This guard should not be used until returned future is done.
+   * Provides strong exception safety.
+   *
+   * @param executor executor to run {@link PairGuard#close()} method.
+   * @return future which completes when {@link PairGuard#close()} method completes. If {@link
+   * PairGuard#close()} method throws exception then {@link Future#get()} method of returned future
+   * throws {@link java.util.concurrent.ExecutionException} which cause is the same exception
+   * (including its suppressed exceptions) as {@link PairGuard#close()} method throws.
+   * @throws java.util.concurrent.RejectedExecutionException if {@code executor} rejects task. Guarded
+   * resources are not impacted in this case.
+   */
+  public Future<Void> closeAsync(final Executor executor) {
+    return Closeables.closeAsync(this, executor);
+  }
+
   @Override
   public void close() throws Exception {
-    try (@SuppressWarnings("unused") final AutoCloseable guard = firstGuard) {
-      if (second != null) {
-        second.close();
+    final int itemCount = (getFirst() == null ? 0 : 1) + (second == null ? 0 : 1);
+    if (itemCount == 0) {
+      return;
+    }
+    final Object event = CloseEvents.beginGuardClose();
+    try {
+      closeItems();
+    } catch (final Throwable e) {
+      CloseEvents.endGuardClose(event, this, itemCount, true);
+      throw e;
+    }
+    CloseEvents.endGuardClose(event, this, itemCount, false);
+  }
+
+  private void closeItems() throws Exception {
+    // The same order and nesting of exceptions as try-with-resources statement guarding the first
+    // resource provides
+    Throwable currentException = null;
+    if (second != null) {
+      try {
+        Closeables.close(this, second);
         second = null;
+      } catch (final Throwable e) {
+        currentException = e;
       }
     }
+    try {
+      firstGuard.closeResource(this);
+    } catch (final Throwable e) {
+      currentException = Closeables.addSuppressed(currentException, e);
+    }
+    if (currentException != null) {
+      Closeables.rethrow(currentException);
+    }
   }
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.Arrays;
+
+/**
+ * Variant of {@link NestedGuard} intended for millions of guarded resources. Resources are stored
+ * in chunks of {@link SegmentedNestedGuard#CHUNK_SIZE} items referenced by spine array, so adding
+ * never copies guarded resources (only spine, which is {@link SegmentedNestedGuard#CHUNK_SIZE}
+ * times smaller, is copied when it grows) and no large array is allocated, e.g. no humongous
+ * regions are allocated by G1. Chunks are dropped by {@link SegmentedNestedGuard#close()} while it
+ * walks from the last resource, so that memory is returned during closing. Provides the same
+ * contract and exception safety guarantees as {@link NestedGuard}, except that {@link
+ * NestedGuard#remove(int)} is not supported. For small number of resources {@link NestedGuard}
+ * requires less memory.
+ */
+public class SegmentedNestedGuard implements AutoCloseable {
+
+  private static final int CHUNK_SHIFT = 10;
+
+  /**
+   * Number of items in single chunk.
+   */
+  public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int DEFAULT_SPINE_CAPACITY = 4;
+  private static final int MAX_SIZE = Integer.MAX_VALUE - CHUNK_SIZE;
+
+  private AutoCloseable[][] spine;
+  /**
+   * Chunk where the next item is added, cached to avoid access to spine on adding.
+   */
+  private AutoCloseable[] tailChunk;
+  private int size;
+
+  /**
+   * Same as {@link NestedGuard#add(AutoCloseable)}. Provides strong exception safety. If there is
+   * free capacity in the last chunk then provides no-throw guarantee and performs no allocation,
+   * otherwise allocates single chunk (and rarely new spine).
+   *
+   * @param resource instance of {@link AutoCloseable} to be guarded, may be {@code null}. If {@code
+   * null} then {@link SegmentedNestedGuard#size()} is still incremented.
+   * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
+   */
+  public <T extends AutoCloseable> T add(final T resource) {
+    final int offset = size & CHUNK_MASK;
+    if (offset != 0) {
+      tailChunk[offset] = resource;
+      ++size;
+    } else {
+      addWithNewChunk(resource);
+    }
+    if (GuardListeners.LISTENER != null) {
+      GuardListeners.added(this, resource);
+    }
+    return resource;
+  }
+
+  /**
+   * Retrieves number of guarded instances of {@link AutoCloseable}. Provides no-throw guarantee.
+   *
+   * @return number of of guarded instances of {@link AutoCloseable}.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Same as {@link NestedGuard#set(int, AutoCloseable)}.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}. Should be &gt;= 0 and
+   * &lt; {@link SegmentedNestedGuard#size()}.
+   * @param resource new instance of {@link AutoCloseable} to guard, may be {@code null}.
+   * @throws IndexOutOfBoundsException if {@code index} is &lt; 0 or &gt;= {@link
+   * SegmentedNestedGuard#size()}.
+   */
+  public void set(final int index, final AutoCloseable resource) {
+    checkIndex(index);
+    final AutoCloseable[] chunk = spine[index >>> CHUNK_SHIFT];
+    final AutoCloseable previousItem = chunk[index & CHUNK_MASK];
+    chunk[index & CHUNK_MASK] = resource;
+    if (previousItem != resource) {
+      Closeables.released(this, previousItem);
+      if (GuardListeners.LISTENER != null) {
+        GuardListeners.added(this, resource);
+      }
+    }
+  }
+
+  /**
+   * Same as {@link NestedGuard#get(int)}.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}. Should be &gt;= 0 and
+   * &lt; {@link SegmentedNestedGuard#size()}.
+   * @return existing guarded instance of {@link AutoCloseable} with given {@code index}, maybe
+   * {@code null}.
+   * @throws IndexOutOfBoundsException if {@code index} is &lt; 0 or &gt;= {@link
+   * SegmentedNestedGuard#size()}.
+   */
+  public AutoCloseable get(final int index) {
+    checkIndex(index);
+    return spine[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  /**
+   * Resets this instance to guard nothing. Provides no-throw guarantee. Resources which were
+   * guarded before are not impacted and are forgotten.
+   */
+  public void release() {
+    if (GuardListeners.LISTENER != null) {
+      for (int i = 0; i < size; ++i) {
+        Closeables.released(this, spine[i >>> CHUNK_SHIFT][i & CHUNK_MASK]);
+      }
+    }
+    spine = null;
+    tailChunk = null;
+    size = 0;
+  }
+
+  /**
+   * Same as {@link NestedGuard#release(int)}.
+   *
+   * @param index index of existing guarded instance of {@link AutoCloseable}. Should be &gt;= 0 and
+   * &lt; {@link SegmentedNestedGuard#size()}.
+   * @return instance of {@link AutoCloseable} which was guarded by item with given {@code index},
+   * may be {@code null}.
+   * @throws IndexOutOfBoundsException if {@code index} is &lt; 0 or &gt;= {@link
+   * SegmentedNestedGuard#size()}.
+   */
+  public AutoCloseable release(final int index) {
+    checkIndex(index);
+    final AutoCloseable[] chunk = spine[index >>> CHUNK_SHIFT];
+    final AutoCloseable tmp = chunk[index & CHUNK_MASK];
+    chunk[index & CHUNK_MASK] = null;
+    Closeables.released(this, tmp);
+    return tmp;
+  }
+
+  /**
+   * Same as {@link NestedGuard#close()}. While no resource failed to close, each chunk is dropped
+   * as soon as all its resources are closed. If some resources failed to close then they are
+   * moved to the beginning keeping their order and chunks which are not needed anymore are
+   * dropped.
+   *
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  @Override
+  public void close() throws Exception {
+    // All operations except AutoCloseable#close are assumed to provide no-throw guarantee
+    if (size == 0) {
+      release();
+      return;
+    }
+    final Object event = CloseEvents.beginGuardClose();
+    final int itemCount = size;
+    Throwable currentException = null;
+    for (int chunkIndex = (size - 1) >>> CHUNK_SHIFT; chunkIndex >= 0; --chunkIndex) {
+      final AutoCloseable[] chunk = spine[chunkIndex];
+      for (int offset = chunkIndex == (size - 1) >>> CHUNK_SHIFT ? (size - 1) & CHUNK_MASK
+          : CHUNK_MASK; offset >= 0; --offset) {
+        final AutoCloseable item = chunk[offset];
+        if (item == null) {
+          continue;
+        }
+        try {
+          Closeables.close(this, item);
+          chunk[offset] = null;
+        } catch (final Throwable closeException) {
+          currentException = Closeables.addSuppressed(currentException, closeException);
+        }
+      }
+      if (currentException == null) {
+        // All items starting from this chunk are closed
+        spine[chunkIndex] = null;
+        size = chunkIndex << CHUNK_SHIFT;
+        tailChunk = chunkIndex == 0 ? null : spine[chunkIndex - 1];
+      }
+    }
+    if (currentException == null) {
+      release();
+      CloseEvents.endGuardClose(event, this, itemCount, false);
+      return;
+    }
+    removeNullItems();
+    CloseEvents.endGuardClose(event, this, itemCount, true);
+    Closeables.rethrow(currentException);
+  }
+
+  /**
+   * Marked as "protected" for testing purposes only. Should provide strong exception safety.
+   * Invoked by {@link SegmentedNestedGuard#add(AutoCloseable)} only when the last chunk is full or
+   * there are no chunks.
+   *
+   * @param item new item to be added at the end of guarded items, i.e. at {@link
+   * SegmentedNestedGuard#size()} index.
+   */
+  protected void addItem(final AutoCloseable item) {
+    if (size >= MAX_SIZE) {
+      throw new OutOfMemoryError("Required capacity is too large: " + (size + 1));
+    }
+    final int chunkIndex = size >>> CHUNK_SHIFT;
+    AutoCloseable[][] newSpine = spine;
+    if (newSpine == null) {
+      newSpine = new AutoCloseable[DEFAULT_SPINE_CAPACITY][];
+    } else if (chunkIndex == newSpine.length) {
+      newSpine = Arrays.copyOf(newSpine, newSpine.length << 1);
+    }
+    final AutoCloseable[] chunk = new AutoCloseable[CHUNK_SIZE];
+    chunk[0] = item;
+    newSpine[chunkIndex] = chunk;
+    spine = newSpine;
+    tailChunk = chunk;
+    ++size;
+  }
+
+  private void addWithNewChunk(final AutoCloseable resource) {
+    try {
+      addItem(resource);
+    } catch (final Throwable e) {
+      Closeables.closeOnFailure(resource, e);
+      throw Closeables.rethrowUnchecked(e);
+    }
+  }
+
+  /**
+   * Removes {@code null} items, i.e. successfully closed items, keeping the order of remaining
+   * items, and drops chunks which are not needed anymore. Provides no-throw guarantee.
+   */
+  private void removeNullItems() {
+    int newSize = 0;
+    for (int i = 0; i < size; ++i) {
+      final AutoCloseable[] chunk = spine[i >>> CHUNK_SHIFT];
+      final AutoCloseable item = chunk[i & CHUNK_MASK];
+      if (item == null) {
+        continue;
+      }
+      chunk[i & CHUNK_MASK] = null;
+      spine[newSize >>> CHUNK_SHIFT][newSize & CHUNK_MASK] = item;
+      ++newSize;
+    }
+    final int chunkCount = (newSize + CHUNK_MASK) >>> CHUNK_SHIFT;
+    Arrays.fill(spine, chunkCount, (size + CHUNK_MASK) >>> CHUNK_SHIFT, null);
+    size = newSize;
+    tailChunk = chunkCount == 0 ? null : spine[chunkCount - 1];
+  }
+
+  private void checkIndex(final int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+}
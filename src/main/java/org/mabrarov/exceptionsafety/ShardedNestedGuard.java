@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Guard for resources added by multiple threads where each thread adds resources to its own
+ * segment without synchronization. Segment of thread is created (and registered with single CAS)
+ * when thread adds resource to this guard for the first time, so cost of adding of resource does
+ * not depend on number of threads. Each thread caches the segment it used last in thread-local
+ * variable shared by all instances of this class, so that thread retains at most one segment, i.e.
+ * no more than one instance of this class, after it stops using guards. Thread which switches
+ * between multiple guards looks up its segment in list of segments, which takes time proportional
+ * to the number of threads which added resources to the guard.<br/> Methods other than {@link
+ * ShardedNestedGuard#add(AutoCloseable)} access segments of all threads, so they should be called
+ * only when all threads completed adding of resources and there is happens-before relationship
+ * between adding of resources and these methods, e.g. after {@link Thread#join()} or {@link
+ * java.util.concurrent.Future#get()}.
+ */
+public class ShardedNestedGuard implements AutoCloseable {
+
+  private static final class Segment {
+
+    final ShardedNestedGuard owner;
+    final long threadId;
+    final NestedGuard guard = new NestedGuard();
+    Segment next;
+
+    Segment(final ShardedNestedGuard owner, final long threadId) {
+      this.owner = owner;
+      this.threadId = threadId;
+    }
+  }
+
+  private static final ThreadLocal<Segment> LOCAL_SEGMENT = new ThreadLocal<>();
+
+  private final AtomicReference<Segment> segments = new AtomicReference<>();
+
+  /**
+   * Guards given resource in segment of the calling thread. Can be called by multiple threads
+   * concurrently. Provides strong exception safety the same way as {@link
+   * NestedGuard#add(AutoCloseable)} does.
+   *
+   * @param resource instance of {@link AutoCloseable} to be guarded, may be {@code null}.
+   * @return instance of {@link AutoCloseable} passed as {@code resource} parameter.
+   */
+  public <T extends AutoCloseable> T add(final T resource) {
+    Segment segment = LOCAL_SEGMENT.get();
+    if (segment == null || segment.owner != this) {
+      segment = switchSegment(resource);
+    }
+    return segment.guard.add(resource);
+  }
+
+  /**
+   * Retrieves number of guarded instances of {@link AutoCloseable} in all segments. Provides
+   * no-throw guarantee.
+   *
+   * @return number of of guarded instances of {@link AutoCloseable}.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment = segments.get(); segment != null; segment = segment.next) {
+      size += segment.guard.size();
+    }
+    return size;
+  }
+
+  /**
+   * Resets this instance to guard nothing. Provides no-throw guarantee. Resources which were
+   * guarded before are not impacted and are forgotten.
+   */
+  public void release() {
+    for (Segment segment = segments.get(); segment != null; segment = segment.next) {
+      segment.guard.release();
+    }
+  }
+
+  /**
+   * Closes all guarded instances of {@link AutoCloseable}. Resources of each thread are closed in
+   * the order opposite to order of their adding by that thread, segments are closed in the order
+   * opposite to order of their registration. Provides the same exception safety as {@link
+   * NestedGuard#close()}: resources which {@link AutoCloseable#close()} method failed remain
+   * guarded. Exceptions are nested as {@link NestedGuard#close()} does, as if all resources were
+   * guarded by single {@link NestedGuard}: the first exception is thrown and all other exceptions
+   * are its suppressed exceptions.
+   *
+   * @throws Exception if {@link AutoCloseable#close()} method of one of the guarded resources
+   * throws exception.
+   */
+  @Override
+  public void close() throws Exception {
+    Throwable currentException = null;
+    for (Segment segment = segments.get(); segment != null; segment = segment.next) {
+      currentException = segment.guard.closeNested(currentException);
+    }
+    if (currentException != null) {
+      Closeables.rethrow(currentException);
+    }
+  }
+
+  /**
+   * Finds segment of the calling thread or registers new segment and makes it segment cached by
+   * the calling thread. Provides strong exception safety, closes {@code resource} if fails.
+   */
+  private Segment switchSegment(final AutoCloseable resource) {
+    final Segment segment;
+    try {
+      segment = findOrRegisterSegment(Thread.currentThread().getId());
+      LOCAL_SEGMENT.set(segment);
+    } catch (final Throwable e) {
+      // Registered segment remains empty, so it doesn't impact closing of resources
+      Closeables.closeOnFailure(resource, e);
+      throw Closeables.rethrowUnchecked(e);
+    }
+    return segment;
+  }
+
+  private Segment findOrRegisterSegment(final long threadId) {
+    for (Segment segment = segments.get(); segment != null; segment = segment.next) {
+      if (segment.threadId == threadId) {
+        return segment;
+      }
+    }
+    final Segment segment = new Segment(this, threadId);
+    Segment current;
+    do {
+      current = segments.get();
+      segment.next = current;
+    } while (!segments.compareAndSet(current, segment));
+    return segment;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which spreads updates over multiple cells to avoid contention of threads updating it
+ * concurrently. Cells are padded, so that they are located in different cache lines. Cell is
+ * chosen by identifier of updating thread. Reading sums up all cells and never blocks updates, so
+ * value read concurrently with updates is not guaranteed to be exact.<br/> Thread-safe.
+ */
+final class StripedCounter {
+
+  private static final int MAX_STRIPE_COUNT = 64;
+  // 16 longs take 128 bytes, which covers cache line and adjacent cache line prefetch
+  private static final int PADDING = 16;
+
+  private final AtomicLongArray cells;
+  private final int mask;
+
+  StripedCounter() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  StripedCounter(final int concurrency) {
+    int stripeCount = 1;
+    while (stripeCount < concurrency * 2 && stripeCount < MAX_STRIPE_COUNT) {
+      stripeCount <<= 1;
+    }
+    cells = new AtomicLongArray(stripeCount * PADDING);
+    mask = stripeCount - 1;
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @param delta value to add, may be negative.
+   */
+  void add(final long delta) {
+    cells.getAndAdd(cellIndex(), delta);
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   */
+  void increment() {
+    add(1);
+  }
+
+  /**
+   * Provides no-throw guarantee.
+   *
+   * @return sum of all cells.
+   */
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i <= mask; ++i) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  private int cellIndex() {
+    final long threadId = Thread.currentThread().getId();
+    // Fibonacci hashing spreads sequential thread identifiers
+    final int hash = (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32);
+    return (hash & mask) * PADDING;
+  }
+}
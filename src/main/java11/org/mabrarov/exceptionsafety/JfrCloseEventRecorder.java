@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Records closing of guards and of guarded resources as Java Flight Recorder events. Events
+ * honor JFR settings, including threshold, so closes which are shorter than threshold are not
+ * recorded. Events are not created at all when their type is not enabled by any running
+ * recording, so that closing performs no allocation when JFR is not used. Tracks state of
+ * recordings, so that {@link CloseEvents#isEnabled()} is {@code false} while no recording is
+ * running. Loaded by {@link CloseEvents} using reflection.
+ */
+final class JfrCloseEventRecorder extends CloseEvents.Recorder {
+
+  private final EventType guardCloseType = EventType.getEventType(GuardCloseEvent.class);
+  private final EventType resourceCloseType = EventType.getEventType(ResourceCloseEvent.class);
+
+  JfrCloseEventRecorder() {
+    if (!FlightRecorder.isAvailable()) {
+      throw new IllegalStateException("Flight Recorder is not available");
+    }
+    // Notifies about already running recordings if Flight Recorder is initialized
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recorderInitialized(final FlightRecorder recorder) {
+        updateRecording(recorder);
+      }
+
+      @Override
+      public void recordingStateChanged(final Recording recording) {
+        updateRecording(FlightRecorder.getFlightRecorder());
+      }
+    });
+  }
+
+  private static void updateRecording(final FlightRecorder recorder) {
+    boolean running = false;
+    for (final Recording recording : recorder.getRecordings()) {
+      if (recording.getState() == RecordingState.RUNNING) {
+        running = true;
+        break;
+      }
+    }
+    CloseEvents.setRecording(running);
+  }
+
+  @Override
+  Object beginGuardClose() {
+    if (!guardCloseType.isEnabled()) {
+      return null;
+    }
+    final GuardCloseEvent event = new GuardCloseEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endGuardClose(final Object event, final AutoCloseable guard, final int itemCount,
+      final boolean failed) {
+    final GuardCloseEvent guardCloseEvent = (GuardCloseEvent) event;
+    guardCloseEvent.end();
+    if (!guardCloseEvent.shouldCommit()) {
+      return;
+    }
+    guardCloseEvent.guardClass = guard.getClass();
+    guardCloseEvent.itemCount = itemCount;
+    guardCloseEvent.failed = failed;
+    guardCloseEvent.commit();
+  }
+
+  @Override
+  Object beginResourceClose() {
+    if (!resourceCloseType.isEnabled()) {
+      return null;
+    }
+    final ResourceCloseEvent event = new ResourceCloseEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endResourceClose(final Object event, final AutoCloseable guard,
+      final AutoCloseable resource, final boolean failed) {
+    final ResourceCloseEvent resourceCloseEvent = (ResourceCloseEvent) event;
+    resourceCloseEvent.end();
+    if (!resourceCloseEvent.shouldCommit()) {
+      return;
+    }
+    resourceCloseEvent.guardClass = guard.getClass();
+    resourceCloseEvent.resourceClass = resource.getClass();
+    resourceCloseEvent.failed = failed;
+    resourceCloseEvent.commit();
+  }
+
+  @Name(GuardCloseEvent.NAME)
+  @Label("Guard Close")
+  @Description("Closing of guard, including closing of all guarded resources")
+  @Category("Exception Safety")
+  @Threshold("10 ms")
+  @StackTrace(false)
+  static final class GuardCloseEvent extends Event {
+
+    static final String NAME = "org.mabrarov.exceptionsafety.GuardClose";
+
+    @Label("Guard Class")
+    Class<?> guardClass;
+
+    @Label("Item Count")
+    int itemCount;
+
+    @Label("Failed")
+    @Description("Close of at least one guarded resource threw exception")
+    boolean failed;
+  }
+
+  @Name(ResourceCloseEvent.NAME)
+  @Label("Resource Close")
+  @Description("Closing of single guarded resource")
+  @Category("Exception Safety")
+  @Threshold("10 ms")
+  @StackTrace(false)
+  static final class ResourceCloseEvent extends Event {
+
+    static final String NAME = "org.mabrarov.exceptionsafety.ResourceClose";
+
+    @Label("Guard Class")
+    Class<?> guardClass;
+
+    @Label("Resource Class")
+    Class<?> resourceClass;
+
+    @Label("Failed")
+    @Description("Close of resource threw exception")
+    boolean failed;
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Soak and scale test of {@link NestedGuard}. Each worker thread owns single guard and repeatedly
+ * fills it up to random size (log-uniformly distributed up to {@code maxSize}, so that most cycles
+ * are small and some reach millions of resources) with mixed adding, releasing and removing of
+ * resources, then closes it. Resources are instances of {@link FaultInjectingResource} which
+ * {@link AutoCloseable#close()} method fails with {@code failureProbability}, resources which
+ * failed to close are closed again until they succeed. Resources taken out of guard by release
+ * and remove are closed by worker, i.e. ownership is transferred to worker.
+ * <p>Periodically reports throughput, heap usage after GC and its growth since the first report,
+ * GC count, time and maximum pause, number of guarded resources and capacity retained by guards.
+ * At the end checks that every created resource was closed exactly once and exits with non-zero
+ * status otherwise.
+ * <p>Arguments are pairs of option name and value:
+ * <ul>
+ * <li>{@code -duration} - duration of test, seconds, 60 by default;</li>
+ * <li>{@code -reportInterval} - interval of reports, seconds, 10 by default;</li>
+ * <li>{@code -threads} - number of worker threads, 1 by default;</li>
+ * <li>{@code -maxSize} - maximum number of resources in single guard, 1000000 by default;</li>
+ * <li>{@code -failureProbability} - probability of failure of {@link AutoCloseable#close()},
+ * 0.001 by default.</li>
+ * </ul>
+ */
+public final class NestedGuardSoak {
+
+  private static final int PUBLISH_INTERVAL = 1024;
+  /**
+   * Number of the last items where resources are removed from. {@link NestedGuard#remove(int)} is
+   * O(n) and removal of random items of guards with millions of resources would dominate the test.
+   */
+  private static final int REMOVE_WINDOW = 64;
+  private static final long MEGABYTE = 1024 * 1024;
+
+  private final long durationSeconds;
+  private final long reportIntervalSeconds;
+  private final int threadCount;
+  private final int maxSize;
+  private final double failureProbability;
+
+  private NestedGuardSoak(final String[] args) {
+    long duration = 60;
+    long reportInterval = 10;
+    int threads = 1;
+    int size = 1000000;
+    double probability = 0.001;
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("No value of option: " + args[i]);
+      }
+      final String value = args[i + 1];
+      switch (args[i]) {
+        case "-duration":
+          duration = Long.parseLong(value);
+          break;
+        case "-reportInterval":
+          reportInterval = Long.parseLong(value);
+          break;
+        case "-threads":
+          threads = Integer.parseInt(value);
+          break;
+        case "-maxSize":
+          size = Integer.parseInt(value);
+          break;
+        case "-failureProbability":
+          probability = Double.parseDouble(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+    if (duration <= 0 || reportInterval <= 0 || threads <= 0 || size <= 0) {
+      throw new IllegalArgumentException(
+          "Duration, report interval, number of threads and max size should be positive");
+    }
+    durationSeconds = duration;
+    reportIntervalSeconds = reportInterval;
+    threadCount = threads;
+    maxSize = size;
+    failureProbability = probability;
+  }
+
+  public static void main(final String[] args) throws InterruptedException {
+    final boolean passed = new NestedGuardSoak(args).run();
+    System.exit(passed ? 0 : 1);
+  }
+
+  private boolean run() throws InterruptedException {
+    System.out.printf("Soak test of NestedGuard: duration %d s, %d thread(s), max size %d, "
+            + "failure probability %s%n", durationSeconds, threadCount, maxSize,
+        failureProbability);
+    final SoakMonitor monitor = new SoakMonitor();
+    monitor.start();
+    final Worker[] workers = new Worker[threadCount];
+    final Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      workers[i] = new Worker(maxSize, failureProbability);
+      threads[i] = new Thread(workers[i], "soak-worker-" + i);
+      threads[i].start();
+    }
+    System.out.printf("%8s %12s %12s %10s %10s %10s %8s %8s %8s %10s %10s %10s%n",
+        "time, s", "ops/s", "closed/s", "failures", "heap, MB", "growth, MB", "GCs",
+        "GC, ms", "pause, ms", "guarded", "capacity", "max cap");
+    final long start = System.nanoTime();
+    final long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    long baselineHeap = -1;
+    long previousOperations = 0;
+    long previousClosed = 0;
+    long previousGcCount = monitor.getCollectionCount();
+    long previousGcTime = monitor.getCollectionTimeMillis();
+    long previousTime = start;
+    while (true) {
+      final long now = System.nanoTime();
+      if (now - end >= 0) {
+        break;
+      }
+      TimeUnit.NANOSECONDS.sleep(
+          Math.min(TimeUnit.SECONDS.toNanos(reportIntervalSeconds), end - now));
+      final long time = System.nanoTime();
+      long operations = 0;
+      long closed = 0;
+      long failures = 0;
+      long guarded = 0;
+      long capacity = 0;
+      long maxCapacity = 0;
+      for (final Worker worker : workers) {
+        operations += worker.operations;
+        closed += worker.closed;
+        failures += worker.failures;
+        guarded += worker.size;
+        capacity += worker.capacity;
+        maxCapacity = Math.max(maxCapacity, worker.maxCapacity);
+      }
+      final long heap = monitor.getHeapUsedAfterGc();
+      if (baselineHeap < 0) {
+        baselineHeap = heap;
+      }
+      final long gcCount = monitor.getCollectionCount();
+      final long gcTime = monitor.getCollectionTimeMillis();
+      final double seconds = (time - previousTime) / 1e9;
+      System.out.printf("%8d %12.0f %12.0f %10d %10d %10d %8d %8d %8d %10d %10d %10d%n",
+          TimeUnit.NANOSECONDS.toSeconds(time - start), (operations - previousOperations) / seconds,
+          (closed - previousClosed) / seconds, failures, heap / MEGABYTE,
+          (heap - baselineHeap) / MEGABYTE, gcCount - previousGcCount, gcTime - previousGcTime,
+          monitor.takeMaxPauseMillis(), guarded, capacity, maxCapacity);
+      previousOperations = operations;
+      previousClosed = closed;
+      previousGcCount = gcCount;
+      previousGcTime = gcTime;
+      previousTime = time;
+    }
+    for (final Worker worker : workers) {
+      worker.stopped = true;
+    }
+    boolean passed = true;
+    long created = 0;
+    long closed = 0;
+    for (int i = 0; i < threadCount; ++i) {
+      threads[i].join();
+      final Worker worker = workers[i];
+      if (worker.failure != null) {
+        System.out.printf("Worker %d failed: %s%n", i, worker.failure);
+        worker.failure.printStackTrace(System.out);
+        passed = false;
+      }
+      created += worker.created;
+      closed += worker.closed;
+    }
+    monitor.stop();
+    System.out.printf("Created resources: %d, closed resources: %d, heap after GC: %d MB%n",
+        created, closed, monitor.getHeapUsedAfterGc() / MEGABYTE);
+    if (created != closed) {
+      System.out.println("FAILED: number of closed resources differs from number of created");
+      passed = false;
+    }
+    System.out.println(passed ? "PASSED" : "FAILED");
+    return passed;
+  }
+
+  private static final class Worker implements Runnable {
+
+    private final NestedGuard guard = new NestedGuard();
+    private final int maxSize;
+    private final double failureProbability;
+    private final FaultInjectingResource.Failure[] failureTypes =
+        FaultInjectingResource.Failure.values();
+    private long unpublishedOperations;
+    /**
+     * Number of not {@code null} items of guard. Released items remain in guard as {@code null}
+     * until it is closed, so {@link NestedGuard#size()} cannot be used to count closed resources.
+     */
+    private int guardedResources;
+    volatile boolean stopped;
+    volatile long operations;
+    volatile long created;
+    volatile long closed;
+    volatile long failures;
+    volatile int size;
+    volatile int capacity;
+    volatile int maxCapacity;
+    volatile Throwable failure;
+
+    Worker(final int maxSize, final double failureProbability) {
+      this.maxSize = maxSize;
+      this.failureProbability = failureProbability;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!stopped) {
+          fill(targetSize());
+          closeGuard();
+        }
+      } catch (final Throwable e) {
+        failure = e;
+      } finally {
+        closeGuard();
+        publish();
+      }
+    }
+
+    private int targetSize() {
+      return (int) Math.min(maxSize,
+          Math.ceil(Math.exp(ThreadLocalRandom.current().nextDouble() * Math.log(maxSize))));
+    }
+
+    private void fill(final int targetSize) {
+      final Random random = ThreadLocalRandom.current();
+      while (guard.size() < targetSize && !stopped) {
+        final int operation = random.nextInt(100);
+        final int guardSize = guard.size();
+        if (operation < 80 || guardSize == 0) {
+          guard.add(new FaultInjectingResource(0,
+              failureTypes[random.nextInt(failureTypes.length)], failureProbability, 0));
+          ++created;
+          ++guardedResources;
+        } else if (operation < 90) {
+          closeResource(guard.release(random.nextInt(guardSize)));
+        } else {
+          closeResource(
+              guard.remove(guardSize - 1 - random.nextInt(Math.min(guardSize, REMOVE_WINDOW))));
+        }
+        if (++unpublishedOperations == PUBLISH_INTERVAL) {
+          publish();
+        }
+      }
+      publish();
+    }
+
+    private void closeGuard() {
+      while (guard.size() != 0) {
+        try {
+          guard.close();
+        } catch (final Exception | TestError e) {
+          ++failures;
+        }
+        // Items remaining after close are resources which failed to close
+        closed += guardedResources - guard.size();
+        guardedResources = guard.size();
+      }
+      publish();
+    }
+
+    private void closeResource(final AutoCloseable resource) {
+      if (resource == null) {
+        return;
+      }
+      --guardedResources;
+      while (true) {
+        try {
+          resource.close();
+          ++closed;
+          return;
+        } catch (final Exception | TestError e) {
+          ++failures;
+        }
+      }
+    }
+
+    private void publish() {
+      operations += unpublishedOperations;
+      unpublishedOperations = 0;
+      size = guard.size();
+      final int currentCapacity = guard.capacity();
+      capacity = currentCapacity;
+      if (currentCapacity > maxCapacity) {
+        maxCapacity = currentCapacity;
+      }
+    }
+  }
+}
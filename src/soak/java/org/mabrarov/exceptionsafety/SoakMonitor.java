@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Collects heap and GC figures of the current JVM for soak tests. Heap usage is measured after
+ * the last GC (sum over heap memory pools), so that growth of live data can be seen regardless of
+ * amount of garbage. GC pauses are recorded with {@code com.sun.management} GC notifications if
+ * supported by JVM. Collectors which names contain "Concurrent" or "Cycles" are excluded from
+ * pauses, because they report duration of concurrent work, not of pauses.
+ */
+final class SoakMonitor implements NotificationListener {
+
+  private static final String GC_NOTIFICATION =
+      "com.sun.management.gc.notification";
+
+  private final List<GarbageCollectorMXBean> collectors =
+      ManagementFactory.getGarbageCollectorMXBeans();
+  private final List<MemoryPoolMXBean> memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+  private final AtomicLong maxPauseMillis = new AtomicLong();
+  private boolean pausesSupported;
+
+  /**
+   * Subscribes to GC notifications.
+   */
+  void start() {
+    for (final GarbageCollectorMXBean collector : collectors) {
+      if (collector instanceof NotificationEmitter) {
+        ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+        pausesSupported = true;
+      }
+    }
+  }
+
+  /**
+   * Unsubscribes from GC notifications.
+   */
+  void stop() {
+    for (final GarbageCollectorMXBean collector : collectors) {
+      if (collector instanceof NotificationEmitter) {
+        try {
+          ((NotificationEmitter) collector).removeNotificationListener(this);
+        } catch (final Exception e) {
+          // Listener was not registered
+        }
+      }
+    }
+  }
+
+  @Override
+  public void handleNotification(final Notification notification, final Object handback) {
+    if (!GC_NOTIFICATION.equals(notification.getType())
+        || !(notification.getUserData() instanceof CompositeData)) {
+      return;
+    }
+    final CompositeData info = (CompositeData) notification.getUserData();
+    final String gcName = String.valueOf(info.get("gcName"));
+    if (gcName.contains("Concurrent") || gcName.contains("Cycles")) {
+      return;
+    }
+    final long duration = ((Number) ((CompositeData) info.get("gcInfo")).get("duration"))
+        .longValue();
+    long current = maxPauseMillis.get();
+    while (duration > current && !maxPauseMillis.compareAndSet(current, duration)) {
+      current = maxPauseMillis.get();
+    }
+  }
+
+  /**
+   * @return total number of collections since start of JVM.
+   */
+  long getCollectionCount() {
+    long count = 0;
+    for (final GarbageCollectorMXBean collector : collectors) {
+      count += Math.max(0, collector.getCollectionCount());
+    }
+    return count;
+  }
+
+  /**
+   * @return total time of collections since start of JVM, milliseconds.
+   */
+  long getCollectionTimeMillis() {
+    long time = 0;
+    for (final GarbageCollectorMXBean collector : collectors) {
+      time += Math.max(0, collector.getCollectionTime());
+    }
+    return time;
+  }
+
+  /**
+   * Retrieves and resets maximum GC pause recorded since previous invocation.
+   *
+   * @return maximum GC pause, milliseconds, or -1 if GC notifications are not supported.
+   */
+  long takeMaxPauseMillis() {
+    return pausesSupported ? maxPauseMillis.getAndSet(0) : -1;
+  }
+
+  /**
+   * @return used heap memory after the last GC, bytes.
+   */
+  long getHeapUsedAfterGc() {
+    long used = 0;
+    for (final MemoryPoolMXBean pool : memoryPools) {
+      if (pool.getType() != MemoryType.HEAP) {
+        continue;
+      }
+      final MemoryUsage usage = pool.getCollectionUsage();
+      if (usage != null) {
+        used += usage.getUsed();
+      }
+    }
+    return used;
+  }
+
+  /**
+   * @return currently used heap memory including garbage, bytes.
+   */
+  long getHeapUsed() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+}
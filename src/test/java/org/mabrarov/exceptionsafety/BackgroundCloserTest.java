@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class BackgroundCloserTest {
+
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private static final class BlockingResource implements AutoCloseable {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch unblocked = new CountDownLatch(1);
+    private volatile Thread closingThread;
+
+    @Override
+    public void close() throws InterruptedException {
+      closingThread = Thread.currentThread();
+      started.countDown();
+      unblocked.await();
+    }
+
+    void awaitStarted() throws InterruptedException {
+      assertThat(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is(true));
+    }
+
+    void unblock() {
+      unblocked.countDown();
+    }
+
+    Thread getClosingThread() {
+      return closingThread;
+    }
+  }
+
+  private static BackgroundCloser.FailureHandler ignoringFailureHandler() {
+    return mock(BackgroundCloser.FailureHandler.class);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_createZeroThreads_illegalArgumentException() {
+    new BackgroundCloser(1, 0, BackgroundCloser.OverflowPolicy.BLOCK, ignoringFailureHandler());
+  }
+
+  @Test
+  public void test_submit_resourceIsClosedByWorkerThread() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(16, 2,
+        BackgroundCloser.OverflowPolicy.BLOCK, ignoringFailureHandler());
+    try {
+      final BlockingResource resource = new BlockingResource();
+      resource.unblock();
+      closer.submit(resource);
+      resource.awaitStarted();
+      assertThat(resource.getClosingThread() == Thread.currentThread(), is(false));
+    } finally {
+      closer.close();
+    }
+    assertThat(closer.getClosedCount(), is(1L));
+    assertThat(closer.getFailedCount(), is(0L));
+    assertThat(closer.getQueueDepth(), is(0));
+  }
+
+  @Test
+  public void test_submitAndCloseThrowsException_failureIsPassedToHandler() throws Exception {
+    final BackgroundCloser.FailureHandler failureHandler = ignoringFailureHandler();
+    final BackgroundCloser closer = new BackgroundCloser(16, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, failureHandler);
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    final TestException closeException = new TestException();
+    doThrow(closeException).when(resource).close();
+    try {
+      closer.submit(resource);
+      verify(failureHandler, timeout(TIMEOUT_MILLIS)).closeFailed(resource, closeException);
+    } finally {
+      closer.close();
+    }
+    assertThat(closer.getClosedCount(), is(0L));
+    assertThat(closer.getFailedCount(), is(1L));
+  }
+
+  @Test
+  public void test_submitWhenQueueIsFullAndRejectPolicy_rejectedExecutionException()
+      throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.REJECT, ignoringFailureHandler());
+    final BlockingResource blocking = new BlockingResource();
+    final AutoCloseable queued = mock(AutoCloseable.class);
+    final AutoCloseable rejected = mock(AutoCloseable.class);
+    try {
+      closer.submit(blocking);
+      blocking.awaitStarted();
+      closer.submit(queued);
+      assertThat(closer.getQueueDepth(), is(1));
+      try {
+        closer.submit(rejected);
+        fail("Expected RejectedExecutionException");
+      } catch (final RejectedExecutionException e) {
+        assertThat(closer.getRejectedCount(), is(1L));
+      }
+    } finally {
+      blocking.unblock();
+      closer.close();
+    }
+    verify(queued).close();
+    verify(rejected, never()).close();
+    assertThat(closer.getClosedCount(), is(2L));
+  }
+
+  @Test
+  public void test_submitWhenQueueIsFullAndCallerRunsPolicy_resourceIsClosedByCaller()
+      throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.CALLER_RUNS, ignoringFailureHandler());
+    final BlockingResource blocking = new BlockingResource();
+    final AutoCloseable queued = mock(AutoCloseable.class);
+    final BlockingResource callerRuns = new BlockingResource();
+    callerRuns.unblock();
+    try {
+      closer.submit(blocking);
+      blocking.awaitStarted();
+      closer.submit(queued);
+      closer.submit(callerRuns);
+      assertThat(callerRuns.getClosingThread(), is(sameInstance(Thread.currentThread())));
+    } finally {
+      blocking.unblock();
+      closer.close();
+    }
+    verify(queued).close();
+    assertThat(closer.getClosedCount(), is(3L));
+  }
+
+  @Test
+  public void test_submitWhenQueueIsFullAndBlockPolicy_waitsForFreeSpace() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, ignoringFailureHandler());
+    final BlockingResource blocking = new BlockingResource();
+    final AutoCloseable queued = mock(AutoCloseable.class);
+    final AutoCloseable waiting = mock(AutoCloseable.class);
+    final CountDownLatch submitted = new CountDownLatch(1);
+    try {
+      closer.submit(blocking);
+      blocking.awaitStarted();
+      closer.submit(queued);
+      final Thread submitter = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          closer.submit(waiting);
+          submitted.countDown();
+        }
+      });
+      submitter.start();
+      assertThat(submitted.await(100, TimeUnit.MILLISECONDS), is(false));
+      blocking.unblock();
+      assertThat(submitted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is(true));
+    } finally {
+      blocking.unblock();
+      closer.close();
+    }
+    verify(waiting).close();
+  }
+
+  @Test
+  public void test_close_queuedResourcesAreClosedAndSubmitIsRejected() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(100, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, ignoringFailureHandler());
+    final AutoCloseable[] resources = new AutoCloseable[50];
+    for (int i = 0; i < resources.length; ++i) {
+      resources[i] = mock(AutoCloseable.class);
+      closer.submit(resources[i]);
+    }
+    closer.close();
+    closer.close();
+    for (final AutoCloseable resource : resources) {
+      verify(resource).close();
+    }
+    final AutoCloseable rejected = mock(AutoCloseable.class);
+    try {
+      closer.submit(rejected);
+      fail("Expected RejectedExecutionException");
+    } catch (final RejectedExecutionException e) {
+      verify(rejected, never()).close();
+    }
+    assertThat(closer.getClosedCount(), is((long) resources.length));
+    assertThat(closer.getMaxCloseTimeNanos() <= closer.getTotalCloseTimeNanos(), is(true));
+  }
+
+  @Test
+  public void test_customThreadFactory_isUsedForWorkers() throws Exception {
+    final ThreadFactory threadFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        return new Thread(runnable, "custom-closer");
+      }
+    };
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, ignoringFailureHandler(), threadFactory);
+    final BlockingResource resource = new BlockingResource();
+    resource.unblock();
+    try {
+      closer.submit(resource);
+      resource.awaitStarted();
+      assertThat(resource.getClosingThread().getName(), is("custom-closer"));
+    } finally {
+      closer.close();
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resource which {@link AutoCloseable#close()} method blocks until it is unblocked by test, so
+ * tests can simulate hanging close without depending on timing. Close either responds to
+ * interruption by throwing {@link InterruptedException} or ignores interruption.
+ */
+public final class BlockingResource implements AutoCloseable {
+
+  private final boolean interruptible;
+  private final AtomicInteger closeCount = new AtomicInteger();
+  private final CountDownLatch unblocked = new CountDownLatch(1);
+  private final CountDownLatch completed = new CountDownLatch(1);
+
+  /**
+   * @param interruptible {@code true} if {@link AutoCloseable#close()} method should throw {@link
+   * InterruptedException} when interrupted, {@code false} if it should ignore interruption.
+   */
+  public BlockingResource(final boolean interruptible) {
+    this.interruptible = interruptible;
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    closeCount.incrementAndGet();
+    try {
+      while (true) {
+        try {
+          unblocked.await();
+          return;
+        } catch (final InterruptedException e) {
+          if (interruptible) {
+            throw e;
+          }
+        }
+      }
+    } finally {
+      completed.countDown();
+    }
+  }
+
+  /**
+   * Makes current and subsequent invocations of {@link AutoCloseable#close()} method complete.
+   */
+  public void unblock() {
+    unblocked.countDown();
+  }
+
+  /**
+   * @return number of invocations of {@link AutoCloseable#close()} method.
+   */
+  public int closeCount() {
+    return closeCount.get();
+  }
+
+  /**
+   * Waits for completion of the first invocation of {@link AutoCloseable#close()} method.
+   *
+   * @return {@code true} if {@link AutoCloseable#close()} method completed within 1 minute.
+   */
+  public boolean awaitCompletion() throws InterruptedException {
+    return completed.await(1, TimeUnit.MINUTES);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class CloseLatencyHistogramTest {
+
+  @Test
+  public void test_empty_zeroValues() {
+    final CloseLatencyHistogram histogram = new CloseLatencyHistogram();
+    assertThat(histogram.getCount(), is(0L));
+    assertThat(histogram.getFailureCount(), is(0L));
+    assertThat(histogram.getMaxNanos(), is(0L));
+    assertThat(histogram.getValueAtPercentile(50), is(0L));
+  }
+
+  @Test
+  public void test_record_valuesAreCounted() {
+    final CloseLatencyHistogram histogram = new CloseLatencyHistogram();
+    histogram.record(5);
+    histogram.recordFailure(100);
+    histogram.record(-1);
+    assertThat(histogram.getCount(), is(3L));
+    assertThat(histogram.getFailureCount(), is(1L));
+    assertThat(histogram.getTotalNanos(), is(105L));
+    assertThat(histogram.getMaxNanos(), is(100L));
+  }
+
+  @Test
+  public void test_getValueAtPercentile_valueIsWithinRelativeError() {
+    final CloseLatencyHistogram histogram = new CloseLatencyHistogram();
+    for (int i = 1; i <= 1000; ++i) {
+      histogram.record(i * 1000L);
+    }
+    assertValueIsClose(histogram.getValueAtPercentile(50), 500000L);
+    assertValueIsClose(histogram.getValueAtPercentile(99), 990000L);
+    assertThat(histogram.getValueAtPercentile(0), is(histogram.getValueAtPercentile(0.01)));
+    assertThat(histogram.getValueAtPercentile(100), is(1000000L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_getValueAtPercentileOutOfRange_illegalArgumentException() {
+    new CloseLatencyHistogram().getValueAtPercentile(100.5);
+  }
+
+  @Test
+  public void test_bucketIndex_valueIsNotGreaterThanHighestValueOfBucket() {
+    final long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE / 3,
+        Long.MAX_VALUE};
+    for (final long value : values) {
+      final int index = CloseLatencyHistogram.bucketIndex(value);
+      assertThat(value <= CloseLatencyHistogram.highestValueOf(index), is(true));
+      if (index > 0) {
+        assertThat(value > CloseLatencyHistogram.highestValueOf(index - 1), is(true));
+      }
+    }
+    assertThat(CloseLatencyHistogram.highestValueOf(
+        CloseLatencyHistogram.bucketIndex(Long.MAX_VALUE)), is(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void test_reset_valuesAreForgotten() {
+    final CloseLatencyHistogram histogram = new CloseLatencyHistogram();
+    histogram.recordFailure(10);
+    histogram.reset();
+    assertThat(histogram.getCount(), is(0L));
+    assertThat(histogram.getFailureCount(), is(0L));
+    assertThat(histogram.getTotalNanos(), is(0L));
+    assertThat(histogram.getMaxNanos(), is(0L));
+  }
+
+  private static void assertValueIsClose(final long actual, final long expected) {
+    assertThat(actual >= expected, is(true));
+    assertThat(actual <= expected + expected / CloseLatencyHistogram.SUB_BUCKET_COUNT, is(true));
+  }
+}
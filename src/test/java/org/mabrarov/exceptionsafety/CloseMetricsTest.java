@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CloseMetricsTest {
+
+  @After
+  public void tearDown() {
+    CloseMetrics.setEnabled(false);
+    CloseMetrics.reset();
+  }
+
+  @Test
+  public void test_disabled_nothingIsRecorded() throws Exception {
+    try (final NestedGuard guard = new NestedGuard()) {
+      guard.add(new FirstResource());
+    }
+    assertThat(CloseMetrics.getHistogram(FirstResource.class), is(nullValue()));
+    assertThat(CloseMetrics.getHistograms().isEmpty(), is(true));
+  }
+
+  @Test
+  public void test_enabled_latencyIsRecordedPerClass() throws Exception {
+    CloseMetrics.setEnabled(true);
+    try (final NestedGuard guard = new NestedGuard()) {
+      guard.add(new FirstResource());
+      guard.add(new SecondResource());
+      guard.add(new FirstResource());
+    }
+    try (final PairGuard guard = new PairGuard()) {
+      guard.setFirst(new SecondResource());
+      guard.setSecond(new FirstResource());
+    }
+    final CloseLatencyHistogram firstHistogram = CloseMetrics.getHistogram(FirstResource.class);
+    assertThat(firstHistogram, is(notNullValue()));
+    assertThat(firstHistogram.getCount(), is(3L));
+    assertThat(firstHistogram.getFailureCount(), is(0L));
+    final CloseLatencyHistogram secondHistogram = CloseMetrics.getHistogram(SecondResource.class);
+    assertThat(secondHistogram.getCount(), is(2L));
+    assertThat(CloseMetrics.getHistograms().size(), is(2));
+    assertThat(CloseMetrics.getHistograms().get(FirstResource.class.getName()),
+        is(sameInstance(firstHistogram)));
+  }
+
+  @Test
+  public void test_enabledAndResourceCloseThrowsException_failureIsRecordedAndExceptionIsThrown()
+      throws Exception {
+    CloseMetrics.setEnabled(true);
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    final TestException closeException = new TestException();
+    doThrow(closeException).when(resource).close();
+    final Guard guard = new Guard();
+    guard.set(resource);
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(closeException)));
+    }
+    assertThat(guard.get(), is(sameInstance(resource)));
+    final CloseLatencyHistogram histogram = CloseMetrics.getHistogram(resource.getClass());
+    assertThat(histogram.getCount(), is(1L));
+    assertThat(histogram.getFailureCount(), is(1L));
+  }
+
+  @Test
+  public void test_limitOfHistogramsIsReached_otherClassesAreNotRecorded() throws Exception {
+    CloseMetrics.setEnabled(true);
+    for (int i = 0; i < CloseMetrics.MAX_HISTOGRAM_COUNT; ++i) {
+      CloseMetrics.record("Resource" + i, 1, false);
+    }
+    assertThat(CloseMetrics.getHistograms().size(), is(CloseMetrics.MAX_HISTOGRAM_COUNT));
+    try (final Guard guard = new Guard()) {
+      guard.set(new FirstResource());
+    }
+    assertThat(CloseMetrics.getHistogram(FirstResource.class), is(nullValue()));
+
+    CloseMetrics.reset();
+    assertThat(CloseMetrics.getHistograms().isEmpty(), is(true));
+    try (final Guard guard = new Guard()) {
+      guard.set(new FirstResource());
+    }
+    assertThat(CloseMetrics.getHistogram(FirstResource.class).getCount(), is(1L));
+  }
+
+  private static class FirstResource implements AutoCloseable {
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class SecondResource implements AutoCloseable {
+
+    @Override
+    public void close() {
+    }
+  }
+}
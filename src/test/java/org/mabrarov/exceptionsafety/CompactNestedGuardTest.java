@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+
+public class CompactNestedGuardTest {
+
+  private static final int[] SIZES = {1, CompactNestedGuard.INLINE_CAPACITY - 1,
+      CompactNestedGuard.INLINE_CAPACITY, CompactNestedGuard.INLINE_CAPACITY + 1, 100};
+
+  private static AutoCloseable[] addResources(final CompactNestedGuard guard, final int size) {
+    final AutoCloseable[] resources = new AutoCloseable[size];
+    for (int i = 0; i < size; ++i) {
+      resources[i] = guard.add(mock(AutoCloseable.class));
+    }
+    return resources;
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void test_getEmpty_indexOutOfBoundException() throws Exception {
+    try (final CompactNestedGuard guard = new CompactNestedGuard()) {
+      guard.get(0);
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void test_getLargeIndex_indexOutOfBoundException() throws Exception {
+    try (final CompactNestedGuard guard = new CompactNestedGuard()) {
+      addResources(guard, CompactNestedGuard.INLINE_CAPACITY);
+      guard.get(CompactNestedGuard.INLINE_CAPACITY);
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void test_removeSmallIndex_indexOutOfBoundException() throws Exception {
+    try (final CompactNestedGuard guard = new CompactNestedGuard()) {
+      addResources(guard, 2);
+      guard.remove(-1);
+    }
+  }
+
+  @Test
+  public void test_add_resourcesAreGuardedInOrder() throws Exception {
+    for (final int size : SIZES) {
+      try (final CompactNestedGuard guard = new CompactNestedGuard()) {
+        final AutoCloseable[] resources = addResources(guard, size);
+        assertThat(guard.size(), is(size));
+        for (int i = 0; i < size; ++i) {
+          assertThat(guard.get(i), is(sameInstance(resources[i])));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void test_close_resourcesAreClosedInReverseOrder() throws Exception {
+    for (final int size : SIZES) {
+      final CompactNestedGuard guard = new CompactNestedGuard();
+      final AutoCloseable[] resources = addResources(guard, size);
+
+      guard.close();
+
+      final InOrder inOrder = inOrder((Object[]) resources);
+      for (int i = size - 1; i >= 0; --i) {
+        inOrder.verify(resources[i]).close();
+      }
+      assertThat(guard.size(), is(0));
+      guard.close();
+      for (final AutoCloseable resource : resources) {
+        verify(resource, times(1)).close();
+      }
+    }
+  }
+
+  @Test
+  public void test_closeAndResourcesCloseThrowException_failedResourcesRemainInOrder()
+      throws Exception {
+    final CompactNestedGuard guard = new CompactNestedGuard();
+    final AutoCloseable[] resources = addResources(guard, 20);
+    for (int i = 0; i < resources.length; i += 3) {
+      doThrow(new TestException(i)).when(resources[i]).close();
+    }
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(18));
+      assertThat(e.getSuppressed(), is(arrayWithSize(6)));
+    }
+    assertThat(guard.size(), is(7));
+    for (int i = 0; i < guard.size(); ++i) {
+      assertThat(guard.get(i), is(sameInstance(resources[i * 3])));
+    }
+  }
+
+  @Test
+  public void test_setAndRelease_itemIsChangedAndSizeIsKept() throws Exception {
+    final AutoCloseable replacement = mock(AutoCloseable.class);
+    final AutoCloseable[] resources;
+    try (final CompactNestedGuard guard = new CompactNestedGuard()) {
+      resources = addResources(guard, CompactNestedGuard.INLINE_CAPACITY + 2);
+      guard.set(1, replacement);
+      assertThat(guard.get(1), is(sameInstance(replacement)));
+      final int spillIndex = CompactNestedGuard.INLINE_CAPACITY + 1;
+      assertThat(guard.release(spillIndex), is(sameInstance(resources[spillIndex])));
+      assertThat(guard.get(spillIndex), is(nullValue()));
+      assertThat(guard.size(), is(CompactNestedGuard.INLINE_CAPACITY + 2));
+    }
+    verify(replacement).close();
+    verify(resources[1], never()).close();
+    verify(resources[CompactNestedGuard.INLINE_CAPACITY + 1], never()).close();
+    verify(resources[0]).close();
+  }
+
+  @Test
+  public void test_remove_itemsAreShifted() throws Exception {
+    for (final int size : SIZES) {
+      if (size < 2) {
+        continue;
+      }
+      final CompactNestedGuard guard = new CompactNestedGuard();
+      final AutoCloseable[] resources = addResources(guard, size);
+
+      assertThat(guard.remove(0), is(sameInstance(resources[0])));
+      assertThat(guard.size(), is(size - 1));
+      for (int i = 0; i < guard.size(); ++i) {
+        assertThat(guard.get(i), is(sameInstance(resources[i + 1])));
+      }
+
+      guard.close();
+      verify(resources[0], never()).close();
+      verify(resources[size - 1]).close();
+    }
+  }
+
+  @Test
+  public void test_release_resourcesAreNotClosed() throws Exception {
+    final CompactNestedGuard guard = new CompactNestedGuard();
+    final AutoCloseable[] resources = addResources(guard, 20);
+    guard.release();
+    assertThat(guard.size(), is(0));
+    guard.close();
+    for (final AutoCloseable resource : resources) {
+      verify(resource, never()).close();
+    }
+  }
+
+  @Test
+  public void test_swap_resourcesAreSwapped() throws Exception {
+    final CompactNestedGuard guard1 = new CompactNestedGuard();
+    final AutoCloseable[] resources1 = addResources(guard1, 3);
+    final CompactNestedGuard guard2 = new CompactNestedGuard();
+    final AutoCloseable[] resources2 = addResources(guard2, 12);
+
+    guard1.swap(guard2);
+
+    assertThat(guard1.size(), is(12));
+    assertThat(guard2.size(), is(3));
+    assertThat(guard1.get(11), is(sameInstance(resources2[11])));
+    assertThat(guard2.get(2), is(sameInstance(resources1[2])));
+
+    guard1.close();
+    verify(resources1[0], never()).close();
+    verify(resources2[0]).close();
+    guard2.close();
+    verify(resources1[0]).close();
+  }
+
+  @Test
+  public void test_addWithInlineCapacity_addItemIsNotCalled() throws Exception {
+    final CompactNestedGuard guard = spy(new CompactNestedGuard());
+    addResources(guard, CompactNestedGuard.INLINE_CAPACITY);
+    verify(guard, never()).addItem(ArgumentMatchers.<AutoCloseable>any());
+    guard.add(mock(AutoCloseable.class));
+    verify(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
+    guard.close();
+  }
+
+  @Test
+  public void test_addThrowsExceptionAndResourceCloseThrowsException_resourceIsClosedWithException()
+      throws Exception {
+    final TestRuntimeException addException = new TestRuntimeException();
+    final TestException closeException = new TestException();
+    final CompactNestedGuard guard = spy(new CompactNestedGuard());
+    final AutoCloseable[] resources = addResources(guard, CompactNestedGuard.INLINE_CAPACITY);
+    doThrow(addException).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    doThrow(closeException).when(resource).close();
+    try {
+      guard.add(resource);
+      fail("Expected TestRuntimeException");
+    } catch (final TestRuntimeException e) {
+      assertThat(e, is(sameInstance(addException)));
+      final Throwable[] suppressed = e.getSuppressed();
+      assertThat(suppressed, is(arrayWithSize(1)));
+      assertThat(suppressed[0], is(sameInstance((Throwable) closeException)));
+    }
+    verify(resource).close();
+    assertThat(guard.size(), is(CompactNestedGuard.INLINE_CAPACITY));
+    guard.close();
+    verify(resources[0]).close();
+  }
+
+}
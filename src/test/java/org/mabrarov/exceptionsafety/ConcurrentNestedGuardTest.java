@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class ConcurrentNestedGuardTest {
+
+  @Test
+  public void test_closeEmpty_doesNotThrowException() throws Exception {
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    assertThat(guard.isClosed(), is(false));
+    guard.close();
+    assertThat(guard.isClosed(), is(true));
+    guard.close();
+  }
+
+  @Test
+  public void test_close_resourcesAreClosedInReverseOrder() throws Exception {
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    guard.add(null);
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+
+    guard.close();
+    guard.close();
+
+    final InOrder inOrder = inOrder(resource1, resource2, resource3);
+    inOrder.verify(resource3).close();
+    inOrder.verify(resource2).close();
+    inOrder.verify(resource1).close();
+    verify(resource1, times(1)).close();
+  }
+
+  @Test
+  public void test_addAfterClose_resourceIsClosedAndIllegalStateException() throws Exception {
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    guard.close();
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    final TestException closeException = new TestException();
+    doThrow(closeException).when(resource).close();
+    try {
+      guard.add(resource);
+      fail("Expected IllegalStateException");
+    } catch (final IllegalStateException e) {
+      final Throwable[] suppressed = e.getSuppressed();
+      assertThat(suppressed, is(arrayWithSize(1)));
+      assertThat(suppressed[0], is(sameInstance((Throwable) closeException)));
+    }
+    verify(resource).close();
+    guard.close();
+    verify(resource, times(1)).close();
+  }
+
+  @Test
+  public void test_closeAndResourcesCloseThrowException_failedResourcesAreClosedAgain()
+      throws Exception {
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    doThrow(new TestException(1)).when(resource1).close();
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    doThrow(new TestException(3)).when(resource3).close();
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(3));
+      final Throwable[] suppressed = e.getSuppressed();
+      assertThat(suppressed, is(arrayWithSize(1)));
+      assertThat(((TestException) suppressed[0]).getId(), is(1));
+    }
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(3));
+    }
+    verify(resource1, times(2)).close();
+    verify(resource2, times(1)).close();
+    verify(resource3, times(2)).close();
+  }
+
+  @Test
+  public void test_release_resourcesAreNotClosed() throws Exception {
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.release(), is(true));
+    guard.close();
+    verify(resource, never()).close();
+    assertThat(guard.release(), is(false));
+  }
+
+  @Test
+  public void test_addFromMultipleThreads_allResourcesAreClosedOnce() throws Exception {
+    final int threadCount = 4;
+    final int resourcesPerThread = 10000;
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    final CountingResource[][] resources = new CountingResource[threadCount][resourcesPerThread];
+    final CountDownLatch start = new CountDownLatch(1);
+    final Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      final CountingResource[] threadResources = resources[i];
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          awaitQuietly(start);
+          for (int j = 0; j < threadResources.length; ++j) {
+            threadResources[j] = guard.add(new CountingResource());
+          }
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    guard.close();
+
+    for (final CountingResource[] threadResources : resources) {
+      for (final CountingResource resource : threadResources) {
+        assertThat(resource.closeCount(), is(1));
+      }
+    }
+  }
+
+  @Test
+  public void test_addRacingWithClose_eachResourceIsClosedOnce() throws Exception {
+    final int resourceCount = 100000;
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    final CountingResource[] resources = new CountingResource[resourceCount];
+    final AtomicInteger rejectedCount = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final Thread adder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < resources.length; ++i) {
+          resources[i] = new CountingResource();
+          try {
+            guard.add(resources[i]);
+          } catch (final IllegalStateException e) {
+            rejectedCount.incrementAndGet();
+          }
+          if (i == resources.length / 10) {
+            started.countDown();
+          }
+        }
+      }
+    });
+    adder.start();
+    started.await();
+    guard.close();
+    adder.join();
+
+    assertThat(rejectedCount.get() <= resourceCount, is(true));
+    for (final CountingResource resource : resources) {
+      assertThat(resource.closeCount(), is(1));
+    }
+  }
+
+  private static void awaitQuietly(final CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
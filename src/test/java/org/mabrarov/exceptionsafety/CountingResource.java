@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resource counting invocations of its {@link AutoCloseable#close()} method, so tests can check
+ * that resource was closed exactly once and was not leaked. Shared by unit tests and by stress
+ * tests.
+ */
+public final class CountingResource implements AutoCloseable {
+
+  private final AtomicInteger closeCount = new AtomicInteger();
+  private final CountDownLatch closed;
+
+  public CountingResource() {
+    this(null);
+  }
+
+  /**
+   * @param closed latch which is counted down on each invocation of {@link AutoCloseable#close()}
+   * method, so tests can wait for resources closed by other threads, may be {@code null}.
+   */
+  public CountingResource(final CountDownLatch closed) {
+    this.closed = closed;
+  }
+
+  @Override
+  public void close() {
+    closeCount.incrementAndGet();
+    if (closed != null) {
+      closed.countDown();
+    }
+  }
+
+  public int closeCount() {
+    return closeCount.get();
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resource which {@link AutoCloseable#close()} method fails with given probability and takes given
+ * time, so tests and benchmarks can reproduce failures of resources happening in production, e.g.
+ * during outages. Failed resource remains not closed, so it can be closed again.
+ */
+public final class FaultInjectingResource implements AutoCloseable {
+
+  /**
+   * Type of failure of {@link AutoCloseable#close()} method.
+   */
+  public enum Failure {
+
+    /**
+     * {@link TestException}, i.e. checked exception.
+     */
+    CHECKED,
+
+    /**
+     * {@link TestRuntimeException}.
+     */
+    RUNTIME,
+
+    /**
+     * {@link TestError}.
+     */
+    ERROR
+  }
+
+  private final int id;
+  private final Failure failure;
+  private final double failureProbability;
+  private final long latencyNanos;
+  private final AtomicInteger closeCount = new AtomicInteger();
+  private final AtomicInteger failureCount = new AtomicInteger();
+
+  /**
+   * Creates resource which {@link AutoCloseable#close()} method always fails immediately.
+   *
+   * @param id identifier of resource passed to {@link TestException} and {@link TestError}.
+   * @param failure type of failure.
+   */
+  public FaultInjectingResource(final int id, final Failure failure) {
+    this(id, failure, 1, 0);
+  }
+
+  /**
+   * Creates resource.
+   *
+   * @param id identifier of resource passed to {@link TestException} and {@link TestError}.
+   * @param failure type of failure.
+   * @param failureProbability probability of failure of each invocation of {@link
+   * AutoCloseable#close()} method, from 0 (never fails) to 1 (always fails).
+   * @param latencyNanos time of each invocation of {@link AutoCloseable#close()} method (spent
+   * in busy loop, so it does not depend on resolution of timers of OS), nanoseconds.
+   * @throws IllegalArgumentException if {@code failureProbability} is out of [0, 1] range or if
+   * {@code latencyNanos} is negative.
+   */
+  public FaultInjectingResource(final int id, final Failure failure,
+      final double failureProbability, final long latencyNanos) {
+    if (failure == null) {
+      throw new NullPointerException("Failure type cannot be null");
+    }
+    if (!(failureProbability >= 0 && failureProbability <= 1)) {
+      throw new IllegalArgumentException(
+          "Failure probability should be in [0, 1] range: " + failureProbability);
+    }
+    if (latencyNanos < 0) {
+      throw new IllegalArgumentException("Latency cannot be negative: " + latencyNanos);
+    }
+    this.id = id;
+    this.failure = failure;
+    this.failureProbability = failureProbability;
+    this.latencyNanos = latencyNanos;
+  }
+
+  /**
+   * Creates resources with identifiers from 0 to {@code size - 1}.
+   *
+   * @param size number of resources.
+   * @param failure type of failure.
+   * @param failureProbability probability of failure of each invocation of {@link
+   * AutoCloseable#close()} method.
+   * @param latencyNanos time of each invocation of {@link AutoCloseable#close()} method,
+   * nanoseconds.
+   * @return created resources.
+   */
+  public static FaultInjectingResource[] newResources(final int size, final Failure failure,
+      final double failureProbability, final long latencyNanos) {
+    final FaultInjectingResource[] resources = new FaultInjectingResource[size];
+    for (int i = 0; i < size; ++i) {
+      resources[i] = new FaultInjectingResource(i, failure, failureProbability, latencyNanos);
+    }
+    return resources;
+  }
+
+  @Override
+  public void close() throws TestException {
+    if (latencyNanos > 0) {
+      spin(latencyNanos);
+    }
+    if (failureProbability == 0 || failureProbability < 1
+        && ThreadLocalRandom.current().nextDouble() >= failureProbability) {
+      closeCount.incrementAndGet();
+      return;
+    }
+    failureCount.incrementAndGet();
+    switch (failure) {
+      case CHECKED:
+        throw new TestException(id);
+      case RUNTIME:
+        throw new TestRuntimeException();
+      default:
+        throw new TestError(id);
+    }
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * @return number of successful invocations of {@link AutoCloseable#close()} method.
+   */
+  public int getCloseCount() {
+    return closeCount.get();
+  }
+
+  /**
+   * @return number of failed invocations of {@link AutoCloseable#close()} method.
+   */
+  public int getFailureCount() {
+    return failureCount.get();
+  }
+
+  private static void spin(final long nanos) {
+    final long start = System.nanoTime();
+    while (System.nanoTime() - start < nanos) {
+      // Busy wait
+    }
+  }
+}
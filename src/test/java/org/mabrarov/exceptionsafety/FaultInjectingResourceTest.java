@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class FaultInjectingResourceTest {
+
+  @Test
+  public void test_close_neverFails_closed() throws Exception {
+    final FaultInjectingResource resource = new FaultInjectingResource(1,
+        FaultInjectingResource.Failure.ERROR, 0, 0);
+    resource.close();
+    assertThat(resource.getCloseCount(), is(1));
+    assertThat(resource.getFailureCount(), is(0));
+  }
+
+  @Test
+  public void test_close_checkedFailure_throwsTestException() {
+    final FaultInjectingResource resource = new FaultInjectingResource(1,
+        FaultInjectingResource.Failure.CHECKED);
+    try {
+      resource.close();
+      fail("Exception expected");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(1));
+    }
+    assertThat(resource.getCloseCount(), is(0));
+    assertThat(resource.getFailureCount(), is(1));
+  }
+
+  @Test(expected = TestRuntimeException.class)
+  public void test_close_runtimeFailure_throwsTestRuntimeException() throws Exception {
+    new FaultInjectingResource(1, FaultInjectingResource.Failure.RUNTIME).close();
+  }
+
+  @Test
+  public void test_close_errorFailure_throwsTestError() throws Exception {
+    try {
+      new FaultInjectingResource(2, FaultInjectingResource.Failure.ERROR).close();
+      fail("Error expected");
+    } catch (final TestError e) {
+      assertThat(e.getId(), is(2));
+    }
+  }
+
+  @Test
+  public void test_close_latency_takesAtLeastLatency() throws Exception {
+    final long latencyNanos = 1000000;
+    final FaultInjectingResource resource = new FaultInjectingResource(1,
+        FaultInjectingResource.Failure.CHECKED, 0, latencyNanos);
+    final long start = System.nanoTime();
+    resource.close();
+    assertThat(System.nanoTime() - start, greaterThanOrEqualTo(latencyNanos));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_new_invalidProbability_throwsException() {
+    new FaultInjectingResource(1, FaultInjectingResource.Failure.CHECKED, 1.5, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_new_negativeLatency_throwsException() {
+    new FaultInjectingResource(1, FaultInjectingResource.Failure.CHECKED, 1, -1);
+  }
+
+  @Test
+  public void test_nestedGuardCloseRepeatedly_randomFailures_eachResourceClosedOnce() {
+    final FaultInjectingResource[] resources = FaultInjectingResource.newResources(100,
+        FaultInjectingResource.Failure.RUNTIME, 0.5, 0);
+    final NestedGuard guard = new NestedGuard();
+    for (final FaultInjectingResource resource : resources) {
+      guard.add(resource);
+    }
+    int failedCloseCount = 0;
+    while (guard.size() > 0) {
+      try {
+        guard.close();
+      } catch (final Exception e) {
+        assertThat(e.getSuppressed().length, is(guard.size() - 1));
+        ++failedCloseCount;
+      }
+    }
+    int failureCount = 0;
+    for (final FaultInjectingResource resource : resources) {
+      assertThat(resource.getCloseCount(), is(1));
+      failureCount += resource.getFailureCount();
+    }
+    assertThat(failureCount, greaterThanOrEqualTo(failedCloseCount));
+  }
+}
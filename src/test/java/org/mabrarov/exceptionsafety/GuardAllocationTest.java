@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that hot paths of guards do not allocate. Allocation is measured per thread with {@code
+ * com.sun.management.ThreadMXBean} around loops of operations, which are run after warm-up, so
+ * that JIT compiler has compiled them. Tests are skipped if JVM does not support measurement of
+ * allocated memory.
+ */
+public class GuardAllocationTest {
+
+  private static final int WARM_UP_ITERATIONS = 50000;
+  private static final int ITERATIONS = 100000;
+  /**
+   * Allowed allocation for the whole measured loop. Zero-allocation operations should stay far
+   * below the budget, while allocation of even a single object per operation exceeds it.
+   */
+  private static final long ALLOCATION_BUDGET_BYTES = 4096;
+
+  private com.sun.management.ThreadMXBean threadBean;
+  private final AutoCloseable resource1 = new NoopResource();
+  private final AutoCloseable resource2 = new NoopResource();
+
+  @Before
+  public void setUp() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threadBean = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  @Test
+  public void test_guardSetAndRelease_noAllocation() {
+    final Guard guard = new Guard();
+    assertNoAllocation("Guard#set/release", new Operation() {
+      @Override
+      public void run() {
+        guard.set(resource1);
+        guard.set(resource2);
+        guard.release();
+      }
+    });
+  }
+
+  @Test
+  public void test_pairGuardSetAndRelease_noAllocation() {
+    final PairGuard guard = new PairGuard();
+    assertNoAllocation("PairGuard#setFirst/setSecond/release", new Operation() {
+      @Override
+      public void run() {
+        guard.setFirst(resource1);
+        guard.setSecond(resource2);
+        guard.release();
+      }
+    });
+  }
+
+  @Test
+  public void test_nestedGuardAddWithReservedCapacity_noAllocation() {
+    final NestedGuard guard = new NestedGuard();
+    final int capacity = 16;
+    guard.reserve(capacity);
+    // Reserved storage is kept while at least one resource remains guarded
+    guard.add(resource1);
+    assertNoAllocation("NestedGuard#add", new Operation() {
+      @Override
+      public void run() {
+        for (int i = 1; i < capacity; ++i) {
+          guard.add(resource2);
+        }
+        while (guard.size() > 1) {
+          guard.remove(guard.size() - 1);
+        }
+      }
+    });
+  }
+
+  @Test
+  public void test_pooledNestedGuardAcquireAddCloseRecycle_noAllocation() {
+    final NestedGuardPool pool = new NestedGuardPool(64, 1);
+    assertNoAllocation("NestedGuardPool#acquire/recycle", new Operation() {
+      @Override
+      public void run() {
+        final NestedGuard guard = pool.acquire();
+        for (int i = 0; i < 16; ++i) {
+          guard.add(resource1);
+        }
+        try {
+          guard.close();
+        } catch (final Exception e) {
+          throw new AssertionError(e);
+        }
+        pool.recycle(guard);
+      }
+    });
+  }
+
+  private void assertNoAllocation(final String description, final Operation operation) {
+    for (int i = 0; i < WARM_UP_ITERATIONS; ++i) {
+      operation.run();
+    }
+    final long threadId = Thread.currentThread().getId();
+    final long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; ++i) {
+      operation.run();
+    }
+    final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+    assertTrue(description + " allocated " + allocated + " bytes in " + ITERATIONS
+            + " iterations, budget is " + ALLOCATION_BUDGET_BYTES + " bytes",
+        allocated <= ALLOCATION_BUDGET_BYTES);
+  }
+
+  private interface Operation {
+
+    void run();
+  }
+
+  private static class NoopResource implements AutoCloseable {
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Requires {@link RecordingGuardListener} to be registered, so it is executed only by dedicated
+ * execution of Maven Surefire plugin which adds {@code src/test/services} to class path.
+ */
+public class GuardListenersTest {
+
+  private static final String ENABLED_PROPERTY = "org.mabrarov.exceptionsafety.guardListenersTest";
+
+  @Before
+  public void setUp() {
+    assumeTrue(Boolean.getBoolean(ENABLED_PROPERTY));
+  }
+
+  @After
+  public void tearDown() {
+    RecordingGuardListener.stop();
+  }
+
+  @Test
+  public void test_listenerIsLoaded() {
+    assertThat(GuardListeners.LISTENER, is(notNullValue()));
+  }
+
+  @Test
+  public void test_nestedGuard_eventsAreReported() throws Exception {
+    final List<String> events = RecordingGuardListener.start(false);
+    final AutoCloseable resource1 = mock(AutoCloseable.class, "r1");
+    final AutoCloseable resource2 = mock(AutoCloseable.class, "r2");
+    final AutoCloseable resource3 = mock(AutoCloseable.class, "r3");
+    try (final NestedGuard guard = new NestedGuard()) {
+      guard.add(resource1);
+      guard.add(resource2);
+      guard.add(null);
+      guard.remove(1);
+      guard.set(1, resource3);
+    }
+    assertThat(events, is(Arrays.asList(
+        "added:NestedGuard:r1",
+        "added:NestedGuard:r2",
+        "released:NestedGuard:r2",
+        "added:NestedGuard:r3",
+        "closed:NestedGuard:r3",
+        "closed:NestedGuard:r1")));
+  }
+
+  @Test
+  public void test_nestedGuardRelease_releaseIsReportedForEachResource() {
+    final List<String> events = RecordingGuardListener.start(false);
+    final NestedGuard guard = new NestedGuard();
+    guard.add(mock(AutoCloseable.class, "r1"));
+    guard.add(mock(AutoCloseable.class, "r2"));
+    guard.release(0);
+    guard.release();
+    assertThat(events, is(Arrays.asList(
+        "added:NestedGuard:r1",
+        "added:NestedGuard:r2",
+        "released:NestedGuard:r1",
+        "released:NestedGuard:r2")));
+  }
+
+  @Test
+  public void test_compactNestedGuard_eventsAreReported() throws Exception {
+    final List<String> events = RecordingGuardListener.start(false);
+    final AutoCloseable resource1 = mock(AutoCloseable.class, "r1");
+    final AutoCloseable resource2 = mock(AutoCloseable.class, "r2");
+    final AutoCloseable resource3 = mock(AutoCloseable.class, "r3");
+    try (final CompactNestedGuard guard = new CompactNestedGuard()) {
+      guard.add(resource1);
+      guard.add(resource2);
+      guard.add(null);
+      guard.remove(1);
+      guard.set(1, resource3);
+    }
+    assertThat(events, is(Arrays.asList(
+        "added:CompactNestedGuard:r1",
+        "added:CompactNestedGuard:r2",
+        "released:CompactNestedGuard:r2",
+        "added:CompactNestedGuard:r3",
+        "closed:CompactNestedGuard:r3",
+        "closed:CompactNestedGuard:r1")));
+  }
+
+  @Test
+  public void test_concurrentNestedGuard_eventsAreReported() throws Exception {
+    final List<String> events = RecordingGuardListener.start(false);
+    final ConcurrentNestedGuard guard = new ConcurrentNestedGuard();
+    guard.add(mock(AutoCloseable.class, "r1"));
+    guard.release();
+    guard.add(mock(AutoCloseable.class, "r2"));
+    guard.add(mock(AutoCloseable.class, "r3"));
+    guard.close();
+    assertThat(events, is(Arrays.asList(
+        "added:ConcurrentNestedGuard:r1",
+        "released:ConcurrentNestedGuard:r1",
+        "added:ConcurrentNestedGuard:r2",
+        "added:ConcurrentNestedGuard:r3",
+        "closed:ConcurrentNestedGuard:r3",
+        "closed:ConcurrentNestedGuard:r2")));
+  }
+
+  @Test
+  public void test_guard_eventsAreReported() throws Exception {
+    final List<String> events = RecordingGuardListener.start(false);
+    final AutoCloseable resource1 = mock(AutoCloseable.class, "r1");
+    final AutoCloseable resource2 = mock(AutoCloseable.class, "r2");
+    final TestException closeException = new TestException();
+    doThrow(closeException).doNothing().when(resource2).close();
+    final Guard guard = new Guard();
+    guard.set(resource1);
+    guard.set(resource2);
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(closeException)));
+    }
+    guard.close();
+    guard.set(resource1);
+    guard.release();
+    assertThat(events, is(Arrays.asList(
+        "added:Guard:r1",
+        "released:Guard:r1",
+        "added:Guard:r2",
+        "closeFailed:" + closeException + ":Guard:r2",
+        "closed:Guard:r2",
+        "added:Guard:r1",
+        "released:Guard:r1")));
+  }
+
+  @Test
+  public void test_pairGuard_eventsAreReportedWithPairGuard() throws Exception {
+    final List<String> events = RecordingGuardListener.start(false);
+    try (final PairGuard guard = new PairGuard()) {
+      guard.setSecond(mock(AutoCloseable.class, "r1"));
+      guard.releaseSecond();
+      guard.setSecond(mock(AutoCloseable.class, "r2"));
+      guard.setFirst(mock(AutoCloseable.class, "r3"));
+      guard.releaseFirst();
+      guard.setFirst(mock(AutoCloseable.class, "r4"));
+    }
+    assertThat(events, is(Arrays.asList(
+        "added:PairGuard:r1",
+        "released:PairGuard:r1",
+        "added:PairGuard:r2",
+        "added:PairGuard:r3",
+        "released:PairGuard:r3",
+        "added:PairGuard:r4",
+        "closed:PairGuard:r2",
+        "closed:PairGuard:r4")));
+  }
+
+  @Test
+  public void test_nestedGuardCloseModes_closeIsReported() throws Exception {
+    final List<String> events = RecordingGuardListener.start(false);
+    final NestedGuard guard = new NestedGuard();
+    guard.add(mock(AutoCloseable.class, "r1"));
+    guard.add(mock(AutoCloseable.class, "r2"));
+    guard.add(mock(AutoCloseable.class, "r3"));
+    guard.closeSome(1);
+    // closeWithTimeout is not covered, because it closes resources by threads of shared pool
+    guard.closeFor(TimeUnit.MINUTES.toNanos(1));
+    assertThat(events, is(Arrays.asList(
+        "added:NestedGuard:r1",
+        "added:NestedGuard:r2",
+        "added:NestedGuard:r3",
+        "closed:NestedGuard:r3",
+        "closed:NestedGuard:r2",
+        "closed:NestedGuard:r1")));
+  }
+
+  @Test
+  public void test_guardCloseInBackground_releaseIsReported() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.CALLER_RUNS, mock(BackgroundCloser.FailureHandler.class));
+    final List<String> events = RecordingGuardListener.start(false);
+    try {
+      final Guard guard = new Guard();
+      guard.set(mock(AutoCloseable.class, "r1"));
+      guard.closeInBackground(closer);
+    } finally {
+      closer.close();
+    }
+    assertThat(events, is(Arrays.asList(
+        "added:Guard:r1",
+        "released:Guard:r1")));
+  }
+
+  @Test
+  public void test_listenerThrowsException_exceptionIsIgnored() throws Exception {
+    final List<String> events = RecordingGuardListener.start(true);
+    final AutoCloseable resource = mock(AutoCloseable.class, "r1");
+    try (final NestedGuard guard = new NestedGuard()) {
+      guard.add(resource);
+    }
+    verify(resource).close();
+    assertThat(events, is(Arrays.asList(
+        "added:NestedGuard:r1",
+        "closed:NestedGuard:r1")));
+  }
+}
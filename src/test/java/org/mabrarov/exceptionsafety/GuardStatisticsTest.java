@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringStartsWith.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+public class GuardStatisticsTest {
+
+  @After
+  public void tearDown() {
+    CloseMetrics.setEnabled(false);
+    CloseMetrics.reset();
+  }
+
+  @Test
+  public void test_events_countersAreUpdated() {
+    final GuardStatistics statistics = new GuardStatistics();
+    final GuardListener listener = statistics.getListener();
+    final AutoCloseable guard = mock(AutoCloseable.class);
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    for (int i = 0; i < 5; ++i) {
+      listener.added(guard, resource);
+    }
+    listener.released(guard, resource);
+    listener.closed(guard, resource);
+    listener.closed(guard, resource);
+    listener.closeFailed(guard, resource, new TestException());
+    listener.closed(guard, resource);
+
+    assertThat(statistics.getAddedCount(), is(5L));
+    assertThat(statistics.getReleasedCount(), is(1L));
+    assertThat(statistics.getClosedCount(), is(3L));
+    assertThat(statistics.getFailedCloseCount(), is(1L));
+    assertThat(statistics.getHeldResourceCount(), is(1L));
+    assertThat(statistics.getCloseFailureRate(), is(0.25));
+    assertThat(statistics.getCloseThroughput() >= 0, is(true));
+  }
+
+  @Test
+  public void test_failedClose_resourceRemainsHeldUntilClosed() {
+    final GuardStatistics statistics = new GuardStatistics();
+    final GuardListener listener = statistics.getListener();
+    final AutoCloseable guard = mock(AutoCloseable.class);
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    listener.added(guard, resource);
+    listener.closeFailed(guard, resource, new TestException());
+    assertThat(statistics.getHeldResourceCount(), is(1L));
+    listener.closed(guard, resource);
+    assertThat(statistics.getHeldResourceCount(), is(0L));
+  }
+
+  @Test
+  public void test_getCloseThroughputRepeatedly_sampleWindowIsNotMoved() throws Exception {
+    final GuardStatistics statistics = new GuardStatistics(TimeUnit.MILLISECONDS.toNanos(500));
+    final GuardListener listener = statistics.getListener();
+    final AutoCloseable guard = mock(AutoCloseable.class);
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    for (int i = 0; i < 5; ++i) {
+      listener.closed(guard, resource);
+    }
+    Thread.sleep(600);
+    // The first read moves window, so that closes remain in window until the next sample period
+    for (int i = 0; i < 10; ++i) {
+      assertThat(statistics.getCloseThroughput() > 0, is(true));
+    }
+  }
+
+  @Test
+  public void test_noCloses_zeroFailureRate() {
+    assertThat(new GuardStatistics().getCloseFailureRate(), is(0.0));
+  }
+
+  @Test
+  public void test_getSlowestResourceTypes_slowestFirst() throws Exception {
+    final GuardStatistics statistics = new GuardStatistics();
+    assertThat(statistics.getSlowestResourceTypes(), arrayWithSize(0));
+    statistics.setCloseMetricsEnabled(true);
+    assertThat(CloseMetrics.isEnabled(), is(true));
+    try (final NestedGuard guard = new NestedGuard()) {
+      guard.add(new FastResource());
+      guard.add(new SlowResource());
+    }
+    final String[] resourceTypes = statistics.getSlowestResourceTypes();
+    assertThat(resourceTypes, arrayWithSize(2));
+    assertThat(resourceTypes[0], startsWith(SlowResource.class.getName() + ": p99="));
+    assertThat(resourceTypes[1], startsWith(FastResource.class.getName() + ": p99="));
+  }
+
+  @Test
+  public void test_registeredMBean_attributesAreReadable() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(GuardStatistics.OBJECT_NAME + ",test=true");
+    final GuardStatistics statistics = new GuardStatistics();
+    server.registerMBean(statistics, name);
+    try {
+      statistics.getListener().added(mock(AutoCloseable.class), mock(AutoCloseable.class));
+      assertThat(server.getAttribute(name, "HeldResourceCount"), is((Object) 1L));
+      assertThat(server.getAttribute(name, "CloseMetricsEnabled"), is((Object) false));
+      assertThat(((String[]) server.getAttribute(name, "SlowestResourceTypes")).length, is(0));
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  private static class FastResource implements AutoCloseable {
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class SlowResource implements AutoCloseable {
+
+    @Override
+    public void close() throws InterruptedException {
+      Thread.sleep(2);
+    }
+  }
+}
@@ -16,15 +16,22 @@
 package org.mabrarov.exceptionsafety;
 
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
 import static org.hamcrest.core.IsNull.nullValue;
 import static org.hamcrest.core.IsSame.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
 public class GuardTest {
@@ -186,4 +193,176 @@ public class GuardTest {
     }
   }
 
+  @Test
+  public void test_closeAsync_resourceIsClosed() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Guard guard = new Guard();
+      final AutoCloseable resource = guard.set(mock(AutoCloseable.class));
+      guard.closeAsync(executor).get();
+      verify(resource).close();
+      assertThat(guard.get(), is(nullValue()));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void test_closeAsyncAndResourceCloseThrowsException_futureCompletesWithException()
+      throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Guard guard = new Guard();
+      final AutoCloseable resource = guard.set(mock(AutoCloseable.class));
+      final TestException closeException = new TestException();
+      doThrow(closeException).when(resource).close();
+      try {
+        guard.closeAsync(executor).get();
+        fail("Expected ExecutionException");
+      } catch (final ExecutionException e) {
+        assertThat(e.getCause(), is(instanceOf(TestException.class)));
+        assertThat(e.getCause(), is(sameInstance((Throwable) closeException)));
+      }
+      assertThat(guard.get(), is(sameInstance(resource)));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void test_closeInBackgroundAndCloserRejects_resourcesAreNotImpacted() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.REJECT, mock(BackgroundCloser.FailureHandler.class));
+    closer.close();
+    final Guard guard = new Guard();
+    final AutoCloseable resource = guard.set(mock(AutoCloseable.class));
+    try {
+      guard.closeInBackground(closer);
+      fail("Expected RejectedExecutionException");
+    } catch (final RejectedExecutionException e) {
+      assertThat(guard.get(), is(sameInstance(resource)));
+    }
+    verify(resource, never()).close();
+  }
+
+  @Test
+  public void test_closeInBackground_resourcesAreClosedAndGuardIsEmpty() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, mock(BackgroundCloser.FailureHandler.class));
+    final Guard guard = new Guard();
+    final AutoCloseable resource;
+    try {
+      resource = guard.set(mock(AutoCloseable.class));
+      guard.closeInBackground(closer);
+      assertThat(guard.get(), is(nullValue()));
+    } finally {
+      closer.close();
+    }
+    verify(resource).close();
+  }
+
+  @Test
+  public void test_closeWithTimeoutNothing_nothingHappens() throws Exception {
+    final Guard guard = new Guard();
+    guard.closeWithTimeout(1, TimeUnit.SECONDS);
+    assertThat(guard.get(), is(nullValue()));
+  }
+
+  @Test
+  public void test_closeWithTimeout_resourceIsClosedAndGuardIsEmpty() throws Exception {
+    final Guard guard = new Guard();
+    final AutoCloseable resource = guard.set(mock(AutoCloseable.class));
+    guard.closeWithTimeout(1, TimeUnit.MINUTES);
+    verify(resource, times(1)).close();
+    assertThat(guard.get(), is(nullValue()));
+    assertThat(Thread.currentThread().isInterrupted(), is(false));
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndResourceCloseThrowsException_resourceRemainsGuarded()
+      throws Exception {
+    final Guard guard = new Guard();
+    final AutoCloseable resource = guard.set(mock(AutoCloseable.class));
+    final TestException closeException = new TestException();
+    doThrow(closeException).when(resource).close();
+    try {
+      guard.closeWithTimeout(1, TimeUnit.MINUTES);
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(closeException)));
+    }
+    assertThat(guard.get(), is(sameInstance(resource)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_closeWithTimeoutZeroTimeout_illegalArgumentException() throws Exception {
+    new Guard().closeWithTimeout(0, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndResourceCloseHangs_closeIsInterruptedAndResourceRemainsGuarded()
+      throws Exception {
+    final Guard guard = new Guard();
+    final BlockingResource resource = guard.set(new BlockingResource(true));
+    try {
+      guard.closeWithTimeout(200, TimeUnit.MILLISECONDS);
+      fail("Expected CloseTimeoutException");
+    } catch (final CloseTimeoutException e) {
+      assertThat(e.isAbandoned(), is(false));
+      assertThat(e.getCause(), is(instanceOf(InterruptedException.class)));
+    }
+    assertThat(guard.get(), is(sameInstance((AutoCloseable) resource)));
+    assertThat(Thread.currentThread().isInterrupted(), is(false));
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndThreadIsInterrupted_interruptedStatusIsPreserved()
+      throws Exception {
+    final Guard guard = new Guard();
+    final AutoCloseable resource = guard.set(mock(AutoCloseable.class));
+    Thread.currentThread().interrupt();
+    try {
+      guard.closeWithTimeout(1, TimeUnit.MINUTES);
+      assertThat(Thread.currentThread().isInterrupted(), is(true));
+    } finally {
+      Thread.interrupted();
+    }
+    verify(resource, times(1)).close();
+    assertThat(guard.get(), is(nullValue()));
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndResourceCloseIgnoresInterruption_resourceIsAbandonedAndRemainsGuarded()
+      throws Exception {
+    final Guard guard = new Guard();
+    final BlockingResource resource = guard.set(new BlockingResource(false));
+    try {
+      try {
+        guard.closeWithTimeout(200, TimeUnit.MILLISECONDS);
+        fail("Expected CloseTimeoutException");
+      } catch (final CloseTimeoutException e) {
+        assertThat(e.isAbandoned(), is(true));
+      }
+      assertThat(guard.get(), is(sameInstance((AutoCloseable) resource)));
+      assertThat(Thread.currentThread().isInterrupted(), is(false));
+
+      // Retry waits for abandoned close instead of invoking close concurrently
+      try {
+        guard.closeWithTimeout(200, TimeUnit.MILLISECONDS);
+        fail("Expected CloseTimeoutException");
+      } catch (final CloseTimeoutException e) {
+        assertThat(e.isAbandoned(), is(true));
+      }
+      assertThat(guard.get(), is(sameInstance((AutoCloseable) resource)));
+      assertThat(resource.closeCount(), is(1));
+    } finally {
+      resource.unblock();
+    }
+    assertThat(resource.awaitCompletion(), is(true));
+
+    // Retry completes without invoking close again, because abandoned close completed
+    guard.closeWithTimeout(1, TimeUnit.MINUTES);
+    assertThat(guard.get(), is(nullValue()));
+    assertThat(resource.closeCount(), is(1));
+  }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class HandleNestedGuardTest {
+
+  @Test
+  public void test_addWithHandle_getReturnsResource() throws Exception {
+    try (final HandleNestedGuard guard = new HandleNestedGuard()) {
+      final AutoCloseable resource1 = mock(AutoCloseable.class);
+      final AutoCloseable resource2 = mock(AutoCloseable.class);
+      final long handle1 = guard.addWithHandle(resource1);
+      final long handle2 = guard.addWithHandle(resource2);
+      assertThat(handle1, is(not(handle2)));
+      assertThat(guard.size(), is(2));
+      assertThat(guard.get(handle1), is(sameInstance(resource1)));
+      assertThat(guard.get(handle2), is(sameInstance(resource2)));
+    }
+  }
+
+  @Test
+  public void test_remove_handleBecomesStaleAndSlotIsReused() throws Exception {
+    final HandleNestedGuard guard = new HandleNestedGuard();
+    final AutoCloseable resource1 = mock(AutoCloseable.class);
+    final long handle1 = guard.addWithHandle(resource1);
+    assertThat(guard.remove(handle1), is(sameInstance(resource1)));
+    assertThat(guard.size(), is(0));
+    assertThat(guard.contains(handle1), is(false));
+
+    final AutoCloseable resource2 = mock(AutoCloseable.class);
+    final long handle2 = guard.addWithHandle(resource2);
+    // Slot is reused, but generation differs
+    assertThat((int) handle2, is((int) handle1));
+    assertThat(handle2, is(not(handle1)));
+    assertThat(guard.contains(handle1), is(false));
+    guard.close();
+    verify(resource1, never()).close();
+    verify(resource2, times(1)).close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_removeStaleHandle_illegalArgumentException() {
+    final HandleNestedGuard guard = new HandleNestedGuard();
+    final long handle = guard.addWithHandle(mock(AutoCloseable.class));
+    guard.remove(handle);
+    guard.remove(handle);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_getInvalidHandle_illegalArgumentException() {
+    new HandleNestedGuard().get(-1);
+  }
+
+  @Test
+  public void test_releaseHandle_resourceNotClosedAndHandleRemainsValid() throws Exception {
+    final HandleNestedGuard guard = new HandleNestedGuard();
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    final long handle = guard.addWithHandle(resource);
+    assertThat(guard.release(handle), is(sameInstance(resource)));
+    assertThat(guard.size(), is(1));
+    assertThat(guard.get(handle), is(nullValue()));
+    guard.close();
+    verify(resource, never()).close();
+    assertThat(guard.size(), is(0));
+    assertThat(guard.contains(handle), is(false));
+  }
+
+  @Test
+  public void test_close_closesInReverseOrderOfAddingAfterSlotReuse() throws Exception {
+    final HandleNestedGuard guard = new HandleNestedGuard();
+    final AutoCloseable resource1 = mock(AutoCloseable.class);
+    final AutoCloseable resource2 = mock(AutoCloseable.class);
+    final AutoCloseable resource3 = mock(AutoCloseable.class);
+    final AutoCloseable resource4 = mock(AutoCloseable.class);
+    final long handle1 = guard.addWithHandle(resource1);
+    guard.addWithHandle(resource2);
+    guard.remove(handle1);
+    // Reuses slot of resource1, but is added after resource2
+    guard.add(resource3);
+    guard.add(resource4);
+    guard.close();
+    final InOrder inOrder = inOrder(resource2, resource3, resource4);
+    inOrder.verify(resource4, times(1)).close();
+    inOrder.verify(resource3, times(1)).close();
+    inOrder.verify(resource2, times(1)).close();
+    verify(resource1, never()).close();
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeFails_failedResourcesRemainGuardedWithSameHandles() throws Exception {
+    final HandleNestedGuard guard = new HandleNestedGuard();
+    final AutoCloseable resource1 = mock(AutoCloseable.class);
+    final AutoCloseable resource2 = mock(AutoCloseable.class);
+    final AutoCloseable resource3 = mock(AutoCloseable.class);
+    final TestException exception1 = new TestException(1);
+    final TestException exception3 = new TestException(3);
+    doThrow(exception1).when(resource1).close();
+    doThrow(exception3).when(resource3).close();
+    final long handle1 = guard.addWithHandle(resource1);
+    final long handle2 = guard.addWithHandle(resource2);
+    final long handle3 = guard.addWithHandle(resource3);
+    try {
+      guard.close();
+      fail("Exception expected");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(exception3)));
+      assertThat(e.getSuppressed(), arrayWithSize(1));
+      assertThat(e.getSuppressed()[0], is(sameInstance((Throwable) exception1)));
+    }
+    assertThat(guard.size(), is(2));
+    assertThat(guard.get(handle1), is(sameInstance(resource1)));
+    assertThat(guard.get(handle3), is(sameInstance(resource3)));
+    assertThat(guard.contains(handle2), is(false));
+
+    guard.remove(handle3);
+    try {
+      guard.close();
+      fail("Exception expected");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(exception1)));
+    }
+    verify(resource1, times(2)).close();
+    verify(resource2, times(1)).close();
+    verify(resource3, times(1)).close();
+  }
+
+  @Test
+  public void test_release_allHandlesBecomeStale() throws Exception {
+    final HandleNestedGuard guard = new HandleNestedGuard();
+    final AutoCloseable[] resources = new AutoCloseable[100];
+    final long[] handles = new long[resources.length];
+    for (int i = 0; i < resources.length; ++i) {
+      resources[i] = mock(AutoCloseable.class);
+      handles[i] = guard.addWithHandle(resources[i]);
+    }
+    guard.release();
+    assertThat(guard.size(), is(0));
+    for (int i = 0; i < resources.length; ++i) {
+      assertThat(guard.contains(handles[i]), is(false));
+    }
+    guard.close();
+    for (final AutoCloseable resource : resources) {
+      verify(resource, never()).close();
+    }
+  }
+
+  @Test
+  public void test_churn_liveResourcesClosedInReverseOrderOfAdding() throws Exception {
+    final HandleNestedGuard guard = new HandleNestedGuard();
+    final List<AutoCloseable> expected = new ArrayList<>();
+    final List<Long> handles = new ArrayList<>();
+    final Random random = new Random(1);
+    for (int i = 0; i < 10000; ++i) {
+      if (expected.isEmpty() || random.nextInt(3) != 0) {
+        final AutoCloseable resource = mock(AutoCloseable.class);
+        handles.add(guard.addWithHandle(resource));
+        expected.add(resource);
+      } else {
+        final int index = random.nextInt(expected.size());
+        assertThat(guard.remove(handles.remove(index)),
+            is(sameInstance(expected.remove(index))));
+      }
+    }
+    assertThat(guard.size(), is(expected.size()));
+    final List<AutoCloseable> closed = new ArrayList<>();
+    for (final AutoCloseable resource : expected) {
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(final InvocationOnMock invocation) {
+          closed.add((AutoCloseable) invocation.getMock());
+          return null;
+        }
+      }).when(resource).close();
+    }
+    guard.close();
+    Collections.reverse(expected);
+    assertThat(closed, is(expected));
+  }
+}
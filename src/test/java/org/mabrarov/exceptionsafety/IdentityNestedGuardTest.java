@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class IdentityNestedGuardTest {
+
+  @Test
+  public void test_add_containsResource() throws Exception {
+    try (final IdentityNestedGuard guard = new IdentityNestedGuard()) {
+      final AutoCloseable resource1 = mock(AutoCloseable.class);
+      final AutoCloseable resource2 = mock(AutoCloseable.class);
+      assertThat(guard.add(resource1), is(sameInstance(resource1)));
+      assertThat(guard.contains(resource1), is(true));
+      assertThat(guard.contains(resource2), is(false));
+      assertThat(guard.contains(null), is(false));
+      assertThat(guard.size(), is(1));
+    }
+  }
+
+  @Test
+  public void test_addDuplicateRejected_illegalArgumentExceptionAndResourceRemainsGuarded()
+      throws Exception {
+    final IdentityNestedGuard guard = new IdentityNestedGuard(
+        IdentityNestedGuard.Duplicates.REJECT);
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    try {
+      guard.add(resource);
+      fail("IllegalArgumentException expected");
+    } catch (final IllegalArgumentException e) {
+      // Expected
+    }
+    verify(resource, never()).close();
+    assertThat(guard.size(), is(1));
+    guard.close();
+    verify(resource, times(1)).close();
+  }
+
+  @Test
+  public void test_addDuplicateCoalesced_resourceClosedOnceAtOriginalPosition() throws Exception {
+    final IdentityNestedGuard guard = new IdentityNestedGuard(
+        IdentityNestedGuard.Duplicates.COALESCE);
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.add(resource1), is(sameInstance(resource1)));
+    assertThat(guard.size(), is(2));
+    guard.close();
+    final InOrder inOrder = inOrder(resource1, resource2);
+    inOrder.verify(resource2, times(1)).close();
+    inOrder.verify(resource1, times(1)).close();
+  }
+
+  @Test
+  public void test_addNull_nothingGuarded() throws Exception {
+    try (final IdentityNestedGuard guard = new IdentityNestedGuard()) {
+      guard.add(null);
+      assertThat(guard.size(), is(0));
+    }
+  }
+
+  @Test
+  public void test_releaseResource_resourceNotClosed() throws Exception {
+    final IdentityNestedGuard guard = new IdentityNestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.release(resource1), is(true));
+    assertThat(guard.release(resource1), is(false));
+    assertThat(guard.contains(resource1), is(false));
+    assertThat(guard.size(), is(1));
+    guard.close();
+    verify(resource1, never()).close();
+    verify(resource2, times(1)).close();
+  }
+
+  @Test
+  public void test_closeFails_failedResourcesRemainGuarded() throws Exception {
+    final IdentityNestedGuard guard = new IdentityNestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    final TestException exception1 = new TestException(1);
+    final TestException exception3 = new TestException(3);
+    doThrow(exception1).when(resource1).close();
+    doThrow(exception3).when(resource3).close();
+    try {
+      guard.close();
+      fail("Exception expected");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(exception3)));
+      assertThat(e.getSuppressed(), arrayWithSize(1));
+      assertThat(e.getSuppressed()[0], is(sameInstance((Throwable) exception1)));
+    }
+    assertThat(guard.size(), is(2));
+    assertThat(guard.contains(resource1), is(true));
+    assertThat(guard.contains(resource2), is(false));
+    assertThat(guard.contains(resource3), is(true));
+    assertThat(guard.release(resource3), is(true));
+    try {
+      guard.close();
+      fail("Exception expected");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(exception1)));
+    }
+    verify(resource1, times(2)).close();
+    verify(resource2, times(1)).close();
+    verify(resource3, times(1)).close();
+  }
+
+  @Test
+  public void test_release_nothingGuarded() throws Exception {
+    final IdentityNestedGuard guard = new IdentityNestedGuard();
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    guard.release();
+    assertThat(guard.size(), is(0));
+    assertThat(guard.contains(resource), is(false));
+    guard.close();
+    verify(resource, never()).close();
+  }
+
+  @Test
+  public void test_churn_guardedResourcesClosedInReverseOrderOfAdding() throws Exception {
+    final IdentityNestedGuard guard = new IdentityNestedGuard(
+        IdentityNestedGuard.Duplicates.COALESCE);
+    final List<AutoCloseable> expected = new ArrayList<>();
+    final Random random = new Random(1);
+    for (int i = 0; i < 10000; ++i) {
+      final int operation = random.nextInt(4);
+      if (expected.isEmpty() || operation < 2) {
+        expected.add(guard.add(mock(AutoCloseable.class)));
+      } else if (operation == 2) {
+        guard.add(expected.get(random.nextInt(expected.size())));
+      } else {
+        assertThat(guard.release(expected.remove(random.nextInt(expected.size()))), is(true));
+      }
+      assertThat(guard.size(), is(expected.size()));
+    }
+    final List<AutoCloseable> closed = new ArrayList<>();
+    for (final AutoCloseable resource : expected) {
+      assertThat(guard.contains(resource), is(true));
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(final InvocationOnMock invocation) {
+          closed.add((AutoCloseable) invocation.getMock());
+          return null;
+        }
+      }).when(resource).close();
+    }
+    guard.close();
+    Collections.reverse(expected);
+    assertThat(closed, is(expected));
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LeakDetectorTest {
+
+  private final List<String> leakedClassNames = new ArrayList<>();
+  private final List<Throwable> traces = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    LeakDetector.setReporter(new LeakDetector.Reporter() {
+      @Override
+      public void leakDetected(final String resourceClassName, final Throwable trace) {
+        leakedClassNames.add(resourceClassName);
+        traces.add(trace);
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    LeakDetector.setSamplingInterval(0);
+    LeakDetector.setReporter(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_setSamplingIntervalNegative_illegalArgumentException() {
+    LeakDetector.setSamplingInterval(-1);
+  }
+
+  @Test
+  public void test_disabled_nothingIsTracked() {
+    final Guard guard = new Guard();
+    LeakDetector.LISTENER.added(guard, new TestResource());
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+  }
+
+  @Test
+  public void test_guardIsNotClosed_leakIsReported() throws Exception {
+    LeakDetector.setSamplingInterval(1);
+    addToGuardWithoutClosing();
+    assertThat(LeakDetector.getTrackedCount(), is(1));
+    assertThat(awaitLeaks(), is(1));
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+    assertThat(leakedClassNames.get(0), is(TestResource.class.getName()));
+    assertThat(traces.get(0).getMessage(), containsString(TestResource.class.getName()));
+    assertThat(traces.get(0).getStackTrace()[0].getClassName(),
+        is(LeakDetectorTest.class.getName()));
+    assertThat(traces.get(0).getStackTrace()[0].getMethodName(), is("addToGuardWithoutClosing"));
+  }
+
+  @Test
+  public void test_resourceIsReleasedAndNotClosed_leakIsReportedWithReleaseTrace()
+      throws Exception {
+    LeakDetector.setSamplingInterval(1);
+    addToGuardAndRelease();
+    assertThat(LeakDetector.getTrackedCount(), is(1));
+    assertThat(awaitLeaks(), is(1));
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+    assertThat(leakedClassNames.get(0), is(TestResource.class.getName()));
+    assertThat(traces.get(0).getMessage(), containsString("released"));
+    assertThat(traces.get(0).getStackTrace()[0].getMethodName(), is("addToGuardAndRelease"));
+    assertThat(traces.get(0).getCause().getMessage(), containsString("added"));
+  }
+
+  @Test
+  public void test_releasedResourceIsClosedByOtherGuard_leakIsNotReported() {
+    LeakDetector.setSamplingInterval(1);
+    final NestedGuard guard = new NestedGuard();
+    final NestedGuard otherGuard = new NestedGuard();
+    final AutoCloseable resource = new TestResource();
+    LeakDetector.LISTENER.added(guard, resource);
+    LeakDetector.LISTENER.released(guard, resource);
+    LeakDetector.LISTENER.added(otherGuard, resource);
+    assertThat(LeakDetector.getTrackedCount(), is(1));
+    LeakDetector.LISTENER.closed(otherGuard, resource);
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+  }
+
+  @Test
+  public void test_releasedResourceIsTransferred_leakIsNotReported() throws Exception {
+    LeakDetector.setSamplingInterval(1);
+    addToGuardReleaseAndTransfer();
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+    System.gc();
+    assertThat(LeakDetector.reportLeaks(), is(0));
+    assertThat(leakedClassNames.isEmpty(), is(true));
+  }
+
+  @Test
+  public void test_releasedResourceIsClosedInBackground_leakIsNotReported() throws Exception {
+    LeakDetector.setSamplingInterval(1);
+    final Guard guard = new Guard();
+    final AutoCloseable resource = new TestResource();
+    LeakDetector.LISTENER.added(guard, resource);
+    LeakDetector.LISTENER.released(guard, resource);
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, new BackgroundCloser.FailureHandler() {
+      @Override
+      public void closeFailed(final AutoCloseable resource, final Throwable exception) {
+      }
+    });
+    closer.submit(resource);
+    closer.close();
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+  }
+
+  @Test
+  public void test_transferredNull_nothingHappens() {
+    LeakDetector.transferred(null);
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+  }
+
+  @Test
+  public void test_resourceIsClosedByGuard_leakIsNotReported() {
+    LeakDetector.setSamplingInterval(1);
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource = new TestResource();
+    LeakDetector.LISTENER.added(guard, resource);
+    assertThat(LeakDetector.getTrackedCount(), is(1));
+    LeakDetector.LISTENER.closed(guard, resource);
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+  }
+
+  @Test
+  public void test_resourceCloseFails_resourceRemainsTracked() {
+    LeakDetector.setSamplingInterval(1);
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource = new TestResource();
+    LeakDetector.LISTENER.added(guard, resource);
+    LeakDetector.LISTENER.closeFailed(guard, resource, new TestException());
+    assertThat(LeakDetector.getTrackedCount(), is(1));
+    LeakDetector.LISTENER.closed(guard, resource);
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+  }
+
+  @Test
+  public void test_samplingIsStopped_trackedResourcesRemainTracked() {
+    LeakDetector.setSamplingInterval(1);
+    final Guard guard = new Guard();
+    final AutoCloseable resource1 = new TestResource();
+    final AutoCloseable resource2 = new TestResource();
+    LeakDetector.LISTENER.added(guard, resource1);
+    LeakDetector.setSamplingInterval(0);
+    LeakDetector.LISTENER.added(guard, resource2);
+    assertThat(LeakDetector.getTrackedCount(), is(1));
+    LeakDetector.LISTENER.closed(guard, resource2);
+    assertThat(LeakDetector.getTrackedCount(), is(1));
+    LeakDetector.LISTENER.closed(guard, resource1);
+    assertThat(LeakDetector.getTrackedCount(), is(0));
+  }
+
+  private static void addToGuardWithoutClosing() {
+    LeakDetector.LISTENER.added(new Guard(), new TestResource());
+  }
+
+  private static void addToGuardAndRelease() {
+    final Guard guard = new Guard();
+    final AutoCloseable resource = new TestResource();
+    LeakDetector.LISTENER.added(guard, resource);
+    LeakDetector.LISTENER.released(guard, resource);
+  }
+
+  private static void addToGuardReleaseAndTransfer() {
+    final Guard guard = new Guard();
+    final AutoCloseable resource = new TestResource();
+    LeakDetector.LISTENER.added(guard, resource);
+    LeakDetector.LISTENER.released(guard, resource);
+    LeakDetector.transferred(resource);
+  }
+
+  private static int awaitLeaks() throws InterruptedException {
+    int leakCount = 0;
+    for (int i = 0; i < 100 && leakCount == 0; ++i) {
+      System.gc();
+      Thread.sleep(10);
+      leakCount = LeakDetector.reportLeaks();
+    }
+    return leakCount;
+  }
+
+  private static class TestResource implements AutoCloseable {
+
+    @Override
+    public void close() {
+    }
+  }
+}
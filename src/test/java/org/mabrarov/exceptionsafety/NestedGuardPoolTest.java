@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class NestedGuardPoolTest {
+
+  @Test
+  public void test_acquireAfterRecycle_sameGuardWithRetainedCapacity() throws Exception {
+    final NestedGuardPool pool = new NestedGuardPool(64, 2);
+    final NestedGuard guard = pool.acquire();
+    assertThat(guard.retainedCapacity, is(64));
+    for (int i = 0; i < 20; ++i) {
+      guard.add(mock(AutoCloseable.class));
+    }
+    final int capacity = guard.capacity();
+    guard.close();
+    assertThat(pool.recycle(guard), is(true));
+    final NestedGuard reusedGuard = pool.acquire();
+    assertThat(reusedGuard, is(sameInstance(guard)));
+    assertThat(reusedGuard.size(), is(0));
+    assertThat(reusedGuard.capacity(), is(capacity));
+  }
+
+  @Test
+  public void test_recycleNotEmptyGuard_notPooled() throws Exception {
+    final NestedGuardPool pool = new NestedGuardPool(64, 2);
+    final NestedGuard guard = pool.acquire();
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    doThrow(new TestException()).when(resource).close();
+    try {
+      guard.close();
+      fail("Exception expected");
+    } catch (final TestException e) {
+      // Expected
+    }
+    assertThat(pool.recycle(guard), is(false));
+    assertThat(pool.acquire(), is(not(sameInstance(guard))));
+    assertThat(guard.get(0), is(sameInstance(resource)));
+  }
+
+  @Test
+  public void test_recycleTwiceOrForeignGuard_notPooled() {
+    final NestedGuardPool pool = new NestedGuardPool(64, 2);
+    final NestedGuard guard = pool.acquire();
+    assertThat(pool.recycle(guard), is(true));
+    assertThat(pool.recycle(guard), is(false));
+    assertThat(pool.recycle(new NestedGuard()), is(false));
+    assertThat(pool.recycle(null), is(false));
+  }
+
+  @Test
+  public void test_recycleAboveLimit_notPooled() {
+    final NestedGuardPool pool = new NestedGuardPool(64, 1);
+    final NestedGuard guard1 = pool.acquire();
+    final NestedGuard guard2 = pool.acquire();
+    assertThat(guard2, is(not(sameInstance(guard1))));
+    assertThat(pool.recycle(guard1), is(true));
+    assertThat(pool.recycle(guard2), is(false));
+  }
+
+  @Test
+  public void test_acquireInAnotherThread_guardsAreNotShared() throws Exception {
+    final NestedGuardPool pool = new NestedGuardPool(64, 1);
+    final NestedGuard guard = pool.acquire();
+    pool.recycle(guard);
+    final AtomicReference<NestedGuard> otherGuard = new AtomicReference<>();
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        otherGuard.set(pool.acquire());
+      }
+    });
+    thread.start();
+    thread.join();
+    assertThat(otherGuard.get(), is(not(sameInstance(guard))));
+    assertThat(pool.acquire(), is(sameInstance(guard)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_newZeroMaxPooledGuards_illegalArgumentException() {
+    new NestedGuardPool(64, 0);
+  }
+}
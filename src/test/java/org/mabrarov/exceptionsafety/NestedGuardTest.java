@@ -17,19 +17,29 @@ package org.mabrarov.exceptionsafety;
 
 import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
 import static org.hamcrest.core.IsNot.not;
 import static org.hamcrest.core.IsSame.sameInstance;
+import static org.hamcrest.core.StringEndsWith.endsWith;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
 import org.junit.Test;
 import org.mockito.ArgumentMatchers;
 import org.mockito.InOrder;
@@ -491,11 +501,92 @@ public class NestedGuardTest {
     assertThat(guard.size(), is(2));
   }
 
+  @Test
+  public void test_closeAndResourcesCloseThrowException_failedResourcesRemainInOrder()
+      throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable[] resources = new AutoCloseable[25];
+    for (int i = 0; i < resources.length; ++i) {
+      resources[i] = guard.add(mock(AutoCloseable.class));
+      if (i % 3 == 0) {
+        doThrow(new TestException(i)).when(resources[i]).close();
+      }
+    }
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(24));
+      assertThat(e.getSuppressed(), is(arrayWithSize(8)));
+    }
+    assertThat(guard.size(), is(9));
+    for (int i = 0; i < guard.size(); ++i) {
+      assertThat(guard.get(i), is(sameInstance(resources[i * 3])));
+    }
+  }
+
+  @Test
+  public void test_addMoreThanInitialCapacity_allResourcesAreClosedInReverseOrder()
+      throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable[] resources = new AutoCloseable[100];
+    for (int i = 0; i < resources.length; ++i) {
+      resources[i] = guard.add(mock(AutoCloseable.class));
+    }
+    assertThat(guard.size(), is(resources.length));
+    for (int i = 0; i < resources.length; ++i) {
+      assertThat(guard.get(i), is(sameInstance(resources[i])));
+    }
+
+    guard.close();
+
+    final InOrder inOrder = inOrder((Object[]) resources);
+    for (int i = resources.length - 1; i >= 0; --i) {
+      inOrder.verify(resources[i]).close();
+    }
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_addWithFreeCapacity_addItemIsNotCalled() throws Exception {
+    final NestedGuard guard = spy(new NestedGuard());
+    guard.add(mock(AutoCloseable.class));
+    guard.add(mock(AutoCloseable.class));
+    guard.add(mock(AutoCloseable.class));
+    verify(guard, times(1)).addItem(ArgumentMatchers.<AutoCloseable>any());
+    assertThat(guard.size(), is(3));
+    guard.close();
+  }
+
+  @Test
+  public void test_addWithoutFreeCapacityThrowsError_resourceIsClosedAndGuardIsNotChanged()
+      throws Exception {
+    final NestedGuard guard = spy(new NestedGuard());
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final TestError addError = new TestError();
+    doThrow(addError).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
+    AutoCloseable resource = null;
+    try {
+      while (true) {
+        resource = mock(AutoCloseable.class);
+        guard.add(resource);
+      }
+    } catch (final TestError e) {
+      assertThat(e, is(sameInstance(addError)));
+    }
+    verify(resource).close();
+    final int size = guard.size();
+    assertThat(size > 1, is(true));
+    assertThat(guard.get(0), is(sameInstance(resource1)));
+    assertThat(guard.get(size - 1), is(not(sameInstance(resource))));
+    guard.close();
+    verify(resource1).close();
+  }
+
   @Test
   public void test_closeEmptyItems_doesNotThrowException() throws Exception {
     final NestedGuard guard = spy(new NestedGuard());
-    doNothing().when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doNothing().when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
     assertThat(guard.size(), is(0));
 
@@ -517,8 +608,7 @@ public class NestedGuardTest {
   public void test_addNullThrowsException_addExceptionIsThrown() {
     final TestRuntimeException addException = new TestRuntimeException();
     final NestedGuard guard = spy(new NestedGuard());
-    doThrow(addException).when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doThrow(addException).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     try {
       guard.add(null);
       fail("Expected TestRuntimeException");
@@ -532,8 +622,7 @@ public class NestedGuardTest {
   public void test_addThrowsException_resourceIsClosed() throws Exception {
     final TestRuntimeException addException = new TestRuntimeException();
     final NestedGuard guard = spy(new NestedGuard());
-    doThrow(addException).when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doThrow(addException).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     final AutoCloseable resource = mock(AutoCloseable.class);
     try {
       guard.add(resource);
@@ -549,8 +638,7 @@ public class NestedGuardTest {
   public void test_addThrowsError_resourceIsClosed() throws Exception {
     final TestError addError = new TestError();
     final NestedGuard guard = spy(new NestedGuard());
-    doThrow(addError).when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doThrow(addError).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     final AutoCloseable resource = mock(AutoCloseable.class);
     try {
       guard.add(resource);
@@ -568,8 +656,7 @@ public class NestedGuardTest {
     final TestRuntimeException addException = new TestRuntimeException();
     final TestException closeException = new TestException();
     final NestedGuard guard = spy(new NestedGuard());
-    doThrow(addException).when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doThrow(addException).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     final AutoCloseable resource = mock(AutoCloseable.class);
     doThrow(closeException).when(resource).close();
     try {
@@ -591,8 +678,7 @@ public class NestedGuardTest {
     final TestError addError = new TestError(1);
     final TestError closeError = new TestError(2);
     final NestedGuard guard = spy(new NestedGuard());
-    doThrow(addError).when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doThrow(addError).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     final AutoCloseable resource = mock(AutoCloseable.class);
     doThrow(closeError).when(resource).close();
     try {
@@ -616,8 +702,7 @@ public class NestedGuardTest {
     doThrow(addSuppressedException).when(addError).addSuppressed(ArgumentMatchers.<Throwable>any());
     final TestError closeError = new TestError(2);
     final NestedGuard guard = spy(new NestedGuard());
-    doThrow(addError).when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doThrow(addError).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     final AutoCloseable resource = mock(AutoCloseable.class);
     doThrow(closeError).when(resource).close();
     try {
@@ -638,8 +723,7 @@ public class NestedGuardTest {
     doThrow(addSuppressedError).when(addError).addSuppressed(ArgumentMatchers.<Throwable>any());
     final TestError closeError = new TestError(2);
     final NestedGuard guard = spy(new NestedGuard());
-    doThrow(addError).when(guard).addItem(ArgumentMatchers.<List<AutoCloseable>>any(),
-        ArgumentMatchers.<AutoCloseable>any());
+    doThrow(addError).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
     final AutoCloseable resource = mock(AutoCloseable.class);
     doThrow(closeError).when(resource).close();
     try {
@@ -845,4 +929,663 @@ public class NestedGuardTest {
     verify(resource1).close();
   }
 
+  @Test(expected = IllegalArgumentException.class)
+  public void test_closeInParallelZeroSegmentSize_illegalArgumentException() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    guard.add(mock(AutoCloseable.class));
+    guard.closeInParallel(mock(Executor.class), 0);
+  }
+
+  @Test
+  public void test_closeInParallelSingleSegment_executorIsNotUsed() throws Exception {
+    final Executor executor = mock(Executor.class);
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+
+    guard.closeInParallel(executor, 2);
+
+    verify(executor, never()).execute(any(Runnable.class));
+    final InOrder inOrder = inOrder(resource1, resource2);
+    inOrder.verify(resource2).close();
+    inOrder.verify(resource1).close();
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeInParallel_allResourcesAreClosedInReverseOrderWithinSegment()
+      throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final NestedGuard guard = new NestedGuard();
+      final AutoCloseable[] resources = new AutoCloseable[95];
+      for (int i = 0; i < resources.length; ++i) {
+        resources[i] = guard.add(mock(AutoCloseable.class));
+      }
+
+      guard.closeInParallel(executor, 10);
+
+      assertThat(guard.size(), is(0));
+      for (int to = resources.length; to > 0; to -= 10) {
+        final int from = Math.max(0, to - 10);
+        final InOrder inOrder = inOrder((Object[]) resources);
+        for (int i = to - 1; i >= from; --i) {
+          inOrder.verify(resources[i]).close();
+        }
+      }
+      for (final AutoCloseable resource : resources) {
+        verify(resource, times(1)).close();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void test_closeInParallelAndResourcesCloseThrowException_exceptionsAreNestedAsInClose()
+      throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final NestedGuard guard = new NestedGuard();
+      final AutoCloseable[] resources = new AutoCloseable[50];
+      for (int i = 0; i < resources.length; ++i) {
+        resources[i] = guard.add(mock(AutoCloseable.class));
+        if (i % 7 == 0) {
+          doThrow(new TestException(i)).when(resources[i]).close();
+        }
+      }
+      try {
+        guard.closeInParallel(executor, 4);
+        fail("Expected TestException");
+      } catch (final TestException e) {
+        assertThat(e.getId(), is(49));
+        final Throwable[] suppressed = e.getSuppressed();
+        assertThat(suppressed, is(arrayWithSize(7)));
+        for (int i = 0; i < suppressed.length; ++i) {
+          assertThat(((TestException) suppressed[i]).getId(), is(42 - i * 7));
+        }
+      }
+      assertThat(guard.size(), is(8));
+      for (int i = 0; i < guard.size(); ++i) {
+        assertThat(guard.get(i), is(sameInstance(resources[i * 7])));
+      }
+
+      try {
+        guard.closeInParallel(executor, 4);
+        fail("Expected TestException");
+      } catch (final TestException e) {
+        assertThat(e.getId(), is(49));
+      }
+      verify(resources[1], times(1)).close();
+      verify(resources[0], times(2)).close();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void test_closeInParallelAndExecutorRejects_resourcesAreClosedByCallingThread()
+      throws Exception {
+    final Executor executor = mock(Executor.class);
+    doThrow(new RejectedExecutionException()).when(executor).execute(any(Runnable.class));
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable[] resources = new AutoCloseable[10];
+    for (int i = 0; i < resources.length; ++i) {
+      resources[i] = guard.add(mock(AutoCloseable.class));
+    }
+
+    guard.closeInParallel(executor, 3);
+
+    verify(executor, times(3)).execute(any(Runnable.class));
+    for (final AutoCloseable resource : resources) {
+      verify(resource, times(1)).close();
+    }
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeInParallelAndExecutorDiscards_resourcesAreClosedByCallingThread()
+      throws Exception {
+    final Executor executor = mock(Executor.class);
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable[] resources = new AutoCloseable[10];
+    for (int i = 0; i < resources.length; ++i) {
+      resources[i] = guard.add(mock(AutoCloseable.class));
+    }
+
+    guard.closeInParallel(executor, 3);
+
+    verify(executor, times(3)).execute(any(Runnable.class));
+    for (final AutoCloseable resource : resources) {
+      verify(resource, times(1)).close();
+    }
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeInParallelWithDefaultPool_allResourcesAreClosed() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable[] resources = new AutoCloseable[95];
+    for (int i = 0; i < resources.length; ++i) {
+      resources[i] = guard.add(mock(AutoCloseable.class));
+    }
+
+    guard.closeInParallel(10);
+
+    assertThat(guard.size(), is(0));
+    for (final AutoCloseable resource : resources) {
+      verify(resource, times(1)).close();
+    }
+  }
+
+  @Test
+  public void test_closeAsyncAndResourcesCloseThrowException_futureCompletesWithSameExceptions()
+      throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final NestedGuard guard = new NestedGuard();
+      final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+      final TestException closeException1 = new TestException(1);
+      doThrow(closeException1).when(resource1).close();
+      final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+      final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+      final TestException closeException3 = new TestException(3);
+      doThrow(closeException3).when(resource3).close();
+      try {
+        guard.closeAsync(executor).get();
+        fail("Expected ExecutionException");
+      } catch (final ExecutionException e) {
+        assertThat(e.getCause(), is(sameInstance((Throwable) closeException3)));
+        final Throwable[] suppressed = e.getCause().getSuppressed();
+        assertThat(suppressed, is(arrayWithSize(1)));
+        assertThat(suppressed[0], is(sameInstance((Throwable) closeException1)));
+      }
+      final InOrder inOrder = inOrder(resource1, resource2, resource3);
+      inOrder.verify(resource3).close();
+      inOrder.verify(resource2).close();
+      inOrder.verify(resource1).close();
+      assertThat(guard.size(), is(2));
+      assertThat(guard.get(0), is(sameInstance(resource1)));
+      assertThat(guard.get(1), is(sameInstance(resource3)));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void test_closeAsyncAndExecutorRejects_resourcesAreNotClosed() throws Exception {
+    final Executor executor = mock(Executor.class);
+    doThrow(new RejectedExecutionException()).when(executor).execute(any(Runnable.class));
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    try {
+      guard.closeAsync(executor);
+    } finally {
+      verify(resource, never()).close();
+      assertThat(guard.size(), is(1));
+    }
+  }
+
+  @Test
+  public void test_closeInBackgroundAndCloserRejects_resourcesAreNotImpacted() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.REJECT, mock(BackgroundCloser.FailureHandler.class));
+    closer.close();
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    try {
+      guard.closeInBackground(closer);
+      fail("Expected RejectedExecutionException");
+    } catch (final RejectedExecutionException e) {
+      assertThat(guard.get(0), is(sameInstance(resource)));
+    }
+    verify(resource, never()).close();
+  }
+
+  @Test
+  public void test_closeInBackground_resourcesAreClosedAndGuardIsEmpty() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, mock(BackgroundCloser.FailureHandler.class));
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource;
+    try {
+      resource = guard.add(mock(AutoCloseable.class));
+      guard.closeInBackground(closer);
+      assertThat(guard.size(), is(0));
+    } finally {
+      closer.close();
+    }
+    verify(resource).close();
+  }
+
+  @Test
+  public void test_closeInBackgroundWithRetainedCapacity_storageIsRetained() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, mock(BackgroundCloser.FailureHandler.class));
+    final NestedGuard guard = new NestedGuard(16);
+    final AutoCloseable resource1;
+    final AutoCloseable resource2;
+    try {
+      guard.reserve(16);
+      resource1 = guard.add(mock(AutoCloseable.class));
+      resource2 = guard.add(mock(AutoCloseable.class));
+      guard.closeInBackground(closer);
+      assertThat(guard.size(), is(0));
+      assertThat(guard.capacity(), is(16));
+    } finally {
+      closer.close();
+    }
+    final InOrder inOrder = inOrder(resource1, resource2);
+    inOrder.verify(resource2).close();
+    inOrder.verify(resource1).close();
+  }
+
+  @Test
+  public void test_closeInBackgroundWithRetainedCapacityAndCloserRejects_resourcesAreNotImpacted()
+      throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.REJECT, mock(BackgroundCloser.FailureHandler.class));
+    closer.close();
+    final NestedGuard guard = new NestedGuard(16);
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    try {
+      guard.closeInBackground(closer);
+      fail("Expected RejectedExecutionException");
+    } catch (final RejectedExecutionException e) {
+      assertThat(guard.size(), is(1));
+      assertThat(guard.get(0), is(sameInstance(resource)));
+    }
+    verify(resource, never()).close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_closeSomeNegativeMaxItems_illegalArgumentException() throws Exception {
+    try (final NestedGuard guard = new NestedGuard()) {
+      guard.closeSome(-1);
+    }
+  }
+
+  @Test
+  public void test_closeSomeEmpty_passIsCompleted() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    assertThat(guard.closeSome(1), is(false));
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeSome_resourcesAreClosedInReverseOrderInSteps() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+
+    assertThat(guard.closeSome(2), is(true));
+    assertThat(guard.size(), is(1));
+    assertThat(guard.get(0), is(sameInstance(resource1)));
+    verify(resource1, never()).close();
+
+    assertThat(guard.closeSome(2), is(false));
+    assertThat(guard.size(), is(0));
+
+    final InOrder inOrder = inOrder(resource1, resource2, resource3);
+    inOrder.verify(resource3, times(1)).close();
+    inOrder.verify(resource2, times(1)).close();
+    inOrder.verify(resource1, times(1)).close();
+  }
+
+  @Test
+  public void test_closeSomeAndResourceCloseThrowsException_failedResourceIsRetriedByNextPass()
+      throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    final TestException closeException = new TestException();
+    doThrow(closeException).doNothing().when(resource2).close();
+
+    assertThat(guard.closeSome(1), is(true));
+    try {
+      guard.closeSome(1);
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(closeException)));
+    }
+    assertThat(guard.size(), is(2));
+    assertThat(guard.get(0), is(sameInstance(resource1)));
+    assertThat(guard.get(1), is(sameInstance(resource2)));
+
+    assertThat(guard.closeSome(1), is(false));
+    assertThat(guard.size(), is(1));
+    assertThat(guard.get(0), is(sameInstance(resource2)));
+
+    assertThat(guard.closeSome(1), is(false));
+    assertThat(guard.size(), is(0));
+    verify(resource1, times(1)).close();
+    verify(resource2, times(2)).close();
+    verify(resource3, times(1)).close();
+  }
+
+  @Test
+  public void test_closeSomeAndResourceAdded_addedResourceIsClosedByNextPass() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+
+    assertThat(guard.closeSome(1), is(true));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.closeSome(1), is(false));
+    verify(resource3, never()).close();
+    assertThat(guard.size(), is(1));
+    assertThat(guard.get(0), is(sameInstance(resource3)));
+
+    assertThat(guard.closeSome(1), is(false));
+    assertThat(guard.size(), is(0));
+    final InOrder inOrder = inOrder(resource1, resource2, resource3);
+    inOrder.verify(resource2, times(1)).close();
+    inOrder.verify(resource1, times(1)).close();
+    inOrder.verify(resource3, times(1)).close();
+  }
+
+  @Test
+  public void test_closeSomeAndRemove_passIsRestarted() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource4 = guard.add(mock(AutoCloseable.class));
+
+    assertThat(guard.closeSome(1), is(true));
+    assertThat(guard.remove(0), is(sameInstance(resource1)));
+    assertThat(guard.closeSome(1), is(true));
+    verify(resource3, times(1)).close();
+    assertThat(guard.closeSome(1), is(false));
+    assertThat(guard.size(), is(0));
+    verify(resource1, never()).close();
+    verify(resource2, times(1)).close();
+    verify(resource4, times(1)).close();
+  }
+
+  @Test
+  public void test_closeForExpiredTimeout_singleResourceIsClosed() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+
+    assertThat(guard.closeFor(0), is(true));
+    verify(resource2, times(1)).close();
+    verify(resource1, never()).close();
+    assertThat(guard.closeFor(-1), is(false));
+    verify(resource1, times(1)).close();
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeFor_allResourcesAreClosedWithinTimeBudget() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+
+    assertThat(guard.closeFor(Long.MAX_VALUE / 2), is(false));
+    assertThat(guard.size(), is(0));
+    verify(resource1, times(1)).close();
+    verify(resource2, times(1)).close();
+  }
+
+  @Test
+  public void test_closeWithTimeout_allResourcesAreClosedInReverseOrder() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    guard.closeWithTimeout(1, 1, TimeUnit.MINUTES);
+    assertThat(guard.size(), is(0));
+    final InOrder inOrder = inOrder(resource1, resource2);
+    inOrder.verify(resource2, times(1)).close();
+    inOrder.verify(resource1, times(1)).close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_closeWithTimeoutZeroResourceTimeout_illegalArgumentException()
+      throws Exception {
+    new NestedGuard().closeWithTimeout(0, 1, TimeUnit.MINUTES);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_closeWithTimeoutNegativeOverallTimeout_illegalArgumentException()
+      throws Exception {
+    new NestedGuard().closeWithTimeout(1, -1, TimeUnit.MINUTES);
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndResourceCloseHangs_remainingResourcesAreClosed()
+      throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(new BlockingResource(true));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    final TestException closeException = new TestException();
+    doThrow(closeException).when(resource3).close();
+    try {
+      guard.closeWithTimeout(200, 1000 * 60, TimeUnit.MILLISECONDS);
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(closeException)));
+      assertThat(e.getSuppressed(), arrayWithSize(1));
+      assertThat(e.getSuppressed()[0], is(instanceOf(CloseTimeoutException.class)));
+      assertThat(e.getSuppressed()[0].getCause(), is(instanceOf(InterruptedException.class)));
+    }
+    assertThat(Thread.currentThread().isInterrupted(), is(false));
+    verify(resource1, times(1)).close();
+    assertThat(guard.size(), is(2));
+    assertThat(guard.get(0), is(sameInstance(resource2)));
+    assertThat(guard.get(1), is(sameInstance(resource3)));
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndOverallTimeoutExpires_remainingResourcesRemainGuarded()
+      throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(new BlockingResource(true));
+    try {
+      guard.closeWithTimeout(1000 * 60, 200, TimeUnit.MILLISECONDS);
+      fail("Expected CloseTimeoutException");
+    } catch (final CloseTimeoutException e) {
+      assertThat(e.getCause(), is(instanceOf(InterruptedException.class)));
+      assertThat(e.getSuppressed(), arrayWithSize(1));
+      assertThat(e.getSuppressed()[0], is(instanceOf(CloseTimeoutException.class)));
+    }
+    verify(resource1, never()).close();
+    assertThat(guard.size(), is(2));
+    assertThat(guard.get(0), is(sameInstance(resource1)));
+    assertThat(guard.get(1), is(sameInstance(resource2)));
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndResourceCloseIgnoresInterruption_resourceIsAbandonedAndRemainsGuarded()
+      throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final BlockingResource resource2 = guard.add(new BlockingResource(false));
+    try {
+      try {
+        guard.closeWithTimeout(200, 1000 * 60, TimeUnit.MILLISECONDS);
+        fail("Expected CloseTimeoutException");
+      } catch (final CloseTimeoutException e) {
+        assertThat(e.isAbandoned(), is(true));
+        assertThat(e.getSuppressed(), arrayWithSize(0));
+      }
+      verify(resource1, times(1)).close();
+      assertThat(guard.size(), is(1));
+      assertThat(guard.get(0), is(sameInstance((AutoCloseable) resource2)));
+    } finally {
+      resource2.unblock();
+    }
+    assertThat(resource2.awaitCompletion(), is(true));
+
+    // Retry completes without invoking close again, because abandoned close completed
+    guard.closeWithTimeout(1, 1, TimeUnit.MINUTES);
+    assertThat(guard.size(), is(0));
+    assertThat(resource2.closeCount(), is(1));
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndOverallTimeoutExpires_onlyGuardedResourcesAreCounted()
+      throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    guard.add(mock(AutoCloseable.class));
+    guard.add(null);
+    guard.add(null);
+    guard.add(new BlockingResource(true));
+    try {
+      guard.closeWithTimeout(1000 * 60, 200, TimeUnit.MILLISECONDS);
+      fail("Expected CloseTimeoutException");
+    } catch (final CloseTimeoutException e) {
+      assertThat(e.getSuppressed(), arrayWithSize(1));
+      assertThat(e.getSuppressed()[0].getMessage(),
+          endsWith("number of not closed resources: 1"));
+    }
+  }
+
+  @Test
+  public void test_capacity_growsWithSizeAndIsReleasedByClose() throws Exception {
+    final NestedGuard guard = new NestedGuard();
+    assertThat(guard.capacity(), is(0));
+    for (int i = 0; i < 100; ++i) {
+      guard.add(mock(AutoCloseable.class));
+    }
+    assertThat(guard.capacity() >= 100, is(true));
+    guard.close();
+    assertThat(guard.capacity(), is(0));
+  }
+
+  @Test
+  public void test_closeWithRetainedCapacity_storageKept() throws Exception {
+    final NestedGuard guard = new NestedGuard(100);
+    for (int i = 0; i < 50; ++i) {
+      guard.add(mock(AutoCloseable.class));
+    }
+    final int capacity = guard.capacity();
+    guard.close();
+    assertThat(guard.size(), is(0));
+    assertThat(guard.capacity(), is(capacity));
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.size(), is(1));
+    assertThat(guard.get(0), is(sameInstance(resource)));
+    guard.release();
+    assertThat(guard.capacity(), is(capacity));
+    guard.close();
+    verify(resource, never()).close();
+  }
+
+  @Test
+  public void test_closeAboveRetainedCapacity_storageDropped() throws Exception {
+    final NestedGuard guard = new NestedGuard(16);
+    for (int i = 0; i < 17; ++i) {
+      guard.add(mock(AutoCloseable.class));
+    }
+    guard.close();
+    assertThat(guard.capacity(), is(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_newNegativeRetainedCapacity_illegalArgumentException() {
+    new NestedGuard(-1);
+  }
+
+  @Test
+  public void test_reserve_addItemIsNotCalled() throws Exception {
+    final NestedGuard guard = spy(new NestedGuard());
+    guard.reserve(100);
+    assertThat(guard.capacity(), is(100));
+    for (int i = 0; i < 100; ++i) {
+      guard.add(mock(AutoCloseable.class));
+    }
+    verify(guard, never()).addItem(ArgumentMatchers.<AutoCloseable>any());
+    guard.reserve(10);
+    assertThat(guard.capacity(), is(100));
+    guard.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_reserveNegative_illegalArgumentException() {
+    new NestedGuard().reserve(-1);
+  }
+
+  @Test
+  public void test_addAll_resourcesGuardedInOrderAndStorageGrownOnce() throws Exception {
+    final NestedGuard guard = spy(new NestedGuard());
+    final AutoCloseable resource0 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable[] array = new AutoCloseable[50];
+    for (int i = 0; i < array.length; ++i) {
+      array[i] = mock(AutoCloseable.class);
+    }
+    final AutoCloseable[] list = new AutoCloseable[50];
+    for (int i = 0; i < list.length; ++i) {
+      list[i] = mock(AutoCloseable.class);
+    }
+    guard.addAll(array);
+    guard.addAll(Arrays.asList(list));
+    verify(guard, times(2)).growItems(ArgumentMatchers.anyInt());
+    assertThat(guard.size(), is(101));
+    assertThat(guard.get(0), is(sameInstance(resource0)));
+    for (int i = 0; i < 50; ++i) {
+      assertThat(guard.get(1 + i), is(sameInstance(array[i])));
+      assertThat(guard.get(51 + i), is(sameInstance(list[i])));
+    }
+    guard.close();
+    final InOrder inOrder = inOrder(list[0], array[49], resource0);
+    inOrder.verify(list[0]).close();
+    inOrder.verify(array[49]).close();
+    inOrder.verify(resource0).close();
+  }
+
+  @Test
+  public void test_addAllGrowthFails_allResourcesOfBatchClosedAndGuardIsNotChanged()
+      throws Exception {
+    final NestedGuard guard = spy(new NestedGuard());
+    final AutoCloseable resource0 = guard.add(mock(AutoCloseable.class));
+    final TestError growError = new TestError();
+    doThrow(growError).when(guard).growItems(ArgumentMatchers.anyInt());
+    final AutoCloseable resource1 = mock(AutoCloseable.class);
+    final AutoCloseable resource2 = mock(AutoCloseable.class);
+    final TestException closeException = new TestException();
+    doThrow(closeException).when(resource1).close();
+    final AutoCloseable[] batch = new AutoCloseable[20];
+    batch[0] = resource1;
+    batch[batch.length - 1] = resource2;
+    try {
+      guard.addAll(batch);
+      fail("Expected TestError");
+    } catch (final TestError e) {
+      assertThat(e, is(sameInstance(growError)));
+      assertThat(e.getSuppressed(), arrayWithSize(1));
+      assertThat(e.getSuppressed()[0], is(sameInstance((Throwable) closeException)));
+    }
+    final InOrder inOrder = inOrder(resource1, resource2);
+    inOrder.verify(resource2).close();
+    inOrder.verify(resource1).close();
+    try {
+      guard.addAll(Arrays.asList(batch));
+      fail("Expected TestError");
+    } catch (final TestError e) {
+      assertThat(e, is(sameInstance(growError)));
+    }
+    verify(resource1, times(2)).close();
+    verify(resource2, times(2)).close();
+    assertThat(guard.size(), is(1));
+    assertThat(guard.get(0), is(sameInstance(resource0)));
+    guard.close();
+    verify(resource0).close();
+  }
+
+  @Test
+  public void test_addAllWithFreeCapacity_growItemsIsNotCalled() throws Exception {
+    final NestedGuard guard = spy(new NestedGuard());
+    guard.reserve(10);
+    guard.addAll(mock(AutoCloseable.class), mock(AutoCloseable.class));
+    guard.addAll(Arrays.asList(mock(AutoCloseable.class), mock(AutoCloseable.class)));
+    verify(guard, times(1)).growItems(ArgumentMatchers.anyInt());
+    assertThat(guard.size(), is(4));
+    guard.close();
+  }
 }
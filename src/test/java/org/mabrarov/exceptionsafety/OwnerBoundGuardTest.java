@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class OwnerBoundGuardTest {
+
+  @Test(expected = NullPointerException.class)
+  public void test_nullOwner_nullPointerException() {
+    new OwnerBoundGuard(null);
+  }
+
+  @Test
+  public void test_add_resourcesAreGuarded() throws Exception {
+    final Object owner = new Object();
+    final OwnerBoundGuard guard = new OwnerBoundGuard(owner);
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.size(), is(2));
+    assertThat(guard.get(0), is(sameInstance(resource1)));
+    assertThat(guard.remove(1), is(sameInstance(resource2)));
+    guard.close();
+    verify(resource1, times(1)).close();
+    verify(resource2, never()).close();
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_ownerIsDropped_resourcesAreClosed() throws Exception {
+    final CountDownLatch closed = new CountDownLatch(2);
+    final WeakReference<Owner> ownerReference = createAndDropOwner(closed);
+    awaitCollection(ownerReference, closed);
+    assertThat(closed.getCount(), is(0L));
+    assertThat(ownerReference.get(), is(nullValue()));
+  }
+
+  @Test
+  public void test_ownerIsDroppedAfterClose_resourcesAreNotClosedAgain() throws Exception {
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    final CountDownLatch closed = new CountDownLatch(1);
+    final WeakReference<Object> ownerReference = createCloseAndDropOwner(resource);
+    // Owner dropped at the same time without closing shows that the shared thread processed
+    // unreachable owners
+    final WeakReference<Owner> otherOwnerReference = createAndDropOwner(closed);
+    awaitCollection(ownerReference, closed);
+    assertThat(otherOwnerReference.get(), is(nullValue()));
+    assertThat(closed.getCount(), is(0L));
+    verify(resource, times(1)).close();
+  }
+
+  @Test
+  public void test_close_guardIsNotRegistered() throws Exception {
+    final Object owner = new Object();
+    final OwnerBoundGuard guard = new OwnerBoundGuard(owner);
+    assertThat(guard.isRegistered(), is(true));
+    guard.add(mock(AutoCloseable.class));
+    guard.close();
+    assertThat(guard.isRegistered(), is(false));
+  }
+
+  @Test
+  public void test_closeFails_guardRemainsRegistered() throws Exception {
+    final Object owner = new Object();
+    final OwnerBoundGuard guard = new OwnerBoundGuard(owner);
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    doThrow(new TestException()).when(resource).close();
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException ignored) {
+      // Expected
+    }
+    assertThat(guard.isRegistered(), is(true));
+    assertThat(guard.size(), is(1));
+    guard.release();
+    guard.close();
+    assertThat(guard.isRegistered(), is(false));
+  }
+
+  @Test
+  public void test_addAfterClose_resourceIsClosedAndIllegalStateException() throws Exception {
+    final Object owner = new Object();
+    final OwnerBoundGuard guard = new OwnerBoundGuard(owner);
+    guard.close();
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    try {
+      guard.add(resource);
+      fail("Expected IllegalStateException");
+    } catch (final IllegalStateException ignored) {
+      // Expected
+    }
+    verify(resource, times(1)).close();
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_ownerIsDroppedAndCloseFails_failureHandlerIsCalled() throws Exception {
+    final CountDownLatch handled = new CountDownLatch(1);
+    final TestException closeException = new TestException();
+    final BackgroundCloser.FailureHandler failureHandler = new BackgroundCloser.FailureHandler() {
+      @Override
+      public void closeFailed(final AutoCloseable resource, final Throwable exception) {
+        if (exception == closeException && resource instanceof NestedGuard
+            && ((NestedGuard) resource).size() == 1) {
+          handled.countDown();
+        }
+      }
+    };
+    final WeakReference<Object> ownerReference = createAndDropFailingOwner(closeException,
+        failureHandler);
+    awaitCollection(ownerReference, handled);
+    assertThat(handled.getCount(), is(0L));
+  }
+
+  private static WeakReference<Owner> createAndDropOwner(final CountDownLatch closed) {
+    final Owner owner = new Owner();
+    owner.guard.add(new CountingResource(closed));
+    owner.guard.add(new CountingResource(closed));
+    return new WeakReference<>(owner);
+  }
+
+  private static WeakReference<Object> createCloseAndDropOwner(final AutoCloseable resource)
+      throws Exception {
+    final Object owner = new Object();
+    final OwnerBoundGuard guard = new OwnerBoundGuard(owner);
+    guard.add(resource);
+    guard.close();
+    return new WeakReference<>(owner);
+  }
+
+  private static WeakReference<Object> createAndDropFailingOwner(final Exception closeException,
+      final BackgroundCloser.FailureHandler failureHandler) throws Exception {
+    final Object owner = new Object();
+    final OwnerBoundGuard guard = new OwnerBoundGuard(owner, failureHandler);
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    doThrow(closeException).when(resource).close();
+    return new WeakReference<>(owner);
+  }
+
+  private static void awaitCollection(final WeakReference<?> ownerReference,
+      final CountDownLatch latch) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while ((ownerReference.get() != null || latch.getCount() != 0)
+        && System.nanoTime() - deadline < 0) {
+      System.gc();
+      latch.await(10, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static class Owner {
+
+    final OwnerBoundGuard guard = new OwnerBoundGuard(this);
+  }
+}
@@ -22,12 +22,18 @@ import static org.hamcrest.core.IsNull.nullValue;
 import static org.hamcrest.core.IsSame.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import org.junit.Test;
 import org.mockito.InOrder;
 
@@ -354,4 +360,71 @@ public class PairGuardTest {
     inOrder2.verify(resource11).close();
   }
 
+  @Test
+  public void test_closeAsyncBothCloseThrows_futureCompletesWithSameExceptions() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final PairGuard guard = new PairGuard();
+      final AutoCloseable first = guard.setFirst(mock(AutoCloseable.class));
+      final AutoCloseable second = guard.setSecond(mock(AutoCloseable.class));
+      final TestException firstException = new TestException(1);
+      final TestException secondException = new TestException(2);
+      doThrow(firstException).when(first).close();
+      doThrow(secondException).when(second).close();
+      try {
+        guard.closeAsync(executor).get();
+        fail("Expected ExecutionException");
+      } catch (final ExecutionException e) {
+        assertThat(e.getCause(), is(sameInstance((Throwable) secondException)));
+        final Throwable[] suppressed = e.getCause().getSuppressed();
+        assertThat(suppressed, is(arrayWithSize(1)));
+        assertThat(suppressed[0], is(sameInstance((Throwable) firstException)));
+      }
+      final InOrder inOrder = inOrder(first, second);
+      inOrder.verify(second).close();
+      inOrder.verify(first).close();
+
+      doNothing().when(first).close();
+      doNothing().when(second).close();
+      guard.closeAsync(executor).get();
+      verify(first, times(2)).close();
+      verify(second, times(2)).close();
+      assertThat(guard.getFirst(), is(nullValue()));
+      assertThat(guard.getSecond(), is(nullValue()));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void test_closeInBackgroundAndCloserRejects_resourcesAreNotImpacted() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.REJECT, mock(BackgroundCloser.FailureHandler.class));
+    closer.close();
+    final PairGuard guard = new PairGuard();
+    final AutoCloseable resource = guard.setSecond(mock(AutoCloseable.class));
+    try {
+      guard.closeInBackground(closer);
+      fail("Expected RejectedExecutionException");
+    } catch (final RejectedExecutionException e) {
+      assertThat(guard.getSecond(), is(sameInstance(resource)));
+    }
+    verify(resource, never()).close();
+  }
+
+  @Test
+  public void test_closeInBackground_resourcesAreClosedAndGuardIsEmpty() throws Exception {
+    final BackgroundCloser closer = new BackgroundCloser(1, 1,
+        BackgroundCloser.OverflowPolicy.BLOCK, mock(BackgroundCloser.FailureHandler.class));
+    final PairGuard guard = new PairGuard();
+    final AutoCloseable resource;
+    try {
+      resource = guard.setSecond(mock(AutoCloseable.class));
+      guard.closeInBackground(closer);
+      assertThat(guard.getSecond(), is(nullValue()));
+    } finally {
+      closer.close();
+    }
+    verify(resource).close();
+  }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Listener registered for tests using {@link java.util.ServiceLoader}. Records events of the
+ * thread which started recording and, optionally, throws after each recorded event.
+ */
+public class RecordingGuardListener implements GuardListener {
+
+  private static final ThreadLocal<Recording> RECORDING = new ThreadLocal<>();
+
+  public static List<String> start(final boolean throwing) {
+    final Recording recording = new Recording(throwing);
+    RECORDING.set(recording);
+    return recording.events;
+  }
+
+  public static void stop() {
+    RECORDING.remove();
+  }
+
+  @Override
+  public void added(final AutoCloseable guard, final AutoCloseable resource) {
+    record("added", guard, resource);
+  }
+
+  @Override
+  public void released(final AutoCloseable guard, final AutoCloseable resource) {
+    record("released", guard, resource);
+  }
+
+  @Override
+  public void closed(final AutoCloseable guard, final AutoCloseable resource) {
+    record("closed", guard, resource);
+  }
+
+  @Override
+  public void closeFailed(final AutoCloseable guard, final AutoCloseable resource,
+      final Throwable exception) {
+    record("closeFailed:" + exception, guard, resource);
+  }
+
+  private static void record(final String event, final AutoCloseable guard,
+      final AutoCloseable resource) {
+    final Recording recording = RECORDING.get();
+    if (recording == null) {
+      return;
+    }
+    recording.events.add(event + ":" + guard.getClass().getSimpleName() + ":" + resource);
+    if (recording.throwing) {
+      throw new TestRuntimeException();
+    }
+  }
+
+  private static class Recording {
+
+    final List<String> events = new ArrayList<>();
+    final boolean throwing;
+
+    Recording(final boolean throwing) {
+      this.throwing = throwing;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+
+public class SegmentedNestedGuardTest {
+
+  private static final int[] SIZES = {1, SegmentedNestedGuard.CHUNK_SIZE - 1,
+      SegmentedNestedGuard.CHUNK_SIZE, SegmentedNestedGuard.CHUNK_SIZE + 1,
+      10 * SegmentedNestedGuard.CHUNK_SIZE + 5};
+
+  private static final class CloseOrder {
+
+    final int[] ids;
+    int count;
+
+    CloseOrder(final int size) {
+      ids = new int[size];
+    }
+  }
+
+  private static final class RecordingResource implements AutoCloseable {
+
+    private final CloseOrder closeOrder;
+    private final int id;
+
+    RecordingResource(final CloseOrder closeOrder, final int id) {
+      this.closeOrder = closeOrder;
+      this.id = id;
+    }
+
+    @Override
+    public void close() {
+      closeOrder.ids[closeOrder.count++] = id;
+    }
+  }
+
+  private static AutoCloseable[] addResources(final SegmentedNestedGuard guard, final int size) {
+    final AutoCloseable[] resources = new AutoCloseable[size];
+    for (int i = 0; i < size; ++i) {
+      resources[i] = guard.add(mock(AutoCloseable.class));
+    }
+    return resources;
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void test_getEmpty_indexOutOfBoundException() throws Exception {
+    try (final SegmentedNestedGuard guard = new SegmentedNestedGuard()) {
+      guard.get(0);
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void test_getLargeIndex_indexOutOfBoundException() throws Exception {
+    try (final SegmentedNestedGuard guard = new SegmentedNestedGuard()) {
+      addResources(guard, SegmentedNestedGuard.CHUNK_SIZE);
+      guard.get(SegmentedNestedGuard.CHUNK_SIZE);
+    }
+  }
+
+  @Test
+  public void test_add_resourcesAreGuardedInOrder() throws Exception {
+    for (final int size : SIZES) {
+      try (final SegmentedNestedGuard guard = new SegmentedNestedGuard()) {
+        final AutoCloseable[] resources = addResources(guard, size);
+        assertThat(guard.size(), is(size));
+        for (int i = 0; i < size; ++i) {
+          assertThat(guard.get(i), is(sameInstance(resources[i])));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void test_closeFewResources_resourcesClosedInReverseOrder() throws Exception {
+    final SegmentedNestedGuard guard = new SegmentedNestedGuard();
+    final AutoCloseable[] resources = addResources(guard, 3);
+    guard.close();
+    assertThat(guard.size(), is(0));
+    final InOrder inOrder = inOrder((Object[]) resources);
+    for (int i = resources.length - 1; i >= 0; --i) {
+      inOrder.verify(resources[i], times(1)).close();
+    }
+  }
+
+  @Test
+  public void test_close_resourcesClosedInReverseOrder() throws Exception {
+    for (final int size : SIZES) {
+      final SegmentedNestedGuard guard = new SegmentedNestedGuard();
+      final CloseOrder closeOrder = new CloseOrder(size);
+      for (int i = 0; i < size; ++i) {
+        guard.add(new RecordingResource(closeOrder, i));
+      }
+      guard.close();
+      assertThat(guard.size(), is(0));
+      assertThat(closeOrder.count, is(size));
+      for (int i = 0; i < size; ++i) {
+        assertThat(closeOrder.ids[i], is(size - 1 - i));
+      }
+    }
+  }
+
+  @Test
+  public void test_setAndReleaseIndex_replacedResourcesNotClosed() throws Exception {
+    final SegmentedNestedGuard guard = new SegmentedNestedGuard();
+    final AutoCloseable[] resources = addResources(guard, SegmentedNestedGuard.CHUNK_SIZE + 1);
+    final AutoCloseable replacement = mock(AutoCloseable.class);
+    guard.set(SegmentedNestedGuard.CHUNK_SIZE, replacement);
+    assertThat(guard.release(0), is(sameInstance(resources[0])));
+    assertThat(guard.get(0), is(nullValue()));
+    assertThat(guard.size(), is(SegmentedNestedGuard.CHUNK_SIZE + 1));
+    guard.close();
+    verify(resources[0], never()).close();
+    verify(resources[SegmentedNestedGuard.CHUNK_SIZE], never()).close();
+    verify(replacement, times(1)).close();
+    verify(resources[1], times(1)).close();
+  }
+
+  @Test
+  public void test_release_nothingClosed() throws Exception {
+    final SegmentedNestedGuard guard = new SegmentedNestedGuard();
+    final AutoCloseable[] resources = addResources(guard, SegmentedNestedGuard.CHUNK_SIZE + 1);
+    guard.release();
+    assertThat(guard.size(), is(0));
+    guard.close();
+    for (final AutoCloseable resource : resources) {
+      verify(resource, never()).close();
+    }
+  }
+
+  @Test
+  public void test_closeFailsInDifferentChunks_failedResourcesRemainGuardedInOrder()
+      throws Exception {
+    final SegmentedNestedGuard guard = new SegmentedNestedGuard();
+    final int size = 3 * SegmentedNestedGuard.CHUNK_SIZE + 1;
+    final AutoCloseable[] resources = addResources(guard, size);
+    final int failedIndex1 = 5;
+    final int failedIndex2 = 2 * SegmentedNestedGuard.CHUNK_SIZE + 7;
+    final TestException exception1 = new TestException(1);
+    final TestException exception2 = new TestException(2);
+    doThrow(exception1).when(resources[failedIndex1]).close();
+    doThrow(exception2).when(resources[failedIndex2]).close();
+    try {
+      guard.close();
+      fail("Exception expected");
+    } catch (final TestException e) {
+      assertThat(e, is(sameInstance(exception2)));
+      assertThat(e.getSuppressed(), arrayWithSize(1));
+      assertThat(e.getSuppressed()[0], is(sameInstance((Throwable) exception1)));
+    }
+    assertThat(guard.size(), is(2));
+    assertThat(guard.get(0), is(sameInstance(resources[failedIndex1])));
+    assertThat(guard.get(1), is(sameInstance(resources[failedIndex2])));
+    for (int i = 0; i < size; ++i) {
+      verify(resources[i], times(1)).close();
+    }
+
+    // Guard remains usable after compaction
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.get(2), is(sameInstance(resource)));
+    guard.release(0);
+    guard.release(1);
+    guard.close();
+    verify(resource, times(1)).close();
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_addWithFreeChunkCapacity_addItemIsNotCalled() throws Exception {
+    final SegmentedNestedGuard guard = spy(new SegmentedNestedGuard());
+    guard.add(mock(AutoCloseable.class));
+    verify(guard, times(1)).addItem(ArgumentMatchers.<AutoCloseable>any());
+    addResources(guard, SegmentedNestedGuard.CHUNK_SIZE - 1);
+    verify(guard, times(1)).addItem(ArgumentMatchers.<AutoCloseable>any());
+    guard.add(mock(AutoCloseable.class));
+    verify(guard, times(2)).addItem(ArgumentMatchers.<AutoCloseable>any());
+    guard.close();
+  }
+
+  @Test
+  public void test_addThrowsExceptionAndResourceCloseThrowsException_resourceIsClosedWithException()
+      throws Exception {
+    final TestRuntimeException addException = new TestRuntimeException();
+    final TestException closeException = new TestException();
+    final SegmentedNestedGuard guard = spy(new SegmentedNestedGuard());
+    final AutoCloseable[] resources = addResources(guard, SegmentedNestedGuard.CHUNK_SIZE);
+    doThrow(addException).when(guard).addItem(ArgumentMatchers.<AutoCloseable>any());
+    final AutoCloseable resource = mock(AutoCloseable.class);
+    doThrow(closeException).when(resource).close();
+    try {
+      guard.add(resource);
+      fail("Expected TestRuntimeException");
+    } catch (final TestRuntimeException e) {
+      assertThat(e, is(sameInstance(addException)));
+      final Throwable[] suppressed = e.getSuppressed();
+      assertThat(suppressed, is(arrayWithSize(1)));
+      assertThat(suppressed[0], is(sameInstance((Throwable) closeException)));
+    }
+    verify(resource).close();
+    assertThat(guard.size(), is(SegmentedNestedGuard.CHUNK_SIZE));
+    guard.close();
+    verify(resources[0]).close();
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.collection.IsArrayWithSize.arrayWithSize;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class ShardedNestedGuardTest {
+
+  private static final class SequenceResource implements AutoCloseable {
+
+    private final AtomicInteger sequence;
+    private volatile int closedAt = -1;
+    private int closeCount;
+
+    SequenceResource(final AtomicInteger sequence) {
+      this.sequence = sequence;
+    }
+
+    @Override
+    public synchronized void close() {
+      ++closeCount;
+      closedAt = sequence.getAndIncrement();
+    }
+
+    synchronized int getCloseCount() {
+      return closeCount;
+    }
+
+    int getClosedAt() {
+      return closedAt;
+    }
+  }
+
+  @Test
+  public void test_closeEmpty_doesNotThrowException() throws Exception {
+    final ShardedNestedGuard guard = new ShardedNestedGuard();
+    assertThat(guard.size(), is(0));
+    guard.close();
+  }
+
+  @Test
+  public void test_closeSingleThread_resourcesAreClosedInReverseOrder() throws Exception {
+    final ShardedNestedGuard guard = new ShardedNestedGuard();
+    final AutoCloseable resource1 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    assertThat(guard.size(), is(3));
+
+    guard.close();
+
+    final InOrder inOrder = inOrder(resource1, resource2, resource3);
+    inOrder.verify(resource3).close();
+    inOrder.verify(resource2).close();
+    inOrder.verify(resource1).close();
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeMultipleThreads_resourcesOfEachThreadAreClosedInReverseOrder()
+      throws Exception {
+    final int threadCount = 4;
+    final int resourcesPerThread = 1000;
+    final AtomicInteger sequence = new AtomicInteger();
+    final ShardedNestedGuard guard = new ShardedNestedGuard();
+    final SequenceResource[][] resources = new SequenceResource[threadCount][resourcesPerThread];
+    final Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      final SequenceResource[] threadResources = resources[i];
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < threadResources.length; ++j) {
+            threadResources[j] = guard.add(new SequenceResource(sequence));
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(guard.size(), is(threadCount * resourcesPerThread));
+
+    guard.close();
+
+    for (final SequenceResource[] threadResources : resources) {
+      for (int j = 0; j < threadResources.length; ++j) {
+        assertThat(threadResources[j].getCloseCount(), is(1));
+        if (j > 0) {
+          assertThat(threadResources[j].getClosedAt() < threadResources[j - 1].getClosedAt(),
+              is(true));
+        }
+      }
+    }
+    assertThat(guard.size(), is(0));
+  }
+
+  @Test
+  public void test_closeAndResourcesCloseThrowException_failedResourcesAreClosedAgain()
+      throws Exception {
+    final ShardedNestedGuard guard = new ShardedNestedGuard();
+    final AutoCloseable resource1 = mock(AutoCloseable.class);
+    doThrow(new TestException(1)).when(resource1).close();
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        guard.add(resource1);
+      }
+    });
+    thread.start();
+    thread.join();
+    final AutoCloseable resource2 = guard.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    doThrow(new TestException(3)).when(resource3).close();
+
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(3));
+      final Throwable[] suppressed = e.getSuppressed();
+      assertThat(suppressed, is(arrayWithSize(1)));
+      assertThat(((TestException) suppressed[0]).getId(), is(1));
+    }
+    assertThat(guard.size(), is(2));
+
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(3));
+    }
+    verify(resource1, times(2)).close();
+    verify(resource2, times(1)).close();
+    verify(resource3, times(2)).close();
+  }
+
+  @Test
+  public void test_closeAndResourcesOfMultipleSegmentsThrowExceptions_exceptionsAreNestedFlat()
+      throws Exception {
+    final ShardedNestedGuard guard = new ShardedNestedGuard();
+    final AutoCloseable resource1 = mock(AutoCloseable.class);
+    doThrow(new TestException(1)).when(resource1).close();
+    final AutoCloseable resource2 = mock(AutoCloseable.class);
+    doThrow(new TestException(2)).when(resource2).close();
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        guard.add(resource1);
+        guard.add(resource2);
+      }
+    });
+    thread.start();
+    thread.join();
+    final AutoCloseable resource3 = guard.add(mock(AutoCloseable.class));
+    doThrow(new TestException(3)).when(resource3).close();
+
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      assertThat(e.getId(), is(3));
+      final Throwable[] suppressed = e.getSuppressed();
+      assertThat(suppressed, is(arrayWithSize(2)));
+      assertThat(((TestException) suppressed[0]).getId(), is(2));
+      assertThat(((TestException) suppressed[1]).getId(), is(1));
+      assertThat(suppressed[0].getSuppressed(), is(arrayWithSize(0)));
+      assertThat(suppressed[1].getSuppressed(), is(arrayWithSize(0)));
+    }
+    assertThat(guard.size(), is(3));
+  }
+
+  @Test
+  public void test_addToMultipleGuardsAlternately_resourcesAreGuardedByTheirGuards()
+      throws Exception {
+    final ShardedNestedGuard guard1 = new ShardedNestedGuard();
+    final ShardedNestedGuard guard2 = new ShardedNestedGuard();
+    final AutoCloseable resource1 = guard1.add(mock(AutoCloseable.class));
+    final AutoCloseable resource2 = guard2.add(mock(AutoCloseable.class));
+    final AutoCloseable resource3 = guard1.add(mock(AutoCloseable.class));
+    assertThat(guard1.size(), is(2));
+    assertThat(guard2.size(), is(1));
+
+    guard1.close();
+
+    final InOrder inOrder = inOrder(resource1, resource3);
+    inOrder.verify(resource3).close();
+    inOrder.verify(resource1).close();
+    verify(resource2, never()).close();
+    guard2.close();
+    verify(resource2).close();
+  }
+
+  @Test
+  public void test_release_resourcesAreNotClosed() throws Exception {
+    final ShardedNestedGuard guard = new ShardedNestedGuard();
+    final AutoCloseable resource = guard.add(mock(AutoCloseable.class));
+    guard.release();
+    assertThat(guard.size(), is(0));
+    guard.close();
+    verify(resource, never()).close();
+  }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+  @Test
+  public void test_new_zero() {
+    assertThat(new StripedCounter().sum(), is(0L));
+  }
+
+  @Test
+  public void test_add_sumIncludesAllUpdates() {
+    final StripedCounter counter = new StripedCounter(4);
+    counter.increment();
+    counter.add(10);
+    counter.add(-3);
+    assertThat(counter.sum(), is(8L));
+  }
+
+  @Test
+  public void test_addConcurrently_sumIncludesAllUpdates() throws Exception {
+    final StripedCounter counter = new StripedCounter(4);
+    final int threadCount = 8;
+    final int incrementCount = 10000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          for (int j = 0; j < incrementCount; ++j) {
+            counter.increment();
+          }
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(counter.sum(), is((long) threadCount * incrementCount));
+  }
+}
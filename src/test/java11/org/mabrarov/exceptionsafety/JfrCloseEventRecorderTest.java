@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2019 Marat Abrarov (abrarov@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mabrarov.exceptionsafety;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+/**
+ * Tests of {@code JfrCloseEventRecorder}, which is compiled into {@code META-INF/versions/11} and so
+ * is referenced by names only.
+ */
+public class JfrCloseEventRecorderTest {
+
+  private static final String GUARD_CLOSE = "org.mabrarov.exceptionsafety.GuardClose";
+  private static final String RESOURCE_CLOSE = "org.mabrarov.exceptionsafety.ResourceClose";
+
+  @Test
+  public void test_recorderIsLoaded() {
+    assertThat(CloseEvents.RECORDER.getClass().getName(),
+        is("org.mabrarov.exceptionsafety.JfrCloseEventRecorder"));
+  }
+
+  @Test
+  public void test_noRecording_eventsAreNotCreated() {
+    assertThat(CloseEvents.isEnabled(), is(false));
+    assertThat(CloseEvents.beginGuardClose() == null, is(true));
+    assertThat(CloseEvents.beginResourceClose() == null, is(true));
+  }
+
+  @Test
+  public void test_recordingStartsAndStops_eventsAreEnabledWhileRecordingIsRunning() {
+    try (final Recording recording = new Recording()) {
+      recording.start();
+      assertThat(CloseEvents.isEnabled(), is(true));
+      recording.stop();
+    }
+    assertThat(CloseEvents.isEnabled(), is(false));
+  }
+
+  @Test
+  public void test_zeroThreshold_eventsAreRecorded() throws Exception {
+    final List<RecordedEvent> events;
+    try (final Recording recording = new Recording()) {
+      recording.enable(GUARD_CLOSE).withThreshold(Duration.ZERO);
+      recording.enable(RESOURCE_CLOSE)
+          .withThreshold(Duration.ZERO);
+      recording.start();
+      closeGuards();
+      recording.stop();
+      events = readEvents(recording);
+    }
+
+    final List<RecordedEvent> guardEvents = filter(events,
+        GUARD_CLOSE);
+    assertThat(guardEvents.size(), is(3));
+    assertThat(guardEvents.get(0).getClass("guardClass").getName(), is(Guard.class.getName()));
+    assertThat(guardEvents.get(0).getInt("itemCount"), is(1));
+    assertThat(guardEvents.get(0).getBoolean("failed"), is(false));
+    assertThat(guardEvents.get(1).getClass("guardClass").getName(),
+        is(PairGuard.class.getName()));
+    assertThat(guardEvents.get(1).getInt("itemCount"), is(2));
+    assertThat(guardEvents.get(2).getClass("guardClass").getName(),
+        is(NestedGuard.class.getName()));
+    assertThat(guardEvents.get(2).getInt("itemCount"), is(2));
+    assertThat(guardEvents.get(2).getBoolean("failed"), is(true));
+
+    final List<RecordedEvent> resourceEvents = filter(events,
+        RESOURCE_CLOSE);
+    assertThat(resourceEvents.size(), is(5));
+    assertThat(resourceEvents.get(0).getClass("resourceClass").getName(),
+        is(TestResource.class.getName()));
+    // Both resources of PairGuard are attributed to PairGuard
+    assertThat(resourceEvents.get(1).getClass("guardClass").getName(),
+        is(PairGuard.class.getName()));
+    assertThat(resourceEvents.get(2).getClass("guardClass").getName(),
+        is(PairGuard.class.getName()));
+    assertThat(resourceEvents.get(3).getClass("guardClass").getName(),
+        is(NestedGuard.class.getName()));
+    // Resources of NestedGuard are closed in reverse order
+    assertThat(resourceEvents.get(3).getBoolean("failed"), is(false));
+    assertThat(resourceEvents.get(4).getBoolean("failed"), is(true));
+  }
+
+  @Test
+  public void test_closeWithTimeoutAndCloseInParallel_guardEventsAreRecorded() throws Exception {
+    final List<RecordedEvent> events;
+    try (final Recording recording = new Recording()) {
+      recording.enable(GUARD_CLOSE).withThreshold(Duration.ZERO);
+      recording.start();
+      final NestedGuard guard = new NestedGuard();
+      guard.add(new TestResource());
+      guard.closeWithTimeout(1, 1, TimeUnit.MINUTES);
+      for (int i = 0; i < 4; ++i) {
+        guard.add(new TestResource());
+      }
+      guard.closeInParallel(2);
+      recording.stop();
+      events = readEvents(recording);
+    }
+    final List<RecordedEvent> guardEvents = filter(events, GUARD_CLOSE);
+    assertThat(guardEvents.size(), is(2));
+    assertThat(guardEvents.get(0).getInt("itemCount"), is(1));
+    assertThat(guardEvents.get(1).getInt("itemCount"), is(4));
+  }
+
+  @Test
+  public void test_defaultThreshold_shortClosesAreNotRecorded() throws Exception {
+    // Warm up, so class loading does not make the first closes longer than threshold
+    closeGuards();
+    final List<RecordedEvent> events;
+    try (final Recording recording = new Recording()) {
+      recording.enable(GUARD_CLOSE);
+      recording.enable(RESOURCE_CLOSE);
+      recording.start();
+      closeGuards();
+      recording.stop();
+      events = readEvents(recording);
+    }
+    assertThat(filter(events, GUARD_CLOSE).size(), is(0));
+    assertThat(filter(events, RESOURCE_CLOSE).size(), is(0));
+  }
+
+  private static void closeGuards() throws Exception {
+    try (final Guard guard = new Guard()) {
+      guard.set(new TestResource());
+    }
+    try (final PairGuard guard = new PairGuard()) {
+      guard.setFirst(new TestResource());
+      guard.setSecond(new TestResource());
+    }
+    final NestedGuard guard = new NestedGuard();
+    final AutoCloseable failingResource = guard.add(mock(AutoCloseable.class));
+    doThrow(new TestException()).when(failingResource).close();
+    guard.add(new TestResource());
+    try {
+      guard.close();
+      fail("Expected TestException");
+    } catch (final TestException e) {
+      // Expected
+    }
+  }
+
+  private static List<RecordedEvent> readEvents(final Recording recording) throws Exception {
+    final Path file = Files.createTempFile("exception-safety", ".jfr");
+    try {
+      recording.dump(file);
+      return RecordingFile.readAllEvents(file);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static List<RecordedEvent> filter(final List<RecordedEvent> events,
+      final String name) {
+    final List<RecordedEvent> filtered = new ArrayList<>();
+    for (final RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name)) {
+        filtered.add(event);
+      }
+    }
+    return filtered;
+  }
+
+  private static class TestResource implements AutoCloseable {
+
+    @Override
+    public void close() {
+    }
+  }
+}